@@ -13,16 +13,432 @@
 #include <sys/types.h>
 #include <sys/socket.h>
 #include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <netinet/ip.h>
 #include <arpa/inet.h>
 #include <errno.h>
 #include <fcntl.h>
 #include <unistd.h>
 
 #include <stdbool.h>
+#include <poll.h>
+#include <time.h>
 
 #define VIDEO_DECODE_PORT 130
 
+/// Max size of a received RTP packet
+#define RTP_MAX_PACKET 65536
+/// Size of the fixed RTP header
+#define RTP_HEADER_SIZE 12
+/// Payload type of the XOR parity packets (raspivid -fec)
+#define RTP_PAYLOAD_TYPE_FEC 127
+/// FEC header behind the RTP header: base seq(2) count(1) reserved(1) length xor(2) M/PT xor(1) reserved(1) timestamp xor(4)
+#define RTP_FEC_HEADER_SIZE 12
+/// Max media packets protected by one parity packet
+#define RTP_FEC_MAX_GROUP 32
+/// Packets kept for repair, power of 2 and more than the largest FEC group plus RTP_HOLD_MAX
+#define RTP_HOLD_SLOTS 1024
+/// Give up waiting for a repair when the stream is this many packets ahead of the hole
+#define RTP_HOLD_MAX 896
+/// RTCP transport layer feedback (RFC 4585) and its generic NACK format
+#define RTCP_PT_RTPFB 205
+#define RTCP_FMT_NACK 1
+/// Max FCI entries (17 packets each) in one NACK
+#define RTCP_NACK_MAX_FCI 16
+
+#ifndef TCP_USER_TIMEOUT
+   #define TCP_USER_TIMEOUT 18
+#endif
+/// Low latency profile: socket buffers hold this much of the stream
+#define LOWLAT_BUFFER_MS 100
+/// Low latency profile: a sender that sends nothing for this long is dead
+#define LOWLAT_USER_TIMEOUT_MS 3000
+/// Low latency profile: DSCP AF41, interactive video
+#define LOWLAT_TOS 0x88
+
 int sockfd = -1;
+bool bRtp = false;
+int nack_ms = 0;
+unsigned int lowlat_bitrate = 0; //!= 0: low latency socket profile sized for this bitrate
+
+/**
+ * Low latency socket profile: no Nagle for the commands we send, a receive buffer sized from the
+ * bitrate instead of the autotuned megabytes, fast dead peer detection and AF41 marking
+ */
+void
+SetLowLatencyProfile (int sfd, unsigned int bitrate)
+{
+   int buffer = (int)((unsigned long long) bitrate / 8 * LOWLAT_BUFFER_MS / 1000);
+   int val = 1, timeout = LOWLAT_USER_TIMEOUT_MS, idle = 1, intvl = 1, cnt = 3, tos = LOWLAT_TOS;
+
+   if (buffer < 16 * 1024)
+      buffer = 16 * 1024;
+   //no error handling, an option the kernel does not know is just left at its default
+   setsockopt(sfd, SOL_SOCKET, SO_RCVBUF, &buffer, sizeof(buffer));
+   setsockopt(sfd, SOL_SOCKET, SO_SNDBUF, &buffer, sizeof(buffer));
+   setsockopt(sfd, IPPROTO_TCP, TCP_NODELAY, &val, sizeof(val));
+   setsockopt(sfd, IPPROTO_TCP, TCP_USER_TIMEOUT, &timeout, sizeof(timeout));
+   setsockopt(sfd, SOL_SOCKET, SO_KEEPALIVE, &val, sizeof(val));
+   setsockopt(sfd, IPPROTO_TCP, TCP_KEEPIDLE, &idle, sizeof(idle));
+   setsockopt(sfd, IPPROTO_TCP, TCP_KEEPINTVL, &intvl, sizeof(intvl));
+   setsockopt(sfd, IPPROTO_TCP, TCP_KEEPCNT, &cnt, sizeof(cnt));
+   setsockopt(sfd, IPPROTO_IP, IP_TOS, &tos, sizeof(tos));
+
+   int rcvbuf = 0, sndbuf = 0, nodelay = 0, user_timeout = 0, keepalive = 0;
+   socklen_t len;
+   len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_RCVBUF, &rcvbuf, &len);
+   len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_SNDBUF, &sndbuf, &len);
+   len = sizeof(int); getsockopt(sfd, IPPROTO_TCP, TCP_NODELAY, &nodelay, &len);
+   len = sizeof(int); getsockopt(sfd, IPPROTO_TCP, TCP_USER_TIMEOUT, &user_timeout, &len);
+   len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_KEEPALIVE, &keepalive, &len);
+   len = sizeof(int); getsockopt(sfd, IPPROTO_IP, IP_TOS, &tos, &len);
+   fprintf(stderr, "Low latency socket: rcvbuf=%d sndbuf=%d nodelay=%d user_timeout=%dms keepalive=%d tos=0x%02x\n",
+           rcvbuf, sndbuf, nodelay, user_timeout, keepalive, tos);
+}
+
+/** RFC 6184 depacketizer state, the stream is rebuilt as Annex-B
+ */
+struct
+{
+   unsigned char packet[RTP_MAX_PACKET]; /// Last received packet
+   int packet_len;                       /// > 0: packet did not fit into the last buffer, use it first
+   bool bSeqValid;
+   uint16_t seq;                         /// Expected sequence number
+   bool bInFU;                           /// Inside a FU-A NAL unit
+   bool bFUBroken;                       /// A fragment of the current FU-A NAL unit got lost, drop the rest
+   OMX_U32 fu_start;                     /// Offset of the current FU-A NAL unit in the buffer, if it started there
+   bool bFUStartInBuffer;
+} rtp;
+
+/** Packets received ahead of a missing one, waiting for a parity packet or a retransmission that fills the hole
+ */
+struct
+{
+   unsigned char *packet[RTP_HOLD_SLOTS];
+   int size[RTP_HOLD_SLOTS];             /// Allocated size of the slot
+   int len[RTP_HOLD_SLOTS];              /// 0 = slot empty
+   uint16_t seq[RTP_HOLD_SLOTS];
+   int64_t missing_since[RTP_HOLD_SLOTS];/// ms, when the gap in front of a later packet showed up
+   int64_t nacked[RTP_HOLD_SLOTS];       /// ms, last NACK for the missing packet
+   bool bFEC;                            /// Parity packets seen, so losses are worth waiting for
+   bool bNextValid;
+   uint16_t next;                        /// Next sequence number to hand to the depacketizer
+   uint16_t highest;                     /// Highest sequence number received
+   uint16_t giveup;                      /// Holes before this are not repaired any more, their parity packet went by
+   struct sockaddr_in sender;            /// Where NACKs go
+   bool bSsrcValid;
+   unsigned char ssrc[4];                /// Media SSRC for the NACKs, parity packets come on a separate one
+   unsigned int repaired;
+   unsigned int lost;
+} hold;
+
+static int64_t
+now_ms (void)
+{
+   struct timespec ts;
+   clock_gettime(CLOCK_MONOTONIC, &ts);
+   return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+static int hold_slot (uint16_t seq)
+{
+   return seq & (RTP_HOLD_SLOTS - 1);
+}
+
+static bool hold_have (uint16_t seq)
+{
+   int i = hold_slot(seq);
+   return hold.len[i] && (hold.seq[i] == seq);
+}
+
+static void hold_store (uint16_t seq, const unsigned char *pkt, int len)
+{
+   int i = hold_slot(seq);
+   if (hold.size[i] < len)
+   {
+      hold.size[i] = len;
+      if (NULL == (hold.packet[i] = realloc(hold.packet[i], len)))
+      {
+         fprintf(stderr, "Out of memory\n");
+         exit(1);
+      }
+   }
+   memcpy(hold.packet[i], pkt, len);
+   hold.len[i] = len;
+   hold.seq[i] = seq;
+}
+
+/**
+ * Rebuild the one missing packet of a group from the parity packet, if exactly one is missing
+ * @return false if two or more are missing, the group can not be repaired
+ */
+static bool fec_repair (const unsigned char *pkt, int len)
+{
+   if (len < RTP_HEADER_SIZE + RTP_FEC_HEADER_SIZE)
+      return true;
+   const unsigned char *fh = pkt + RTP_HEADER_SIZE;
+   const unsigned char *parity = fh + RTP_FEC_HEADER_SIZE;
+   int parity_len = len - RTP_HEADER_SIZE - RTP_FEC_HEADER_SIZE;
+   uint16_t base = (fh[0] << 8) | fh[1];
+   int count = fh[2];
+   int missing = -1, i, j;
+
+   for (i = 0; i < count; i++)
+   {
+      uint16_t seq = base + i;
+      if (hold.bNextValid && ((int16_t)(seq - hold.next) < 0))
+         continue; //already handed on
+      if (!hold_have(seq))
+      {
+         if (missing >= 0)
+            return false;
+         missing = i;
+      }
+   }
+   if (missing < 0)
+      return true;
+
+   //everything but the missing packet is still in the slots, packets before hold.next are kept until overwritten
+   uint16_t len_xor = (fh[4] << 8) | fh[5];
+   unsigned char mpt = fh[6];
+   uint32_t ts = (fh[8] << 24) | (fh[9] << 16) | (fh[10] << 8) | fh[11];
+   unsigned char out[RTP_MAX_PACKET];
+   memset(out, 0, sizeof(out));
+   memcpy(out + RTP_HEADER_SIZE, parity, parity_len);
+   for (i = 0; i < count; i++)
+   {
+      uint16_t seq = base + i;
+      if (i == missing)
+         continue;
+      if (!hold_have(seq))
+         return false; //handed on and overwritten already
+      const unsigned char *p = hold.packet[hold_slot(seq)];
+      int plen = hold.len[hold_slot(seq)] - RTP_HEADER_SIZE;
+      len_xor ^= plen;
+      mpt ^= p[1];
+      ts ^= (p[4] << 24) | (p[5] << 16) | (p[6] << 8) | p[7];
+      for (j = 0; j < plen && j < parity_len; j++)
+         out[RTP_HEADER_SIZE + j] ^= p[RTP_HEADER_SIZE + j];
+   }
+   if (len_xor > parity_len)
+      return false;
+
+   uint16_t seq = base + missing;
+   out[0] = 0x80;
+   out[1] = mpt;
+   out[2] = seq >> 8;
+   out[3] = seq;
+   out[4] = ts >> 24;
+   out[5] = ts >> 16;
+   out[6] = ts >> 8;
+   out[7] = ts;
+   memcpy(out + 8, hold.ssrc, 4); //media SSRC, the parity stream has its own
+   hold_store(seq, out, RTP_HEADER_SIZE + len_xor);
+   hold.repaired++;
+   return true;
+}
+
+/**
+ * Send an RTCP generic NACK (RFC 4585) for the packets first..first+count-1 that are still missing
+ */
+static void
+send_nack (uint16_t first, int count, int64_t now)
+{
+   unsigned char pkt[12 + 4 * RTCP_NACK_MAX_FCI];
+   int fci = 0, i;
+
+   for (i = 0; (i < count) && (fci < RTCP_NACK_MAX_FCI); i++)
+   {
+      uint16_t seq = first + i;
+      if (hold_have(seq))
+         continue;
+      hold.nacked[hold_slot(seq)] = now;
+      if (fci && ((uint16_t)(seq - ((pkt[8 + 4 * fci] << 8) | pkt[9 + 4 * fci])) <= 16))
+      {//fits into the bitmask of the last FCI
+         int bit = (uint16_t)(seq - ((pkt[8 + 4 * fci] << 8) | pkt[9 + 4 * fci])) - 1;
+         pkt[10 + 4 * fci] |= (1 << bit) >> 8;
+         pkt[11 + 4 * fci] |= (1 << bit) & 0xff;
+         continue;
+      }
+      pkt[12 + 4 * fci] = seq >> 8;
+      pkt[13 + 4 * fci] = seq;
+      pkt[14 + 4 * fci] = 0;
+      pkt[15 + 4 * fci] = 0;
+      fci++;
+   }
+   if (!fci)
+      return;
+
+   pkt[0] = 0x80 | RTCP_FMT_NACK;
+   pkt[1] = RTCP_PT_RTPFB;
+   pkt[2] = 0;
+   pkt[3] = 2 + fci; //length in 32 bit words minus one
+   memset(pkt + 4, 0, 4); //SSRC of the sender of the NACK, we send no media
+   memcpy(pkt + 8, hold.ssrc, 4);
+   sendto(sockfd, pkt, 12 + 4 * fci, 0, (struct sockaddr *) &hold.sender, sizeof(hold.sender));
+}
+
+/**
+ * Receive the next media packet in sequence order into rtp.packet.
+ * Without FEC or NACK it is just recv(). Otherwise packets behind a gap are held until the hole
+ * is filled by a parity packet or a retransmission, or it is too late for that.
+ */
+static void rtp_recv_packet (void)
+{
+   unsigned char pkt[RTP_MAX_PACKET];
+   struct sockaddr_in from;
+   socklen_t fromlen;
+
+   while (1)
+   {
+      int wait_ms = -1;
+      if (hold.bNextValid)
+      {
+         if (hold_have(hold.next))
+         {//the slot stays filled for repairs of the group until it is overwritten RTP_HOLD_SLOTS packets later
+            int i = hold_slot(hold.next);
+            memcpy(rtp.packet, hold.packet[i], hold.len[i]);
+            rtp.packet_len = hold.len[i];
+            hold.next++;
+            return;
+         }
+         if ((int16_t)(hold.highest - hold.next) > 0)
+         {//hole at the head
+            int i = hold_slot(hold.next);
+            int64_t now = now_ms();
+            bool bLate;
+            if (nack_ms)
+               bLate = now - hold.missing_since[i] >= nack_ms;
+            else
+               bLate = (int16_t)(hold.giveup - hold.next) > 0;
+            if (bLate || ((int16_t)(hold.highest - hold.next) >= RTP_HOLD_MAX))
+            {//skip the hole, the depacketizer sees the gap
+               hold.lost++;
+               fprintf(stderr, "RTP packet %hu lost (repaired %u, lost %u)\n", hold.next, hold.repaired, hold.lost);
+               hold.next++;
+               continue;
+            }
+            if (nack_ms)
+            {//the NACK or the retransmission may be lost as well, ask again a few times within the deadline
+               int renack = (nack_ms >= 20) ? nack_ms / 4 : 5;
+               if (now - hold.nacked[i] >= renack)
+                  send_nack(hold.next, 1, now);
+               int64_t wake = hold.nacked[i] + renack;
+               if (wake > hold.missing_since[i] + nack_ms)
+                  wake = hold.missing_since[i] + nack_ms;
+               wait_ms = (wake > now) ? wake - now : 1;
+            }
+         }
+      }
+
+      if (wait_ms >= 0)
+      {
+         struct pollfd pfd = { sockfd, POLLIN, 0 };
+         if (0 == poll(&pfd, 1, wait_ms))
+            continue;
+      }
+      fromlen = sizeof(from);
+      int len = recvfrom(sockfd, pkt, sizeof(pkt), 0, (struct sockaddr *) &from, &fromlen);
+      if (len <= 0)
+         exit(1); //timeout, sender gone
+      if ((len < RTP_HEADER_SIZE) || ((pkt[0] >> 6) != 2))
+         continue;
+
+      if ((pkt[1] & 0x7f) == RTP_PAYLOAD_TYPE_FEC)
+      {//the parity stream is told apart by its SSRC, the media SSRC never carries it
+         if (hold.bSsrcValid && !memcmp(pkt + 8, hold.ssrc, 4))
+            continue;
+         if (!hold.bFEC)
+         {
+            hold.bFEC = true;
+            fprintf(stderr, "FEC packets received, repairing single losses\n");
+         }
+         if (len >= RTP_HEADER_SIZE + RTP_FEC_HEADER_SIZE)
+         {//parity packets follow their group, holes up to its end are repaired now or never
+            const unsigned char *fh = pkt + RTP_HEADER_SIZE;
+            uint16_t end = ((fh[0] << 8) | fh[1]) + fh[2];
+            fec_repair(pkt, len);
+            if ((int16_t)(end - hold.giveup) > 0)
+               hold.giveup = end;
+         }
+         continue;
+      }
+
+      uint16_t seq = (pkt[2] << 8) | pkt[3];
+      if (!hold.bFEC && !nack_ms)
+      {//nothing can fill a hole, hand on directly
+         memcpy(rtp.packet, pkt, len);
+         rtp.packet_len = len;
+         return;
+      }
+      if (!hold.bNextValid || ((int16_t)(seq - hold.next) >= RTP_HOLD_SLOTS - RTP_FEC_MAX_GROUP))
+      {//first packet, or the stream restarted after a long outage
+         hold.bNextValid = true;
+         hold.next = seq;
+         hold.highest = seq;
+         hold.giveup = seq;
+      }
+      if ((int16_t)(seq - hold.next) < 0)
+         continue; //late duplicate or given up on
+      hold.sender = from;
+      memcpy(hold.ssrc, pkt + 8, 4);
+      hold.bSsrcValid = true;
+      if ((int16_t)(seq - hold.highest) > 0)
+      {
+         uint16_t gap = seq - hold.highest - 1;
+         if (gap)
+         {
+            int64_t now = now_ms();
+            uint16_t s;
+            for (s = hold.highest + 1; s != seq; s++)
+            {
+               hold.missing_since[hold_slot(s)] = now;
+               hold.nacked[hold_slot(s)] = 0;
+            }
+            if (nack_ms)
+               send_nack(hold.highest + 1, gap, now);
+         }
+         hold.highest = seq;
+      }
+      hold_store(seq, pkt, len);
+   }
+}
+
+int
+SetupRtpSocket (struct in_addr* ip, unsigned short port, unsigned short rcv_timeout, bool bVerbose)
+{
+   struct sockaddr_in saddr={};
+   saddr.sin_family = AF_INET;
+   saddr.sin_port = htons(port);
+   saddr.sin_addr = *ip;
+
+   int sfd = socket(AF_INET, SOCK_DGRAM, 0);
+   if (sfd < 0)
+   {
+      fprintf(stderr, "Error creating socket: %s\n", strerror(errno));
+      return -1;
+   }
+
+   int iTmp = 1;
+   setsockopt(sfd, SOL_SOCKET, SO_REUSEADDR, &iTmp, sizeof(int)); //no error handling, just go on
+   iTmp = 2 * 1024 * 1024; //room for a key frame burst
+   setsockopt(sfd, SOL_SOCKET, SO_RCVBUF, &iTmp, sizeof(int));
+   if (bind(sfd, (struct sockaddr *) &saddr, sizeof(saddr)) < 0)
+   {
+      fprintf(stderr, "Error on binding socket: %s\n", strerror(errno));
+      close(sfd);
+      return -1;
+   }
+
+   struct timeval timeout;
+   timeout.tv_sec = rcv_timeout;
+   timeout.tv_usec = 0;
+   if (setsockopt(sfd, SOL_SOCKET, SO_RCVTIMEO, (char *) &timeout, sizeof(timeout)) < 0)
+      fprintf(stderr, "setsockopt failed\n");
+   if (bVerbose)
+      fprintf(stderr, "Waiting for RTP on %s:%"SCNu16"\n", inet_ntoa(saddr.sin_addr), ntohs(saddr.sin_port));
+   return sfd;
+}
 
 int
 SetupListenSocket (struct in_addr* ip, unsigned short port, unsigned short rcv_timeout, bool bVerbose)
@@ -57,6 +473,8 @@ SetupListenSocket (struct in_addr* ip, unsigned short port, unsigned short rcv_t
                if (setsockopt(sfd, SOL_SOCKET, SO_RCVTIMEO, (char *) &timeout, sizeof(timeout)) < 0)
                   fprintf(stderr, "setsockopt failed\n");
                fprintf(stderr, "Client connected from %s:%"SCNu16"\n", inet_ntoa(cli_addr.sin_addr), ntohs(cli_addr.sin_port));
+               if (lowlat_bitrate)
+                  SetLowLatencyProfile(sfd, lowlat_bitrate);
             }
             else
                fprintf(stderr, "Error on accept: %s\n", strerror(errno));
@@ -176,6 +594,8 @@ ConnectToHost (struct in_addr* ip, unsigned short port, bool bVerbose)
          close(sfd);
          exit(134);
       }
+      if (lowlat_bitrate)
+         SetLowLatencyProfile(sfd, lowlat_bitrate);
       return sfd;
    }
    return -1;
@@ -322,16 +742,151 @@ error_callback (void *userdata, COMPONENT_T *comp, OMX_U32 data)
    fprintf(stderr, "OMX error %s\n", err2str(data));
 }
 
+/**
+ * Fill the buffer with Annex-B data from RTP packets (single NAL unit, STAP-A, FU-A).
+ * Returns after the last packet of an access unit or when the next packet does not fit.
+ */
+void
+rtp_read_into_buffer (OMX_BUFFERHEADERTYPE *buff_header)
+{
+   static const unsigned char start_code[4] = {0, 0, 0, 1};
+   unsigned char *out = buff_header->pBuffer;
+   OMX_U32 fill = 0;
+
+   buff_header->nFlags = 0;
+   rtp.bFUStartInBuffer = false;
+   while (1)
+   {
+      if (rtp.packet_len <= 0)
+         rtp_recv_packet();
+
+      unsigned char *pkt = rtp.packet;
+      int len = rtp.packet_len;
+      if ((len < RTP_HEADER_SIZE + 1) || ((pkt[0] >> 6) != 2))
+      {
+         rtp.packet_len = 0;
+         continue;
+      }
+      int hdr = RTP_HEADER_SIZE + 4 * (pkt[0] & 0x0f);
+      if (pkt[0] & 0x10)
+      {//header extension
+         if (len < hdr + 4)
+         {
+            rtp.packet_len = 0;
+            continue;
+         }
+         hdr += 4 + 4 * ((pkt[hdr + 2] << 8) | pkt[hdr + 3]);
+      }
+      if (pkt[0] & 0x20)
+         len -= pkt[len - 1]; //padding
+      if (len <= hdr)
+      {
+         rtp.packet_len = 0;
+         continue;
+      }
+
+      unsigned char *payload = pkt + hdr;
+      int payload_len = len - hdr;
+      int nal_type = payload[0] & 0x1f;
+      //Annex-B size: start code per NAL unit, FU-A drops 2 bytes and adds the NAL header (+ start code on the first)
+      int needed;
+      if (nal_type == 28)
+         needed = (payload_len < 2) ? 0 : payload_len - 2 + ((payload[1] & 0x80) ? 5 : 0);
+      else if (nal_type == 24)
+         needed = 2 * payload_len; //upper bound, every 2 byte size becomes a 4 byte start code
+      else
+         needed = payload_len + 4;
+      if ((fill + needed > buff_header->nAllocLen) && fill)
+         break; //keep the packet for the next buffer
+      rtp.packet_len = 0;
+      if (fill + needed > buff_header->nAllocLen)
+         continue; //can never fit
+
+      uint16_t seq = (pkt[2] << 8) | pkt[3];
+      if (rtp.bSeqValid && (seq != rtp.seq))
+      {
+         if (rtp.bInFU)
+         {//the rest of the NAL unit is useless, remove what is in this buffer
+            rtp.bFUBroken = true;
+            if (rtp.bFUStartInBuffer)
+               fill = rtp.fu_start;
+         }
+      }
+      rtp.bSeqValid = true;
+      rtp.seq = seq + 1;
+
+      if (nal_type == 28)
+      {//FU-A
+         if (payload_len >= 2)
+         {
+            if (payload[1] & 0x80)
+            {
+               rtp.bInFU = true;
+               rtp.bFUBroken = false;
+               rtp.bFUStartInBuffer = true;
+               rtp.fu_start = fill;
+               memcpy(out + fill, start_code, 4);
+               out[fill + 4] = (payload[0] & 0xe0) | (payload[1] & 0x1f);
+               fill += 5;
+            }
+            if (rtp.bInFU && !rtp.bFUBroken)
+            {
+               memcpy(out + fill, payload + 2, payload_len - 2);
+               fill += payload_len - 2;
+            }
+            if (payload[1] & 0x40)
+               rtp.bInFU = false;
+         }
+      }
+      else if (nal_type == 24)
+      {//STAP-A
+         int pos = 1;
+         while (pos + 2 < payload_len)
+         {
+            int size = (payload[pos] << 8) | payload[pos + 1];
+            pos += 2;
+            if (pos + size > payload_len)
+               break;
+            memcpy(out + fill, start_code, 4);
+            memcpy(out + fill + 4, payload + pos, size);
+            fill += 4 + size;
+            pos += size;
+         }
+         rtp.bInFU = false;
+      }
+      else
+      {//single NAL unit packet
+         memcpy(out + fill, start_code, 4);
+         memcpy(out + fill + 4, payload, payload_len);
+         fill += 4 + payload_len;
+         rtp.bInFU = false;
+      }
+
+      if (pkt[1] & 0x80)
+      {//marker: last packet of the access unit
+         buff_header->nFlags |= OMX_BUFFERFLAG_ENDOFFRAME;
+         break;
+      }
+   }
+   buff_header->nFilledLen = fill;
+}
+
 unsigned int ui = 0;
 OMX_ERRORTYPE
 read_into_buffer_and_empty (COMPONENT_T *component, OMX_BUFFERHEADERTYPE *buff_header)
 {
    OMX_ERRORTYPE r;
 
-   buff_header->nFilledLen = recv(sockfd, buff_header->pBuffer, buff_header->nAllocLen, 0);
-   if (buff_header->nFilledLen <= 0)
+   if (bRtp)
+      rtp_read_into_buffer(buff_header);
+   else
    {
-      exit(1);
+      ssize_t len = recv(sockfd, buff_header->pBuffer, buff_header->nAllocLen, 0);
+      if (len <= 0)
+      {
+         exit(1);
+      }
+      buff_header->nFilledLen = len;
    }
    //buff_header->nFlags |= OMX_BUFFERFLAG_EOS;
 
@@ -414,9 +969,12 @@ void show_usage_and_exit(char** argv)
 {
    char* bname = strdupa(argv[0]);
    fprintf(stderr,
-         "Usage: %s [-l port] [-t timeout sec] -p port"
-         "\n\tconnect: %s -h 1.2.3.4 -l -p 1234 -t 3"
-         "\n\twait for incoming: %s -l -p 1234\n", bname, bname, bname);
+         "Usage: %s [-l] [-u [-n ms]] [-L bitrate] [-t timeout sec] [-h ip] -p port"
+         "\n\tconnect: %s -h 1.2.3.4 -p 1234 -t 3"
+         "\n\twait for incoming: %s -l -p 1234"
+         "\n\tlow latency socket profile for a 4MBit/s stream: %s -l -L 4000000 -p 1234"
+         "\n\treceive RTP (raspivid -m rtp -o udp://...): %s -u -p 1234"
+         "\n\treceive RTP, NACK lost packets and wait up to 80ms for them: %s -u -n 80 -p 1234\n", bname, bname, bname, bname, bname, bname);
    exit(EXIT_FAILURE);
 }
 
@@ -436,13 +994,30 @@ main (int argc, char** argv)
    unsigned short port, recv_timeout = 3;
    struct in_addr ip={};
    int opt;
-   while ((opt = getopt(argc, argv, "t:vlh:p:")) != -1)
+   while ((opt = getopt(argc, argv, "t:vluh:p:n:L:")) != -1)
    {
       switch (opt)
       {
          case 'l':
             bListen = true;
             break;
+         case 'u':
+            bRtp = true;
+            break;
+         case 'L':
+            if ((1 != sscanf(optarg, "%u", &lowlat_bitrate)) || !lowlat_bitrate)
+            {
+               fprintf(stderr, "error bitrate\n");
+               exit(EXIT_FAILURE);
+            }
+            break;
+         case 'n':
+            if ((1 != sscanf(optarg, "%d", &nack_ms)) || (nack_ms <= 0))
+            {
+               fprintf(stderr, "error nack ms\n");
+               exit(EXIT_FAILURE);
+            }
+            break;
          case 'v':
             bVerbose = true;
             break;
@@ -500,7 +1075,9 @@ main (int argc, char** argv)
 
    printState(ilclient_get_handle(decodeComponent));
 
-   if(bListen)
+   if(bRtp)
+      sockfd = SetupRtpSocket(&ip, port, recv_timeout, bVerbose);
+   else if(bListen)
       sockfd = SetupListenSocket(&ip, port, 3, bVerbose);
    else
       sockfd = ConnectToHost(&ip, port, bVerbose);
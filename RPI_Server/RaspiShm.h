@@ -0,0 +1,225 @@
+/*
+ * Shared memory ring written by raspivid -o shm://name
+ *
+ * raspivid copies every encoder buffer (H264 Annex-B data, SPS/PPS and inline motion
+ * vectors) into a ring in /dev/shm/name. Any number of local processes map the ring
+ * read only and consume the buffers in place. The writer never waits for readers,
+ * a reader that falls more than the ring size behind notices and starts over at the
+ * latest key frame.
+ *
+ * Reader:
+ *
+ *    SHM_READER r;
+ *    if (shm_reader_open(&r, "cam"))
+ *       for (;;)
+ *       {
+ *          const SHM_RECORD *rec = shm_reader_next(&r, 1000);
+ *          if (!rec)
+ *             continue;                           //timeout or lapped, try again
+ *          consume(SHM_RECORD_DATA(rec), rec->length, rec->flags, rec->pts);
+ *          if (!shm_reader_done(&r, rec))
+ *             discard_what_was_consumed();        //overwritten while in use
+ *       }
+ */
+#ifndef RASPISHM_H_
+#define RASPISHM_H_
+
+#include <stdint.h>
+#include <stdbool.h>
+#include <string.h>
+#include <stdio.h>
+#include <limits.h>
+#include <time.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+/// "RPIS"
+#define SHM_RING_MAGIC 0x53495052
+#define SHM_RING_VERSION 1
+/// Room for SPS/PPS in the header
+#define SHM_RING_MAX_CONFIG 256
+/// Record flag: nothing follows up to the end of the ring, continue at its start
+#define SHM_RECORD_FLAG_PAD 0x80000000
+
+/** One encoder buffer in the ring, the data follows, records are 8 byte aligned
+ */
+typedef struct
+{
+   uint32_t length;                     /// Data bytes
+   uint32_t flags;                      /// MMAL_BUFFER_HEADER_FLAG_xxx of the encoder buffer, or SHM_RECORD_FLAG_PAD
+   int64_t pts;                         /// Encoder timestamp in us, MMAL_TIME_UNKNOWN if not set
+   uint64_t pos;                        /// Ring position of this record, differs if the record was overwritten
+} SHM_RECORD;
+
+#define SHM_RECORD_DATA(rec) ((const uint8_t *)(rec) + sizeof(SHM_RECORD))
+#define SHM_RECORD_SIZE(length) ((sizeof(SHM_RECORD) + (length) + 7) & ~(uint64_t)7)
+
+/** Start of the shared memory, the ring data follows at header_size
+ */
+typedef struct
+{
+   uint32_t magic;
+   uint32_t version;
+   uint32_t header_size;                /// Offset of the ring data
+   uint32_t data_size;                  /// Ring bytes, multiple of 8
+   volatile uint64_t reserve_pos;       /// End of the record being written, bytes up to here may be overwritten
+   volatile uint64_t write_pos;         /// End of the last complete record, positions count bytes since the start
+   volatile uint64_t keyframe_pos;      /// First record of the latest key frame, readers start here
+   volatile uint32_t futex;             /// Incremented after every record, readers FUTEX_WAIT on it
+   volatile uint32_t config_seq;        /// Odd while config is updated
+   uint32_t config_len;
+   uint8_t config[SHM_RING_MAX_CONFIG]; /// Latest SPS/PPS, a reader starting at keyframe_pos needs them first
+} SHM_RING_HEADER;
+
+/** Reader side state, private to the reading process
+ */
+typedef struct
+{
+   const SHM_RING_HEADER *hdr;
+   const uint8_t *data;
+   size_t map_size;
+   uint64_t pos;                        /// Next record to read
+   uint64_t lapped;                     /// Times the writer overtook us
+} SHM_READER;
+
+/**
+ * Map the ring of raspivid -o shm://name read only, reading starts at the latest key frame
+ * @return false if there is no such ring
+ */
+static inline bool shm_reader_open(SHM_READER *r, const char *name)
+{
+   char path[NAME_MAX];
+   struct stat st;
+   int fd;
+
+   memset(r, 0, sizeof(*r));
+   snprintf(path, sizeof(path), "/%s", name);
+   if ((fd = shm_open(path, O_RDONLY, 0)) < 0)
+      return false;
+   if (fstat(fd, &st) || (st.st_size < (off_t) sizeof(SHM_RING_HEADER)))
+   {
+      close(fd);
+      return false;
+   }
+   r->map_size = st.st_size;
+   r->hdr = (const SHM_RING_HEADER *) mmap(NULL, r->map_size, PROT_READ, MAP_SHARED, fd, 0);
+   close(fd);
+   if (r->hdr == MAP_FAILED)
+      return false;
+   if ((r->hdr->magic != SHM_RING_MAGIC) || (r->hdr->version != SHM_RING_VERSION) ||
+       ((size_t) r->hdr->header_size + r->hdr->data_size > r->map_size))
+   {
+      munmap((void *) r->hdr, r->map_size);
+      return false;
+   }
+   r->data = (const uint8_t *) r->hdr + r->hdr->header_size;
+   r->pos = __atomic_load_n(&r->hdr->keyframe_pos, __ATOMIC_ACQUIRE);
+   return true;
+}
+
+static inline void shm_reader_close(SHM_READER *r)
+{
+   munmap((void *) r->hdr, r->map_size);
+}
+
+/**
+ * Copy the latest SPS/PPS
+ * @return Bytes copied, 0 if none were written yet or they do not fit
+ */
+static inline uint32_t shm_reader_config(const SHM_READER *r, uint8_t *buf, uint32_t size)
+{
+   uint32_t seq, len;
+
+   do
+   {
+      while ((seq = __atomic_load_n(&r->hdr->config_seq, __ATOMIC_ACQUIRE)) & 1)
+         ;
+      len = r->hdr->config_len;
+      if (len > size)
+         return 0;
+      memcpy(buf, r->hdr->config, len);
+      __atomic_thread_fence(__ATOMIC_ACQUIRE);
+   } while (seq != __atomic_load_n(&r->hdr->config_seq, __ATOMIC_RELAXED));
+   return len;
+}
+
+/**
+ * Wait for the next record and return it in place
+ * @param timeout_ms Max wait, -1 = forever
+ * @return The record, NULL on timeout or if the writer overtook us (reading goes on at the latest key frame)
+ */
+static inline const SHM_RECORD *shm_reader_next(SHM_READER *r, int timeout_ms)
+{
+   const SHM_RING_HEADER *hdr = r->hdr;
+
+   for (;;)
+   {
+      uint32_t futex = __atomic_load_n(&hdr->futex, __ATOMIC_ACQUIRE);
+      uint64_t write_pos = __atomic_load_n(&hdr->write_pos, __ATOMIC_ACQUIRE);
+
+      if (write_pos < r->pos)
+         r->pos = write_pos;//raspivid restarted
+      if (write_pos - r->pos > hdr->data_size)
+      {
+         r->lapped++;
+         r->pos = __atomic_load_n(&hdr->keyframe_pos, __ATOMIC_ACQUIRE);
+         return NULL;
+      }
+      if (write_pos == r->pos)
+      {
+         struct timespec ts = { timeout_ms / 1000, (timeout_ms % 1000) * 1000000L };
+         if (syscall(SYS_futex, &hdr->futex, FUTEX_WAIT, futex, (timeout_ms < 0) ? NULL : &ts, NULL, 0) &&
+             (timeout_ms >= 0) && (__atomic_load_n(&hdr->write_pos, __ATOMIC_ACQUIRE) == r->pos))
+            return NULL;
+         continue;
+      }
+
+      uint64_t offset = r->pos % hdr->data_size;
+      if (hdr->data_size - offset < sizeof(SHM_RECORD))
+      {//no room for a record header before the end of the ring
+         r->pos += hdr->data_size - offset;
+         continue;
+      }
+      const SHM_RECORD *rec = (const SHM_RECORD *)(r->data + offset);
+      if ((rec->pos != r->pos) || (rec->length > hdr->data_size - offset - sizeof(SHM_RECORD)))
+      {//overwritten between the two loads, do not let a garbage length point outside the ring
+         r->lapped++;
+         r->pos = __atomic_load_n(&hdr->keyframe_pos, __ATOMIC_ACQUIRE);
+         return NULL;
+      }
+      if (rec->flags & SHM_RECORD_FLAG_PAD)
+      {
+         r->pos += hdr->data_size - offset;
+         continue;
+      }
+      return rec;
+   }
+}
+
+/**
+ * Finish a record returned by shm_reader_next() and move on to the next one
+ * @return false if the writer overwrote the record while it was used
+ */
+static inline bool shm_reader_done(SHM_READER *r, const SHM_RECORD *rec)
+{
+   uint64_t pos = r->pos;
+   bool bValid;
+
+   __atomic_thread_fence(__ATOMIC_ACQUIRE);
+   bValid = (rec->pos == pos) &&
+            (__atomic_load_n(&r->hdr->reserve_pos, __ATOMIC_ACQUIRE) - pos <= r->hdr->data_size);
+   if (bValid)
+      r->pos = pos + SHM_RECORD_SIZE(rec->length);
+   else
+   {
+      r->lapped++;
+      r->pos = __atomic_load_n(&r->hdr->keyframe_pos, __ATOMIC_ACQUIRE);
+   }
+   return bValid;
+}
+
+#endif /* RASPISHM_H_ */
@@ -59,6 +59,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <strings.h>
 #include <memory.h>
 #include <sysexits.h>
 
@@ -66,6 +67,33 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #include <sys/socket.h>
 #include <netinet/in.h>
 #include <arpa/inet.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <time.h>
+#include <pthread.h>
+#include <sys/uio.h>
+#include <sys/ioctl.h>
+#include <netinet/tcp.h>
+#include <netinet/ip.h>
+#include <linux/errqueue.h>
+
+#ifndef SO_ZEROCOPY
+   #define SO_ZEROCOPY 60
+#endif
+#ifndef MSG_ZEROCOPY
+   #define MSG_ZEROCOPY 0x4000000
+#endif
+#ifndef SO_EE_ORIGIN_ZEROCOPY
+   #define SO_EE_ORIGIN_ZEROCOPY 5
+#endif
+#ifndef TCP_NOTSENT_LOWAT
+   #define TCP_NOTSENT_LOWAT 25
+#endif
+#ifndef TCP_USER_TIMEOUT
+   #define TCP_USER_TIMEOUT 18
+#endif
 
 #define VERSION_STRING "v1.3.12"
 
@@ -83,6 +111,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #include "RaspiCamControl.h"
 #include "RaspiPreview.h"
 #include "RaspiCLI.h"
+#include "RaspiShm.h"
 
 #include <semaphore.h>
 
@@ -128,56 +157,621 @@ const int ABORT_INTERVAL = 100; // ms
 
 int mmal_status_to_int(MMAL_STATUS_T status);
 void my_annotate (MMAL_COMPONENT_T *camera, const char *string);
-static void encoder_buffer_callback_raw_tcp(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer);
-static void encoder_buffer_callback_android_dimon(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer);
-static void encoder_buffer_callback_android_motion(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer);
-static void encoder_buffer_callback_android(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer);
+static void encoder_pipeline_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer);
 
-static struct
+MMAL_PORT_T *camera_preview_port = NULL;
+MMAL_PORT_T *camera_video_port = NULL;
+MMAL_PORT_T *encoder_output_port = NULL;
+MMAL_PORT_T *preview_input_port = NULL;
+MMAL_PORT_T *encoder_input_port = NULL;
+
+// Forward
+typedef struct RASPIVID_STATE_S RASPIVID_STATE;
+typedef struct PORT_USERDATA_S PORT_USERDATA;
+
+/// Upper limit of viewers served at the same time in fan-out mode
+#define NET_MAX_CLIENTS 16
+/// Chunks a viewer may have pending before it is considered too slow and dropped
+#define NET_CLIENT_QUEUE_LEN 64
+
+/// Chunk starts a key frame, a new viewer may start playing from here
+#define NET_CHUNK_FLAG_KEYFRAME (1<<0)
+/// Chunk carries SPS/PPS, it is remembered and sent first to every new viewer
+#define NET_CHUNK_FLAG_CONFIG   (1<<1)
+/// Chunk is an RTSP reply, it is never dropped
+#define NET_CHUNK_FLAG_CONTROL  (1<<2)
+
+/// Released chunks a hub keeps for reuse, so the per frame path does not allocate
+#define NET_SPARE_CHUNKS 8
+
+/** One protocol message (frame, SPS/PPS, motion info...) shared by all viewer queues
+ */
+typedef struct
 {
-   const char* strCallbackName;
-   void* pCallbackFunc;
-} callback_modes[] =
+   int refcnt;                          /// Number of queues still referencing the chunk, protected by NET_HUB::lock
+   struct NET_HUB_S *owner;             /// Hub that takes the chunk back for reuse when released, NULL = free() it
+   uint32_t flags;                      /// NET_CHUNK_FLAG_xxx
+   uint32_t length;                     /// Valid bytes in data
+   uint32_t size;                       /// Allocated bytes in data
+   unsigned char data[];
+} NET_CHUNK;
+
+/** A connected viewer in fan-out mode
+ */
+typedef struct
 {
-      {"raw_tcp",        encoder_buffer_callback_raw_tcp},
-      {"android_dimon",  encoder_buffer_callback_android_dimon},
-      {"android_motion", encoder_buffer_callback_android_motion},
-      {"android",        encoder_buffer_callback_android},
-};
+   int fd;                              /// Socket, -1 if the slot is free
+   struct sockaddr_in addr;             /// Peer address, for logging
+   NET_CHUNK *queue[NET_CLIENT_QUEUE_LEN]; /// Ring of chunks waiting to be sent
+   unsigned int q_rd;                   /// Read index into queue
+   unsigned int q_wr;                   /// Write index into queue
+   uint32_t chunk_offset;               /// Bytes of queue[q_rd] already sent
+   uint32_t queued_bytes;               /// Bytes of all chunks in queue
+   uint32_t peak_queued_bytes;          /// Highest queued_bytes seen
+   uint64_t chunks_sent;                /// Chunks completely sent: frames, motion and alarm messages...
+   uint64_t chunks_dropped;             /// Chunks thrown away because the viewer could not keep up
+   bool bStarted;                       /// Set once the viewer got its first key frame
+   bool bDrop;                          /// Set by the encoder callback if the viewer can not keep up
+   bool bResync;                        /// Frames were dropped, waiting for the next key frame
+   bool bIdle;                          /// Chunks are not queued for this viewer: no RTSP PLAY yet or RTP goes over UDP, no /live.mp4 or WebSocket handshake yet
+   bool bPlaying;                       /// rtsp: PLAY received
+   struct sockaddr_in rtp_addr;         /// rtsp: RTP over UDP goes here, port 0 = interleaved on the RTSP connection
+   uint32_t session_id;                 /// rtsp: Session header value, 0 before SETUP
+   uint32_t cmd_skip;                   /// rtsp: bytes of an interleaved packet or request body still to be discarded
+   bool bWaiting;                       /// http: request is parked until the part it asks for is there
+   char request[128];                   /// http: path of the parked request
+   char cmd_buf[2048];                  /// Partial command line (RTSP request) received from the viewer
+   int cmd_len;
+} NET_CLIENT;
+
+/** Queued output state: the encoder callback produces chunks, the main thread sends them to every viewer.
+ *  Used for fan-out mode and for latency first sending to a single viewer.
+ */
+typedef struct NET_HUB_S
+{
+   int listen_fd;                       /// Socket we keep accepting viewers on, -1 if serving a single connection
+   int wake_pipe[2];                    /// Written by the encoder callback to wake up the main thread
+   int max_clients;                     /// Number of slots in use out of NET_MAX_CLIENTS
+   uint32_t max_queue_bytes;            /// Per viewer queue limit, on overflow frames are dropped up to the next key frame. 0 = no limit
+   bool bKeyframeRequest;               /// Set by the encoder callback, the main thread asks the encoder for an I-frame
+   bool bTakeOver;                      /// When all slots are used a new viewer takes over the first one instead of being rejected
+   uint32_t profile_bitrate;            /// != 0: apply the low latency socket profile to new viewers, sized for this bitrate
+   bool bRtsp;                          /// Viewers talk RTSP, see rtsp_client_read()
+   bool bHttp;                          /// Viewers talk HTTP, see http_client_read()
+   bool bWebSocket;                     /// Viewers talk WebSocket, see ws_client_read()
+   uint64_t chunks_dropped;             /// Dropped chunks of all viewers, including disconnected ones
+   pthread_mutex_t lock;                /// Protects clients[] and chunk reference counters
+   NET_CLIENT clients[NET_MAX_CLIENTS];
+   NET_CHUNK *config;                   /// Latest SPS/PPS
+   bool bLastWasConfig;                 /// Previous committed chunk was SPS/PPS too (they may come in several buffers)
+   NET_CHUNK *pending;                  /// Chunk being assembled by the encoder callback, not shared yet
+   NET_CHUNK *spare[NET_SPARE_CHUNKS];  /// Released chunks for reuse
+   int spare_cnt;
+} NET_HUB;
+
+/// Max encoder buffers an access unit holds without copying, see AU_STATE
+#define AU_MAX_FRAGMENTS 8
+/// Default max size of an access unit, larger ones are dropped up to the next key frame
+#define AU_DEFAULT_BUDGET_KB 4096
+/// Max pieces of one protocol message (type, length, SPS/PPS or the fragments of a frame)
+#define OUTPUT_MAX_IOV (AU_MAX_FRAGMENTS + 8)
+/// Max frames waiting for MSG_ZEROCOPY completion, each holds the encoder buffers of an access unit
+#define ZEROCOPY_MAX_PENDING 4
+
+/** A frame sent with MSG_ZEROCOPY, its encoder buffers are returned once the kernel is done with them
+ */
+typedef struct
+{
+   uint32_t last_id;                    /// Notification id of the last sendmsg() of the frame
+   MMAL_BUFFER_HEADER_T *buffers[AU_MAX_FRAGMENTS + 1];/// Encoder buffers holding the frame
+   int count;                           /// Buffers in use, 0 = free slot
+   unsigned char prefix[16];            /// Copy of type and length fields, the stack is gone when the kernel reads them
+} ZEROCOPY_FRAME;
+
+/// RTP payload type used for H.264, dynamic range
+#define RTP_PAYLOAD_TYPE_H264 96
+/// Size of the fixed RTP header
+#define RTP_HEADER_SIZE 12
+/// Packets collected before they go out with one sendmmsg()
+#define RTP_BATCH 32
+/// Default max RTP packet size (UDP payload), fits into an Ethernet frame with room for tunnels
+#define RTP_DEFAULT_MTU 1400
+/// RTP payload type of the XOR parity packets
+#define RTP_PAYLOAD_TYPE_FEC 127
+/// FEC header behind the RTP header: base seq(2) count(1) reserved(1) length xor(2) M/PT xor(1) reserved(1) timestamp xor(4)
+#define RTP_FEC_HEADER_SIZE 12
+/// Max media packets protected by one parity packet
+#define RTP_FEC_MAX_GROUP 32
+/// Sent packets kept for retransmission, power of 2
+#define RTP_HISTORY_SLOTS 1024
+/// RTCP transport layer feedback (RFC 4585) and its generic NACK format
+#define RTCP_PT_RTPFB 205
+#define RTCP_FMT_NACK 1
+/// Longest SPS or PPS kept for the SDP of rtsp mode
+#define RTSP_MAX_PARAM_SET 64
+/// Interleaved channel of RTP over the RTSP connection, RTCP would be the next one
+#define RTSP_CHANNEL_RTP 0
+/// Session timeout announced to RTSP clients, they send keepalives in this interval
+#define RTSP_SESSION_TIMEOUT 60
+
+/** RFC 6184 packetizer state for the rtp mode
+ */
+typedef struct
+{
+   uint16_t seq;                        /// Sequence number of the next packet
+   uint32_t ssrc;                       /// Synchronization source of our stream
+   uint32_t timestamp;                  /// 90kHz timestamp of the current access unit
+   bool bFrameStart;                    /// Next buffer starts a new access unit
+   uint32_t mtu;                        /// Max RTP packet size, header included
+   bool bCarry;                         /// A NAL unit started in an earlier buffer of a partial frame, carry may still be empty
+   unsigned char *carry;                /// Bytes of that NAL unit so far
+   uint32_t carry_len;
+   uint32_t carry_size;
+   unsigned char *config;               /// SPS/PPS (Annex-B) held back to go out with the timestamp of the next frame
+   uint32_t config_len;
+   uint32_t config_size;
+   int fec_group;                       /// Media packets per parity packet, 0 = no FEC
+   int fec_cnt;                         /// Media packets in the current group
+   uint16_t fec_base;                   /// Sequence number of the first packet of the group
+   uint32_t fec_ssrc;                   /// Synchronization source of the parity stream, separate from the media one
+   uint16_t fec_seq;                    /// Sequence number of the parity stream
+   uint16_t fec_len_xor;                /// XOR of the payload lengths
+   unsigned char fec_mpt_xor;           /// XOR of the M/PT header bytes
+   uint32_t fec_ts_xor;                 /// XOR of the timestamps
+   uint32_t fec_max_len;                /// Longest payload in the group
+   unsigned char *fec_xor;              /// XOR of the payloads, mtu bytes
+   int64_t nack_deadline;               /// Packets older than this (us) are not resent, 0 = no retransmission
+   pthread_mutex_t hist_lock;           /// History is filled by the encoder callback and read by the NACK handler
+   unsigned char *hist;                 /// RTP_HISTORY_SLOTS sent packets of mtu bytes, header included
+   uint32_t hist_len[RTP_HISTORY_SLOTS];
+   uint16_t hist_seq[RTP_HISTORY_SLOTS];
+   int64_t hist_time[RTP_HISTORY_SLOTS];/// When the packet was first sent
+   unsigned int resent;                 /// Retransmitted packets
+   unsigned int expired;                /// NACKed packets not resent, too old or out of the history
+   int batch_cnt;                       /// Packets waiting in the batch
+   unsigned char batch_hdr[RTP_BATCH][RTP_HEADER_SIZE + RTP_FEC_HEADER_SIZE]; /// RTP header plus FU indicator and FU header or FEC header
+   struct iovec batch_iov[RTP_BATCH][2];/// Header and payload of every packet
+   struct mmsghdr batch_msg[RTP_BATCH];
+   NET_HUB *pHub;                       /// rtsp mode: packets go to the viewers of the hub instead of a connected socket
+   unsigned char sps[RTSP_MAX_PARAM_SET];/// rtsp mode: latest SPS and PPS for the SDP, protected by NET_HUB::lock
+   uint32_t sps_len;
+   unsigned char pps[RTSP_MAX_PARAM_SET];
+   uint32_t pps_len;
+} RTP_STATE;
+
+/// Segments kept for LL-HLS, older ones are evicted. The oldest listed one is HLS_SEGMENTS - 3 back, so a
+/// player still downloading a segment that just left the playlist gets it
+#define HLS_SEGMENTS 8
+/// Max parts of a segment, a segment only ends at a key frame: 12.8s for an encoder slow to give one,
+/// after that the last part grows
+#define HLS_MAX_PARTS 64
+/// Target duration of a partial segment
+#define HLS_PART_US 200000
+/// Target duration of a segment, the first key frame from one part before it starts the next one
+#define HLS_SEGMENT_US 1000000
+/// fMP4 media timescale, the 90kHz clock of video
+#define FMP4_TIMESCALE 90000
+
+/** Growing byte buffer the fMP4 boxes are written into
+ */
+typedef struct
+{
+   unsigned char *data;
+   uint32_t length;
+   uint32_t size;
+} FMP4_BUF;
+
+/** Access unit (frame) of the length prefixed android protocols and websocket, collected from any
+ * number of encoder buffers. Fragments are held and sent from the encoder buffers; when holding
+ * one more would leave the encoder without a buffer, the held ones are copied into spill and returned.
+ */
+typedef struct
+{
+   FMP4_BUF spill;                      /// Copy of the first fragments, the held ones follow
+   MMAL_BUFFER_HEADER_T *buffers[AU_MAX_FRAGMENTS];/// Fragments held without copying, in order
+   int count;
+   uint32_t length;                     /// Bytes of the access unit so far, spilled and held
+   uint32_t mmal_flags;                 /// MMAL_BUFFER_HEADER_FLAG_xxx of all fragments
+   int64_t pts;                         /// Timestamp of the first fragment
+   uint32_t budget;                     /// Max bytes of an access unit
+   bool bDiscard;                       /// Current access unit went over budget, its fragments are dropped
+   bool bWaitKey;                       /// Access units are dropped up to the next key frame
+   uint32_t dropped;                    /// Access units dropped
+   uint32_t spilled;                    /// Access units that had to be copied
+} AU_STATE;
+
+/** One LL-HLS segment of the in-memory cache: moof/mdat fragments, one per frame, starting with a key frame
+ */
+typedef struct
+{
+   uint32_t msn;                        /// Media sequence number
+   FMP4_BUF buf;                        /// Fragments so far, the allocation is reused when the segment is evicted
+   int parts;                           /// Complete parts
+   uint32_t part_end[HLS_MAX_PARTS];    /// Offset in buf behind every complete part
+   uint32_t part_us[HLS_MAX_PARTS];     /// Duration of every complete part
+   bool part_independent[HLS_MAX_PARTS];/// Part starts with a key frame
+   int64_t duration_us;                 /// Duration of all fragments
+   bool bComplete;                      /// The next segment is being written
+} HLS_SEGMENT;
+
+/** fMP4 muxer and LL-HLS segment cache of the http mode. The encoder callback writes, the main thread serves,
+ *  init and segments are protected by NET_HUB::lock
+ */
+typedef struct
+{
+   FMP4_BUF init;                       /// Init segment (ftyp, moov), empty until SPS/PPS arrived
+   unsigned char sps[RTSP_MAX_PARAM_SET];
+   uint32_t sps_len;
+   unsigned char pps[RTSP_MAX_PARAM_SET];
+   uint32_t pps_len;
+   uint32_t width;
+   uint32_t height;
+   FMP4_BUF frame;                      /// Annex-B data of the frame being assembled, not shared
+   FMP4_BUF fragment;                   /// moof/mdat of the last frame, not shared
+   uint32_t fragment_seq;               /// mfhd sequence number of the last fragment, 0 before the first key frame
+   int64_t first_pts;                   /// Decode times count from here (us)
+   int64_t last_pts;
+   uint32_t frame_us;                   /// Duration of the last frame, used for the next one
+   HLS_SEGMENT segments[HLS_SEGMENTS];  /// Ring indexed by msn
+   uint32_t msn;                        /// Segment being written
+   uint32_t part_us;                    /// Duration of the open part
+   bool bPartIndependent;               /// Open part started with a key frame
+   int64_t keyframe_ask_us;             /// Segment duration at which the encoder is asked (again) for a key frame
+} FMP4_STATE;
+
+/// A recording fragment (MP4 moof/mdat, Matroska cluster) is cut at the first key frame after this
+#define REC_FRAGMENT_US 1000000
+/// ... and without a key frame after this, Matroska block timestamps are 16 bit ms
+#define REC_MAX_FRAGMENT_US 30000000
+/// Max frames of a fragment, the size of the sample table
+#define REC_MAX_SAMPLES 1024
+
+/// Recording files are written in multiples of this, at aligned offsets
+#define REC_WRITE_ALIGN 65536
+/// Output collected before it is written
+#define REC_WRITE_BYTES (4 * REC_WRITE_ALIGN)
+
+/// Default -writeq, file sinks queue at most this many KB for the writer thread
+#define WRITER_DEFAULT_KB 8192
+/// Max queued writes
+#define WRITER_MAX_DESC 256
+/// Descriptors writer_reserve() keeps free: a record fragment makes up to 3 pushes, each takes 2 when it wraps
+#define WRITER_RESERVE_DESC 8
+/// Default -netq, KB
+#define NET_WRITER_DEFAULT_KB 4096
+/// Room frames leave in the -netq queue for SPS/PPS, also the size of the slot they wait in when it is full
+#define NET_WRITER_CONFIG_ROOM 1024
+
+/** One write queued for the writer thread
+ */
+typedef struct
+{
+   uint64_t end;                        /// Data ring position after the data
+   uint32_t length;                     /// Bytes, they do not wrap around the ring end
+   int fd;
+   int64_t queued_us;                   /// Time it was queued, for the latency metric
+} WRITER_DESC;
+
+/** Writer thread of the file sinks and of a single network connection (-netq). The encoder callback copies
+ *  its output into a ring and queues a descriptor, the thread does the write(), so a slow SD card or link
+ *  does not hold the encoder buffers.
+ *  There is one producer and one consumer: positions are handed over with atomics, each side only
+ *  writes its own, and futexes wake a side that waits.
+ */
+typedef struct
+{
+   uint8_t *data;                       /// Data ring, its size is the memory cap
+   uint32_t size;
+   bool bWait;                          /// -writewait: a full queue makes the callback wait instead of dropping
+   bool bSocket;                        /// Writes go to a connected socket, a closed connection stops the program
+   WRITER_DESC desc[WRITER_MAX_DESC];
+   uint32_t desc_tail;                  /// Next descriptor to fill, written by the callback
+   uint32_t desc_head;                  /// Next descriptor to write, written by the thread, futex
+   uint64_t data_tail;                  /// Data ring end, written by the callback
+   uint64_t data_head;                  /// Data ring start, written by the thread
+   uint32_t wake;                       /// Futex the thread sleeps on, bumped by every push
+   bool bQuit;
+   pthread_t thread;
+   uint64_t queued_peak;                /// Metrics: most bytes queued
+   uint64_t written;                    /// Bytes written
+   uint32_t writes;
+   uint32_t last_latency_us;            /// Queue time plus write() of the last write
+   uint32_t max_latency_us;
+   uint64_t dropped;                    /// Bytes dropped because the disk fell behind
+   uint32_t drops;                      /// ... in this many pieces
+} FILE_WRITER;
+
+/** Segment files of the record mode. The thread opens and preallocates the next file ahead and
+ *  truncates, fsyncs and closes finished ones, the encoder callback only ever writes.
+ */
+typedef struct
+{
+   const char *pattern;                 /// -o name, %d is replaced by the segment number
+   int number;                          /// Segment being written
+   int wrap;                            /// Numbers go back to 1 after this, 0 = no wrap
+   int64_t time_us;                     /// Start a new segment at the first key frame after this long, 0 = no limit
+   uint64_t bytes;                      /// ... or after this size, 0 = no limit
+   uint64_t prealloc;                   /// Bytes fallocate()d beyond the end of every file
+   off_t size;                          /// Size the segment being written had before, -wrap reuses files
+   pthread_t thread;
+   pthread_mutex_t lock;                /// Protects the fields below
+   pthread_cond_t cond;
+   int next_fd;                         /// Next segment, opened and preallocated, -1 while being prepared
+   off_t next_size;                     /// Size the next file had before, restored if it is not used
+   int close_fd;                        /// Finished segment for the thread, -1 if none
+   uint64_t close_len;                  /// Bytes written to it
+   off_t close_size;                    /// Size it had before, the old end is cut off if it was longer
+   uint32_t close_seq;                  /// Its last write is queued before this writer position
+   FILE_WRITER *writer;                 /// Writer thread of the recording, NULL if the callback writes
+   bool bQuit;
+} SEG_STATE;
+
+/** One frame of the open recording fragment
+ */
+typedef struct
+{
+   uint32_t size;                       /// Sample bytes in REC_STATE::media
+   uint32_t time_us;                    /// Timestamp relative to the fragment start
+   bool bKeyframe;
+} REC_SAMPLE;
 
-static int callback_modes_count = sizeof(callback_modes) / sizeof(callback_modes[0]);
+/** MP4 / Matroska recorder of the record mode. Samples are kept for one fragment and then written,
+ *  the file is complete up to the last fragment at any time.
+ */
+typedef struct
+{
+   FMP4_STATE fmp4;                     /// SPS/PPS, init segment and the moof being written
+   bool bMatroska;                      /// Matroska instead of fragmented MP4
+   int fd;                              /// Output file
+   FILE *pts_file;                      /// -save-pts timecode file, NULL if not written
+   FMP4_BUF media;                      /// Samples of the open fragment, 4 byte NAL lengths
+   FMP4_BUF out;                        /// Output not written yet, see rec_flush()
+   uint64_t written;                    /// Bytes written to the current file
+   FILE_WRITER *writer;                 /// Writes go through the writer thread, NULL = write() in the callback
+   bool bDropping;                      /// The write queue was full, fragments are dropped up to one with a key frame first
+   bool bSegments;                      /// seg is in use
+   SEG_STATE seg;
+   int64_t seg_start_pts;               /// Encoder time the current segment started
+   int64_t pts_origin;                  /// Encoder time of the first recorded frame, for the -save-pts file
+   REC_SAMPLE samples[REC_MAX_SAMPLES];
+   int sample_cnt;
+   int64_t start_pts;                   /// Encoder time of the open fragment (us)
+   int64_t last_pts;
+   bool bStarted;                       /// Header of the current file is written, it needs SPS/PPS and a key frame first
+} REC_STATE;
+
+/// Pre-event ring record flag: nothing follows up to the end of the ring, continue at its start
+#define CIRC_FLAG_PAD 0x80000000
+/// Max GOPs the pre-event ring keeps
+#define CIRC_MAX_GOPS 64
+/// Default -postroll, ms
+#define CIRC_DEFAULT_POSTROLL_MS 5000
+
+/** One frame in the pre-event ring, the Annex-B data follows, records are 8 byte aligned
+ */
+typedef struct
+{
+   uint32_t length;                     /// Data bytes
+   uint32_t flags;                      /// NET_CHUNK_FLAG_xxx of the frame, or CIRC_FLAG_PAD
+   int64_t pts;                         /// Encoder timestamp in us
+} CIRC_FRAME;
 
-void print_callbacks()
+#define CIRC_FRAME_SIZE(length) ((sizeof(CIRC_FRAME) + (length) + 7) & ~(uint64_t)7)
+
+/** Pre-event ring of the record mode (-circular). Until motion triggers, complete GOPs are kept in a
+ *  fixed ring and the oldest GOP is evicted as a whole, so the recording always starts at a key frame.
+ */
+typedef struct
 {
-   int i;
-   for(i = 0; i < callback_modes_count; i++)
-      fprintf(stderr, "%s\n", callback_modes[i].strCallbackName);
-}
+   uint8_t *data;                       /// Ring memory, NULL if frames go straight to the recorder
+   uint32_t size;                       /// Ring bytes, multiple of 8
+   uint64_t head;                       /// Ring position of the oldest frame, positions count bytes
+   uint64_t tail;                       /// End of the newest frame
+   uint64_t gop[CIRC_MAX_GOPS];         /// Ring positions of the key frames, oldest first
+   int64_t gop_pts[CIRC_MAX_GOPS];      /// ... and their times
+   int gop_cnt;
+   bool bSkipGop;                       /// The current GOP does not fit, its frames are dropped up to the next key frame
+   bool bWarned;                        /// Told the user the ring is too small
+   int64_t pre_us;                      /// Keep the GOPs that cover this long before the newest frame, 0 = as many as fit
+   int64_t post_us;                     /// Recording goes on this long after the last frame with motion
+   int64_t last_pts;                    /// Time of the newest frame
+   int64_t motion_pts;                  /// Time of the last frame with motion
+   bool bRecording;                     /// Triggered, frames go to the recorder
+   uint32_t events;                     /// Recordings started so far
+} CIRC_STATE;
+
+/// MPEG-TS packet size
+#define TS_PACKET 188
+/// TS packets in one UDP datagram, 7 * 188 bytes fit an Ethernet MTU
+#define TS_UDP_PACKETS 7
+/// File output is written in pieces of this many packets
+#define TS_FILE_PACKETS 512
+#define TS_PID_PMT 0x1000
+#define TS_PID_VIDEO 0x100
+/// PAT/PMT are repeated with every key frame and at least this often, 90kHz
+#define TS_PSI_INTERVAL 9000
+/// PTS lead over the PCR, time the decoder may buffer a frame, 90kHz
+#define TS_PTS_DELAY 9000
+
+/** MPEG-TS muxer of the ts mode, one H264 PES per frame
+ */
+typedef struct
+{
+   FMP4_BUF config;                     /// SPS/PPS, sent in front of every key frame
+   bool bLastWasConfig;                 /// The next config buffer adds to config instead of replacing it
+   FMP4_BUF frame;                      /// Annex-B data of the frame being assembled
+   FMP4_BUF out;                        /// Packets not sent or written yet
+   uint8_t cc_pat;                      /// Continuity counters
+   uint8_t cc_pmt;
+   uint8_t cc_video;
+   int64_t first_pts;                   /// Timestamps count from here (us), MMAL_TIME_UNKNOWN before the first frame
+   int64_t last_pts;
+   int64_t psi_time;                    /// 90kHz time PAT/PMT were sent last
+   uint32_t frame_us;                   /// Frame duration, used when the encoder gives no pts
+   int fd;                              /// udp:// socket or file, -1 if the output goes through OutputData()
+   bool bDatagram;                      /// fd is a UDP socket
+   FILE_WRITER *writer;                 /// File writes go through the writer thread, NULL = write() in the callback
+} TS_STATE;
+
+/// Backlog the adaptive bitrate controller tolerates, in ms of stream at the current bitrate
+#define ABR_TARGET_MS 100
+/// Min time between two bitrate cuts, the encoder needs a few frames to follow
+#define ABR_HOLD_US 300000
+/// Time without congestion before the bitrate is raised again
+#define ABR_PROBE_US 2000000
+
+/** Adaptive bitrate controller, sampled at every frame end
+ */
+typedef struct
+{
+   uint32_t floor;                      /// Bitrate limits in bits/s, ceiling 0 = controller off
+   uint32_t ceiling;
+   uint32_t current;                    /// Bitrate the encoder runs with
+   int down_pct;                        /// Cut by this percentage on congestion
+   int up_pct;                          /// Raise by this percentage after ABR_PROBE_US without congestion
+   int64_t send_us;                     /// Time blocked in send calls since the last frame end
+   int64_t last_frame;                  /// Time of the last frame end
+   int64_t last_change;                 /// Time of the last bitrate change
+   int64_t clear_since;                 /// Start of the current stretch without congestion
+   uint32_t backlog;                    /// Unsent bytes at the last frame end
+} ABR_STATE;
+
+/// Default size of the shm:// ring
+#define SHM_DEFAULT_SIZE_MB 8
+
+/** Writer side of the shm:// ring, see RaspiShm.h
+ */
+typedef struct
+{
+   SHM_RING_HEADER *hdr;                /// Mapping, NULL if not in use
+   uint8_t *data;                       /// Ring data behind the header
+   size_t map_size;
+   bool bFrameStart;                    /// Next picture buffer starts a frame
+   uint64_t frame_start;                /// Position of the first record of the current frame
+   bool bLastWasConfig;                 /// Previous buffer was SPS/PPS too, config is concatenated
+   uint64_t records_dropped;            /// Buffers too large for the ring
+} SHM_OUTPUT;
+
+/// Encoder output pool when -encbuf is not given
+#define ENCODER_DEFAULT_BUFFERS 2
+#define ENCODER_DEFAULT_BUFFER_KB 1024
+/// -encbuf auto: buffers never smaller than this
+#define ENCODER_AUTO_MIN_KB 64
+/// -encbuf auto: headroom over the measured peak frame in percent
+#define ENCODER_AUTO_PEAK_PCT 125
+
+/** Occupancy of the encoder output pool, see encoder_pool_count()
+ */
+typedef struct
+{
+   uint32_t num;                        /// Buffers in the pool
+   uint32_t size;                       /// Bytes per buffer
+   volatile uint32_t held;              /// Buffers handed to the application and not released yet
+   uint32_t held_peak;                  /// Max of held, held_peak == num means the encoder ran dry
+   uint32_t frame_bytes;                /// Picture bytes of the current frame so far
+   uint32_t frame_buffers;              /// Buffers of the current frame so far
+   uint32_t frame_peak;                 /// Largest frame in bytes
+   uint64_t frames;
+   uint64_t split_frames;               /// Frames that did not fit into one buffer
+} ENCODER_POOL_STATS;
+
+/// Max -zone options
+#define MOTION_MAX_ZONES 8
+/// Largest squared motion vector length, 2 * 128 * 128
+#define MOTION_MAX_SQ 32768
+
+/** One motion zone
+ */
+typedef struct
+{
+   int threshold;                       /// A block is active if its motion is above, 0 = the -trigger level
+   int minBlocks;                       /// Active blocks the zone needs to score and to raise the alarm
+   uint32_t blocks;                     /// Macroblocks in the zone
+} MOTION_ZONE;
 
-void* find_callback_by_name(const char* _strCallbackName)
+/** Motion zones rasterised to the macroblock grid, see motion_zones_score()
+ */
+typedef struct
 {
-   int i;
-   for(i = 0; i < callback_modes_count; i++)
-   {
-      if(0 == strcmp(callback_modes[i].strCallbackName, _strCallbackName))
-         return callback_modes[i].pCallbackFunc;
-   }
-   return 0;
-}
+   MOTION_ZONE zone[MOTION_MAX_ZONES];
+   int count;                           /// 0 = motion of the whole frame
+   int mbx;
+   uint8_t *mask;                       /// Per macroblock, bit z = the block is in zone z
+   uint8_t *above;                      /// Per squared vector length, bit z = motion above the threshold of zone z
+   int aboveAlarm;                      /// gMotionAlarm the above table was made for
+   uint8_t score[MOTION_MAX_ZONES];     /// Of the last frame
+} MOTION_ZONES;
+
+/// Max objects reported per frame
+#define MOTION_MAX_BLOBS 16
+
+/** A moving object: 8-connected macroblocks with vectors longer than the -blob threshold
+ */
+typedef struct
+{
+   uint8_t x0, y0, x1, y1;              /// Bounding box in macroblocks, inclusive
+   uint16_t area;                       /// Macroblocks
+   int8_t vx, vy;                       /// Mean vector as the encoder gives it
+   uint8_t motion;                      /// Length of the longest vector
+} MOTION_BLOB;
 
-MMAL_PORT_T *camera_preview_port = NULL;
-MMAL_PORT_T *camera_video_port = NULL;
-MMAL_PORT_T *encoder_output_port = NULL;
-MMAL_PORT_T *preview_input_port = NULL;
-MMAL_PORT_T *encoder_input_port = NULL;
+/** Sums of a blob being labelled, kept at the root label
+ */
+typedef struct
+{
+   uint16_t x0, y0, x1, y1;
+   uint32_t area;
+   int32_t sum_x, sum_y;
+   uint32_t max_sq;
+} MOTION_BLOB_ACC;
 
-// Forward
-typedef struct RASPIVID_STATE_S RASPIVID_STATE;
+/** Connected component labelling of the vector field, see motion_blobs_find()
+ */
+typedef struct
+{
+   int minBlocks;                       /// Blocks of an object, 0 = no blob analysis
+   int threshold;                       /// A block is active if its motion is above, 0 = the -trigger level
+   uint16_t *parent;                    /// Union-find forest of the labels
+   uint16_t *rows;                      /// Labels of the row above and of the current row, 0 = not active
+   MOTION_BLOB_ACC *acc;                /// Per label
+   int count;                           /// Objects of the last frame in blob[], largest first
+   MOTION_BLOB blob[MOTION_MAX_BLOBS];
+} MOTION_BLOBS;
+
+/** An encoder buffer on its way through the pipeline, see encoder_pipeline_callback()
+ */
+typedef struct
+{
+   MMAL_BUFFER_HEADER_T *buffer;
+   bool bConfig;                        /// SPS/PPS
+   bool bVectors;                       /// Inline motion vectors of the frame before
+   bool bFrameEnd;                      /// H264 data that ends a frame
+   unsigned char motion;                /// Motion in the vectors, set by the motion analyser
+   bool bAlarm;                         /// ... which decided it is an alarm: above -trigger, a zone scored or an object moved
+   bool bHeld;                          /// A sink keeps the buffer and returns it to the encoder itself
+} ENCODER_BUFFER;
+
+/** Sink stage of the pipeline: sends, muxes or records the buffers of one output
+ */
+typedef void (*ENCODER_SINK)(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+
+/// Max sinks of the pipeline
+#define PIPELINE_MAX_SINKS 2
 
 /** Struct used to pass information in encoder port userdata to callback
  */
-typedef struct
+struct PORT_USERDATA_S
 {
+   NET_HUB *pHub;                       /// Fan-out hub, NULL if a single connection is served directly
+   SHM_OUTPUT *pShm;                    /// shm:// ring, NULL if not in use
+   struct iovec iov[OUTPUT_MAX_IOV];    /// Pieces of the message being assembled for a single connection
+   int iovcnt;
+   size_t iovlen;                       /// Total bytes in iov
+   uint32_t zerocopyMin;                /// Send key frames of at least this size with MSG_ZEROCOPY, 0 = off
+   pthread_mutex_t zerocopyLock;        /// Protects zerocopy[] between the encoder callback and zerocopy_reaper()
+   ZEROCOPY_FRAME zerocopy[ZEROCOPY_MAX_PENDING];
+   uint32_t zerocopyNextId;             /// Notification id the kernel assigns to the next MSG_ZEROCOPY sendmsg()
+   uint32_t zerocopyDone;               /// Notification ids below this are completed
    int sockFD;
    FILE *file_handle;                   /// File handle to write buffer data to.
    RASPIVID_STATE *pstate;              /// pointer to our state in case required in callback
@@ -188,7 +782,30 @@ typedef struct
    int  header_wptr;
    long unsigned int ulValidCallbackCnt;
    int runTimeShowStat;
-} PORT_USERDATA;
+   uint32_t frameFlags;                 /// NET_CHUNK_FLAG_xxx collected over the buffers of the current frame
+   uint32_t wsMotionAt;                 /// websocket: offset of the motion byte of the message waiting for its motion vectors, 0 = none
+   uint32_t wsFlags;                    /// websocket: NET_CHUNK_FLAG_xxx of that message
+   bool bWsMotionFollows;               /// websocket: motion vectors came after the last frame, wait for them before sending
+   RTP_STATE rtp;                       /// Packetizer of the rtp mode
+   FMP4_STATE fmp4;                     /// Muxer and segment cache of the http mode
+   TS_STATE ts;                         /// Muxer of the ts mode
+   REC_STATE rec;                       /// Recorder of the record mode and of -record
+   CIRC_STATE circ;                     /// Pre-event ring in front of the recorder
+   FILE_WRITER writer;                  /// Writer thread of the ts file output, or of the connection with -netq
+   FILE_WRITER recWriter;               /// Writer thread of the recording
+   FILE_WRITER *pNetWriter;             /// -netq: messages are copied into writer and sent by its thread, NULL = sent in the callback
+   bool bNetDropping;                   /// -netq queue was full, messages are dropped up to the next key frame
+   unsigned char netConfig[NET_WRITER_CONFIG_ROOM];/// -netq: SPS/PPS message that did not fit, sent in front of the next key frame
+   uint32_t netConfigLen;
+   AU_STATE au;                         /// Access unit being collected by the android and websocket modes
+   ABR_STATE abr;                       /// Adaptive bitrate controller
+   ENCODER_POOL_STATS pool;             /// Encoder output pool occupancy
+   ENCODER_SINK sinks[PIPELINE_MAX_SINKS]; /// Pipeline sinks in call order, only the last may keep buffers
+   int sinkCnt;
+   bool bAnalyseMotion;                 /// The pipeline runs the motion analyser on inline motion vectors
+   MOTION_ZONES zones;                  /// -zone: the motion is the highest zone score
+   MOTION_BLOBS blobs;                  /// -blob: the motion is the longest vector of an object
+};
 
 /** Structure containing all state information for the current run
  */
@@ -215,11 +832,24 @@ struct RASPIVID_STATE_S
    int level;                          /// H264 level to use for encoding
    int waitMethod;                     /// Method for switching between pause and capture
 
+   int timeout;                        /// -t: ms to run with an output that sends no commands, 0 = until SIGINT/SIGTERM
    int onTime;                         /// In timed cycle mode, the amount of time the capture is on per cycle
    int offTime;                        /// In timed cycle mode, the amount of time the capture is off per cycle
 
    int segmentSize;                    /// Segment mode In timed cycle mode, the amount of time the capture is off per cycle
    int segmentWrap;                    /// Point at which to wrap segment counter
+   int segmentMB;                      /// Segment mode: also start a new segment after this many MB, 0 = no size limit
+   int circularMs;                     /// record mode: pre-roll of the pre-event ring, 0 with circularKB 0 = no ring
+   int circularKB;                     /// record mode: pre-event ring size, 0 = from the bitrate
+   int postRollMs;                     /// record mode: recording goes on this long after the last motion
+   int writeQueueKB;                   /// Memory cap of the file writer thread, 0 = the callback writes
+   bool bWriteWait;                    /// The callback waits for the writer thread instead of dropping
+   int netQueueKB;                     /// Memory cap of the network thread of a single connection, 0 = the callback sends
+   int encoderBuffers;                 /// Encoder output pool: number of buffers, 0 = ENCODER_DEFAULT_BUFFERS
+   int encoderBufferKB;                /// Encoder output pool: size of a buffer, 0 = ENCODER_DEFAULT_BUFFER_KB
+   bool bEncoderBufAuto;               /// Derive the encoder output pool from resolution, bitrate and encoderPeakKB
+   int encoderPeakKB;                  /// -encbuf auto: peak frame size measured by an earlier run, 0 = unknown
+   int maxFrameKB;                     /// android and websocket modes: larger frames are dropped up to the next key frame
    int segmentNumber;                  /// Current segment counter
    int splitNow;                       /// Split at next possible i-frame if set to 1.
    int splitWait;                      /// Switch if user wants splited files
@@ -244,21 +874,108 @@ struct RASPIVID_STATE_S
 
    int cameraNum;                       /// Camera number
    int settings;                        /// Request settings from the camera
+   bool bMotionBench;                   /// -motionbench: time DetectMotion() and exit
    int sensor_mode;			            /// Sensor mode. 0=auto. Check docs/forum for modes selected by other values.
    int intra_refresh_type;              /// What intra refresh type to use. -1 to not set.
    int frame;
    int save_pts;
+   const char *pts_filename;            /// -save-pts: frame timestamps are written here as mkvmerge timecodes v2
    int64_t starttime;
    int64_t lasttime;
 
    bool netListen;
+   int fanoutClients;                  /// Max viewers in fan-out mode, 0 = serve a single connection
+   int maxQueueKB;                     /// Latency first sending with this queue limit per viewer, 0 = blocking send
+   int zerocopyKB;                     /// MSG_ZEROCOPY for key frames of at least this size, 0 = off
+   NET_HUB hub;                        /// Fan-out state, used if fanoutClients != 0
+   bool bKeepAlive;                    /// Keep the camera running when the viewer disconnects
+   struct sockaddr_in keepAliveAddr;   /// Viewer to reconnect to in keepalive push mode
+   bool bLowLatency;                   /// Apply the low latency socket profile to network outputs
+   int shmSizeMB;                      /// Ring size of a shm:// output
+   SHM_OUTPUT shm;                     /// shm:// output
+   int mtu;                            /// Max RTP packet size in rtp mode
+   int fecGroup;                       /// rtp mode: one XOR parity packet per this many packets, 0 = off
+   int nackMs;                         /// rtp mode: resend NACKed packets up to this age, 0 = off
+   uint32_t abrFloor;                  /// Adaptive bitrate limits, abrCeiling 0 = fixed bitrate
+   uint32_t abrCeiling;
+   int abrDownPct;                     /// Adaptive bitrate steps in percent
+   int abrUpPct;
 
    int64_t i64FramesCnt;
    int64_t i64FramesSkip;
 
-   MMAL_PORT_BH_CB_T enc_cb_func;
+   ENCODER_SINK enc_sink;              /// Sink of the -m mode
+   bool bSinkMotion;                   /// That sink uses the motion of every frame
+   const char *recordFilename;         /// -record: also record into this file, NULL = no
+   const char *zoneSpec[MOTION_MAX_ZONES];/// -zone options, rasterised when the resolution is known
+   int zoneCnt;
+   int blobMinBlocks;                  /// -blob: blocks of an object, 0 = no blob analysis
+   int blobThreshold;
+};
+
+static void encoder_sink_raw_tcp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_android_dimon(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_android_motion(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_android(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_rtp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_rtsp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_http(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_websocket(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_ts(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_record(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+static void encoder_sink_empty(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb);
+
+/** -m modes: the sink at the end of the pipeline and whether it needs the motion analyser
+ */
+static struct
+{
+   const char* strCallbackName;
+   ENCODER_SINK sink;
+   bool bMotion;
+} callback_modes[] =
+{
+      {"raw_tcp",        encoder_sink_raw_tcp,        false},
+      {"android_dimon",  encoder_sink_android_dimon,  false},
+      {"android_motion", encoder_sink_android_motion, true},
+      {"android",        encoder_sink_android,        false},
+      {"rtp",            encoder_sink_rtp,            false},
+      {"rtsp",           encoder_sink_rtsp,           false},
+      {"http",           encoder_sink_http,           false},
+      {"websocket",      encoder_sink_websocket,      true},
+      {"ts",             encoder_sink_ts,             false},
+      {"record",         encoder_sink_record,         false},
+      {"empty",          encoder_sink_empty,          false},
 };
 
+static int callback_modes_count = sizeof(callback_modes) / sizeof(callback_modes[0]);
+
+void print_callbacks()
+{
+   int i;
+   for(i = 0; i < callback_modes_count; i++)
+      fprintf(stderr, "%s\n", callback_modes[i].strCallbackName);
+}
+
+/**
+ * Set the sink of a -m mode
+ *
+ * @return false if there is no such mode
+ */
+static bool find_callback_by_name(RASPIVID_STATE *state, const char* _strCallbackName)
+{
+   int i;
+   for(i = 0; i < callback_modes_count; i++)
+   {
+      if(0 == strcmp(callback_modes[i].strCallbackName, _strCallbackName))
+      {
+         state->enc_sink = callback_modes[i].sink;
+         state->bSinkMotion = callback_modes[i].bMotion;
+         return true;
+      }
+   }
+   return false;
+}
+
 
 /// Structure to cross reference H264 profile strings against the MMAL parameter equivalent
 static XREF_T  profile_map[] =
@@ -315,6 +1032,29 @@ static int level_map_size = sizeof(level_map) / sizeof(level_map[0]);
 #define CommandLevel        31
 #define CommandRawFormat    33
 #define CommandNetListen    34
+#define CommandFanOut       35
+#define CommandMaxQueue     36
+#define CommandZeroCopy     37
+#define CommandMTU          38
+#define CommandFEC          39
+#define CommandNACK         40
+#define CommandABR          41
+#define CommandKeepAlive    42
+#define CommandLowLatency   43
+#define CommandShmSize      44
+#define CommandSegmentMB    45
+#define CommandCircularKB   46
+#define CommandPostRoll     47
+#define CommandTrigger      48
+#define CommandWriteQueue   49
+#define CommandWriteWait    50
+#define CommandNetQueue     51
+#define CommandEncoderBuf   52
+#define CommandMaxFrame     53
+#define CommandRecordFile   54
+#define CommandMotionBench  55
+#define CommandZone         56
+#define CommandBlob         57
 
 static COMMAND_LIST cmdline_commands[] =
 {
@@ -322,10 +1062,13 @@ static COMMAND_LIST cmdline_commands[] =
    { CommandWidth,         "-width",      "w",  "Set image width <size>. Default 1920", 1 },
    { CommandHeight,        "-height",     "h",  "Set image height <size>. Default 1080", 1 },
    { CommandBitrate,       "-bitrate",    "b",  "Set bitrate. Use bits per second (e.g. 10MBits/s would be -b 10000000)", 1 },
+   { CommandTimeout,       "-timeout",    "t",  "Time (in ms) to capture for with a file, stdout or shm:// output or in record mode.\n"
+         "\t\t  0 (default) = until SIGINT or SIGTERM. Commands are only read from network outputs", 1 },
    { CommandOutput,        "-output",     "o",  "Output filename <filename> (to write to stdout, use '-o -').\n"
          "\t\t  Connect to a remote IPv4 host (e.g. tcp://192.168.1.2:1234, udp://192.168.1.2:1234)\n"
          "\t\t  To listen on a TCP port (IPv4) and wait for an incoming connection use -l\n"
-         "\t\t  (e.g. raspvid -l -o tcp://0.0.0.0:3333 -> bind to all network interfaces, raspvid -l -o tcp://192.168.1.1:3333 -> bind to a certain local IPv4)", 1 },
+         "\t\t  (e.g. raspvid -l -o tcp://0.0.0.0:3333 -> bind to all network interfaces, raspvid -l -o tcp://192.168.1.1:3333 -> bind to a certain local IPv4)\n"
+         "\t\t  Share with local processes through a ring in /dev/shm (e.g. shm://cam, see RaspiShm.h)", 1 },
    { CommandDemoMode,      "-demo",       "d",  "Run a demo mode (cycle through range of camera options, no capture)", 1},
    { CommandFramerate,     "-framerate",  "fps","Specify the frames per second to record", 1},
    { CommandPreviewEnc,    "-penc",       "e",  "Display preview image *after* encoding (shows compression artifacts)", 0},
@@ -337,15 +1080,58 @@ static COMMAND_LIST cmdline_commands[] =
    { CommandInitialState,  "-initial",    "i",  "Initial state. Use 'record' or 'pause'. Default 'record'", 1},
    { CommandQP,            "-qp",         "qp", "Quantisation parameter. Use approximately 10-40. Default 0 (off)", 1},
    { CommandInlineHeaders, "-inline",     "ih", "Insert inline headers (SPS, PPS) to stream", 0},
+   { CommandSegmentFile,   "-segment",    "sg", "Segment output file in to multiple files at specified interval <ms> (record mode, -o name with %d)", 1},
+   { CommandSegmentMB,     "-segsize",    "sgs","Segment output file in to multiple files of about <MB> (record mode)", 1},
+   { CommandSegmentWrap,   "-wrap",       "wr", "In segment mode, wrap any numbered filename back to 1 when reach number", 1},
+   { CommandSegmentStart,  "-start",      "sn", "In segment mode, start with specified segment number", 1},
    { CommandSplitWait,     "-split",      "sp", "In wait mode, create new output file for each start event", 0},
-   { CommandMode,     "-mode",     "m", "android or raw_tcp", 1},
+   { CommandMode,     "-mode",     "m", "android, android_dimon, android_motion, raw_tcp, rtp (RTP/H.264 over udp://)\n"
+         "\t\t  ts (MPEG-TS with PTS/PCR to udp://, tcp:// or a file)\n"
+         "\t\t  record (timestamped MP4 file, Matroska if the -o name ends with .mkv)\n"
+         "\t\t  rtsp (RTSP server, e.g. -m rtsp -l -o tcp://0.0.0.0:8554 -> rtsp://<pi>:8554/, up to -fanout sessions)\n"
+         "\t\t  http (fMP4 and LL-HLS for browsers, e.g. -m http -l -o tcp://0.0.0.0:8080 -> http://<pi>:8080/)\n"
+         "\t\t  websocket (one binary message per frame for WebCodecs, e.g. -m websocket -l -o tcp://0.0.0.0:8081 -> ws://<pi>:8081/)\n"
+         "\t\t  or empty (print what the encoder delivers and drop it)", 1},
    { CommandCamSelect,     "-camselect",  "cs", "Select camera <number>. Default 0", 1 },
    { CommandSettings,      "-settings",   "set","Retrieve camera settings and write to stdout", 0},
    { CommandSensorMode,    "-mode",       "md", "Force sensor mode. 0=auto. See docs for other modes available", 1},
    { CommandIntraRefreshType,"-irefresh", "if", "Set intra refresh type", 1},
-   { CommandSavePTS,       "-save-pts",   "pts","Save Timestamps to file for mkvmerge", 1 },
+   { CommandSavePTS,       "-save-pts",   "pts","Save Timestamps to file for mkvmerge (record mode)", 1 },
+   { CommandCircular,      "-circular",   "c",  "record mode: keep the last <ms> of complete GOPs in a ring, record only motion events (-trigger) with that pre-roll", 1 },
+   { CommandCircularKB,    "-circsize",   "csz","Size of the -circular ring in <kbytes>, bounds its memory. Default from the bitrate", 1 },
+   { CommandPostRoll,      "-postroll",   "pr", "-circular: keep recording <ms> after the last motion. Default 5000", 1 },
+   { CommandTrigger,       "-trigger",    "trg","Motion alarm level <n> (1..255), turns on inline motion vectors. Same as the mot_alarm= command", 1 },
+   { CommandWriteQueue,    "-writeq",     "wq", "record and ts file output: a writer thread writes, queue at most <kbytes> (default 8192, 0 = write in the encoder callback).\n"
+         "\t\t  When the disk falls behind whole fragments (record) or packets (ts) are dropped", 1 },
+   { CommandWriteWait,     "-writewait",  "ww", "With -writeq or -netq: wait for the disk or link instead of dropping when the queue is full", 0 },
+   { CommandNetQueue,      "-netq",       "nq", "Single tcp:// connection: a network thread sends, frames are copied into a queue of at most <kbytes>\n"
+         "\t\t  and the encoder gets its buffers back at once (default 4096, 0 = send in the encoder callback).\n"
+         "\t\t  When the link falls behind frames are dropped up to the next key frame", 1 },
+   { CommandEncoderBuf,    "-encbuf",     "eb", "Encoder output pool: <n>:<kbytes> buffers (default 2:1024), or auto[:<peak kbytes>] to size it from\n"
+         "\t\t  resolution, bitrate and the peak frame an earlier run printed. The peak held buffers are printed at exit", 1 },
+   { CommandMaxFrame,      "-maxframe",   "mf", "android and websocket modes: drop frames larger than <kbytes> up to the next key frame (default 4096)", 1 },
+   { CommandRecordFile,    "-record",     "rec","Also record into <file> (like record mode) next to the -m mode, e.g. -m websocket -record cam.mkv -circular 5000", 1 },
+   { CommandZone,          "-zone",       "zn", "Motion zone (up to 8): x0,y0,x1,y1,x2,y2... polygon in pixels or @file with a line of '#'/'.' per macroblock row,\n"
+         "\t\t  then [:threshold[:blocks]]: blocks with longer vectors are active (default the -trigger level),\n"
+         "\t\t  the zone needs that many active blocks (default 1). Only motion in zones counts", 1 },
+   { CommandBlob,          "-blob",       "bl", "Motion is the longest vector of an object of at least <blocks> connected macroblocks\n"
+         "\t\t  with vectors longer than [:threshold] (default the -trigger level), single noisy blocks do not count", 1 },
+   { CommandMotionBench,   "-motionbench","mbn","Time the motion detection at 720p, 1080p and 2592x1944 and exit", 0 },
    { CommandLevel,         "-level",      "lev","Specify H264 level to use for encoding", 1},
    { CommandNetListen,     "-listen",     "l", "Listen on a TCP socket", 0},
+   { CommandFanOut,        "-fanout",     "fo", "Keep listening and serve up to <n> viewers from the same stream (use with -l)", 1},
+   { CommandMaxQueue,      "-maxqueue",   "mq", "Latency first TCP sending: queue at most <kbytes> per viewer, on overflow drop frames up to the next key frame", 1},
+   { CommandZeroCopy,      "-zerocopy",   "zc", "android modes, single TCP viewer: send key frames of at least <kbytes> with MSG_ZEROCOPY", 1},
+   { CommandMTU,           "-mtu",        "mtu","rtp mode: max RTP packet size <bytes>. Default 1400", 1},
+   { CommandFEC,           "-fec",        "fec","rtp mode: send one XOR parity packet per <n> packets (2..32), repairs one lost packet per group", 1},
+   { CommandNACK,          "-nack",       "nack","rtp mode: resend packets the receiver NACKs, unless older than <ms>", 1},
+   { CommandKeepAlive,     "-keepalive",  "ka", "tcp:// output: keep the camera running when the viewer disconnects. With -l accept the next viewer,\n"
+         "\t\t  otherwise reconnect with backoff. A new viewer starts with SPS/PPS and a fresh I-frame", 0},
+   { CommandLowLatency,    "-lowlatency", "ll", "Low latency socket profile: TCP_NODELAY, TCP_NOTSENT_LOWAT, socket buffers for 100ms of the bitrate,\n"
+         "\t\t  TCP_USER_TIMEOUT 3s, fast keepalive, DSCP AF41. The effective values are printed. -abr resizes the buffers", 0},
+   { CommandShmSize,       "-shmsize",    "shm","Ring size in MB for -o shm://name (default 8). Local readers map /dev/shm/name, see RaspiShm.h", 1},
+   { CommandABR,           "-abr",        "abr","Adapt the bitrate to the link: <floor>:<ceiling>[:<down%>:<up%>] in bits/s, cut by down% (default 20) on\n"
+         "\t\t  a send backlog, raise by up% (default 5) after 2s without one. -b is the start bitrate. tcp:// outputs only", 1},
 };
 
 static int cmdline_commands_size = sizeof(cmdline_commands) / sizeof(cmdline_commands[0]);
@@ -511,6 +1297,10 @@ static void default_status(RASPIVID_STATE *state)
    state->segmentWrap = 0; // Point at which to wrap segment number back to 1. 0 = no wrap
    state->splitNow = 0;
    state->splitWait = 0;
+   state->postRollMs = CIRC_DEFAULT_POSTROLL_MS;
+   state->writeQueueKB = WRITER_DEFAULT_KB;
+   state->netQueueKB = NET_WRITER_DEFAULT_KB;
+   state->maxFrameKB = AU_DEFAULT_BUDGET_KB;
 
    state->cameraNum = 0;
    state->settings = 0;
@@ -522,6 +1312,10 @@ static void default_status(RASPIVID_STATE *state)
    state->save_pts = 0;
 
    state->netListen = false;
+   state->mtu = RTP_DEFAULT_MTU;
+   state->shmSizeMB = SHM_DEFAULT_SIZE_MB;
+   state->abrDownPct = 20;
+   state->abrUpPct = 5;
 
 
    // Setup preview window defaults
@@ -613,7 +1407,7 @@ static int parse_cmdline(int argc, const char **argv, RASPIVID_STATE *state)
             return -1;
 
         case CommandMode:
-           if(NULL == (state->enc_cb_func = find_callback_by_name(argv[i + 1])))
+           if(!find_callback_by_name(state, argv[i + 1]))
            {
               fprintf(stderr, "'%s' is an unknown operation mode, use one of:\n", argv[i + 1]);
               print_callbacks();
@@ -647,6 +1441,45 @@ static int parse_cmdline(int argc, const char **argv, RASPIVID_STATE *state)
 
          break;
 
+      case CommandSegmentFile: // segment time in ms
+         if ((sscanf(argv[i + 1], "%d", &state->segmentSize) == 1) && (state->segmentSize > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandSegmentMB:
+         if ((sscanf(argv[i + 1], "%d", &state->segmentMB) == 1) && (state->segmentMB > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandSegmentWrap:
+         if ((sscanf(argv[i + 1], "%d", &state->segmentWrap) == 1) && (state->segmentWrap >= 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandSegmentStart:
+         if ((sscanf(argv[i + 1], "%d", &state->segmentNumber) == 1) && (state->segmentNumber > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandSavePTS:
+         state->pts_filename = argv[i + 1];
+         state->save_pts = 1;
+         i++;
+         break;
+
+      case CommandRecordFile:
+         state->recordFilename = argv[i + 1];
+         i++;
+         break;
+
       case CommandOutput:  // output filename
       {
          int len = strlen(argv[i + 1]);
@@ -752,6 +1585,28 @@ static int parse_cmdline(int argc, const char **argv, RASPIVID_STATE *state)
          state->settings = 1;
          break;
 
+      case CommandMotionBench:
+         state->bMotionBench = true;
+         break;
+
+      case CommandBlob:
+         if ((sscanf(argv[i + 1], "%d:%d", &state->blobMinBlocks, &state->blobThreshold) >= 1) &&
+             (state->blobMinBlocks > 0) && (state->blobThreshold >= 0) && (state->blobThreshold < 256))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandZone:
+         if (state->zoneCnt < MOTION_MAX_ZONES)
+         {
+            state->zoneSpec[state->zoneCnt++] = argv[i + 1];
+            i++;
+         }
+         else
+            valid = 0;
+         break;
+
       case CommandSensorMode:
       {
          if (sscanf(argv[i + 1], "%u", &state->sensor_mode) == 1)
@@ -781,50 +1636,216 @@ static int parse_cmdline(int argc, const char **argv, RASPIVID_STATE *state)
          break;
       }
 
-      default:
+      case CommandFanOut:
       {
-         // Try parsing for any image specific parameters
-         // result indicates how many parameters were used up, 0,1,2
-         // but we adjust by -1 as we have used one already
-         const char *second_arg = (i + 1 < argc) ? argv[i + 1] : NULL;
-         int parms_used = (raspicamcontrol_parse_cmdline(&state->camera_parameters, &argv[i][1], second_arg));
-
-         // Still unused, try preview options
-         if (!parms_used)
-            parms_used = raspipreview_parse_cmdline(&state->preview_parameters, &argv[i][1], second_arg);
-
-
-         // If no parms were used, this must be a bad parameters
-         if (!parms_used)
+         if ((sscanf(argv[i + 1], "%d", &state->fanoutClients) == 1) &&
+             (state->fanoutClients > 0) && (state->fanoutClients <= NET_MAX_CLIENTS))
+            i++;
+         else
+         {
+            fprintf(stderr, "Number of viewers must be 1..%d\n", NET_MAX_CLIENTS);
             valid = 0;
+         }
+         break;
+      }
+
+      case CommandMaxQueue:
+      {
+         if ((sscanf(argv[i + 1], "%d", &state->maxQueueKB) == 1) && (state->maxQueueKB > 0))
+            i++;
          else
-            i += parms_used - 1;
+            valid = 0;
+         break;
+      }
 
+      case CommandZeroCopy:
+      {
+         if ((sscanf(argv[i + 1], "%d", &state->zerocopyKB) == 1) && (state->zerocopyKB > 0))
+            i++;
+         else
+            valid = 0;
          break;
       }
+
+      case CommandMTU:
+      {
+         //room for the RTP header and the FU-A bytes, max UDP payload
+         if ((sscanf(argv[i + 1], "%d", &state->mtu) == 1) && (state->mtu >= 64) && (state->mtu <= 65507))
+            i++;
+         else
+            valid = 0;
+         break;
       }
-   }
 
-   if (!valid)
-   {
-      fprintf(stderr, "Invalid command line option (%s)\n", argv[i-1]);
-      return 1;
-   }
+      case CommandFEC:
+      {
+         if ((sscanf(argv[i + 1], "%d", &state->fecGroup) == 1) && (state->fecGroup >= 2) && (state->fecGroup <= RTP_FEC_MAX_GROUP))
+            i++;
+         else
+            valid = 0;
+         break;
+      }
 
-   return 0;
-}
+      case CommandKeepAlive:
+         state->bKeepAlive = true;
+         break;
 
+      case CommandLowLatency:
+         state->bLowLatency = true;
+         break;
 
-/**
- *  buffer header callback function for camera control
- *
- *  Callback will dump buffer data to the specific file
- *
- * @param port Pointer to port from which callback originated
- * @param buffer mmal buffer header pointer
- */
-static void camera_control_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
-{
+      case CommandCircular:
+         if ((sscanf(argv[i + 1], "%d", &state->circularMs) == 1) && (state->circularMs > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandCircularKB:
+         if ((sscanf(argv[i + 1], "%d", &state->circularKB) == 1) && (state->circularKB > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandPostRoll:
+         if ((sscanf(argv[i + 1], "%d", &state->postRollMs) == 1) && (state->postRollMs >= 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandTimeout:
+         if ((sscanf(argv[i + 1], "%d", &state->timeout) == 1) && (state->timeout >= 0))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandTrigger:
+         if ((sscanf(argv[i + 1], "%d", &gMotionAlarm) == 1) && (gMotionAlarm > 0) && (gMotionAlarm < 256))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandWriteQueue:
+         if ((sscanf(argv[i + 1], "%d", &state->writeQueueKB) == 1) && (state->writeQueueKB >= 0) &&
+             (state->writeQueueKB <= 1024 * 1024))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandWriteWait:
+         state->bWriteWait = true;
+         break;
+
+      case CommandNetQueue:
+         if ((sscanf(argv[i + 1], "%d", &state->netQueueKB) == 1) && (state->netQueueKB >= 0) &&
+             (state->netQueueKB <= 1024 * 1024))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandEncoderBuf:
+         if (!strncmp(argv[i + 1], "auto", 4) &&
+             ((argv[i + 1][4] == 0) ||
+              ((sscanf(argv[i + 1] + 4, ":%d", &state->encoderPeakKB) == 1) && (state->encoderPeakKB > 0))))
+         {
+            state->bEncoderBufAuto = true;
+            i++;
+         }
+         else if ((sscanf(argv[i + 1], "%d:%d", &state->encoderBuffers, &state->encoderBufferKB) == 2) &&
+                  (state->encoderBuffers > 0) && (state->encoderBuffers <= 64) &&
+                  (state->encoderBufferKB > 0) && (state->encoderBufferKB <= 16 * 1024))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandMaxFrame:
+         if ((sscanf(argv[i + 1], "%d", &state->maxFrameKB) == 1) && (state->maxFrameKB > 0) &&
+             (state->maxFrameKB <= 1024 * 1024))
+            i++;
+         else
+            valid = 0;
+         break;
+
+      case CommandShmSize:
+      {
+         if ((sscanf(argv[i + 1], "%d", &state->shmSizeMB) == 1) && (state->shmSizeMB > 0) && (state->shmSizeMB <= 1024))
+            i++;
+         else
+            valid = 0;
+         break;
+      }
+
+      case CommandABR:
+      {
+         int args = sscanf(argv[i + 1], "%u:%u:%d:%d", &state->abrFloor, &state->abrCeiling, &state->abrDownPct, &state->abrUpPct);
+         if (((args == 2) || (args == 4)) && state->abrFloor && (state->abrFloor <= state->abrCeiling) &&
+             (state->abrDownPct > 0) && (state->abrDownPct < 100) && (state->abrUpPct > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+      }
+
+      case CommandNACK:
+      {
+         if ((sscanf(argv[i + 1], "%d", &state->nackMs) == 1) && (state->nackMs > 0))
+            i++;
+         else
+            valid = 0;
+         break;
+      }
+
+      default:
+      {
+         // Try parsing for any image specific parameters
+         // result indicates how many parameters were used up, 0,1,2
+         // but we adjust by -1 as we have used one already
+         const char *second_arg = (i + 1 < argc) ? argv[i + 1] : NULL;
+         int parms_used = (raspicamcontrol_parse_cmdline(&state->camera_parameters, &argv[i][1], second_arg));
+
+         // Still unused, try preview options
+         if (!parms_used)
+            parms_used = raspipreview_parse_cmdline(&state->preview_parameters, &argv[i][1], second_arg);
+
+
+         // If no parms were used, this must be a bad parameters
+         if (!parms_used)
+            valid = 0;
+         else
+            i += parms_used - 1;
+
+         break;
+      }
+      }
+   }
+
+   if (!valid)
+   {
+      fprintf(stderr, "Invalid command line option (%s)\n", argv[i-1]);
+      return 1;
+   }
+
+   return 0;
+}
+
+
+/**
+ *  buffer header callback function for camera control
+ *
+ *  Callback will dump buffer data to the specific file
+ *
+ * @param port Pointer to port from which callback originated
+ * @param buffer mmal buffer header pointer
+ */
+static void camera_control_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+{
 
    if (buffer->cmd == MMAL_EVENT_PARAMETER_CHANGED)
    {
@@ -870,6 +1891,58 @@ static void camera_control_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buf
    mmal_buffer_header_release(buffer);
 }
 
+/**
+ * First stage of the encoder pipeline: counts the buffers held by the application and the frame sizes
+ */
+static void encoder_pool_count(PORT_USERDATA *pData, MMAL_BUFFER_HEADER_T *buffer)
+{
+   ENCODER_POOL_STATS *pool = &pData->pool;
+   uint32_t held = __atomic_add_fetch(&pool->held, 1, __ATOMIC_RELAXED);
+
+   if (held > pool->held_peak)
+      pool->held_peak = held;
+   if (!(buffer->flags & (MMAL_BUFFER_HEADER_FLAG_CONFIG | MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)) && buffer->length)
+   {
+      pool->frame_bytes += buffer->length;
+      pool->frame_buffers++;
+      if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
+      {
+         if (pool->frame_bytes > pool->frame_peak)
+            pool->frame_peak = pool->frame_bytes;
+         if (pool->frame_buffers > 1)
+            pool->split_frames++;
+         pool->frames++;
+         pool->frame_bytes = 0;
+         pool->frame_buffers = 0;
+      }
+   }
+}
+
+/**
+ * Release callback of the encoder output pool, the buffer goes back into the pool queue
+ */
+static MMAL_BOOL_T encoder_pool_released(MMAL_POOL_T *pool, MMAL_BUFFER_HEADER_T *buffer, void *userdata)
+{
+   ENCODER_POOL_STATS *stats = (ENCODER_POOL_STATS *) userdata;
+
+   __atomic_sub_fetch(&stats->held, 1, __ATOMIC_RELAXED);
+   return MMAL_TRUE;
+}
+
+/**
+ * Print how the encoder output pool was used, to size -encbuf for a device class
+ */
+static void encoder_pool_report(const ENCODER_POOL_STATS *pool)
+{
+   if (!pool->frames)
+      return;
+   fprintf(stderr, "Encoder pool: %u x %uKB, peak %u held, peak frame %uKB, %llu of %llu frames split (-encbuf auto:%u)\n",
+           pool->num, pool->size / 1024, pool->held_peak, pool->frame_peak / 1024,
+           (unsigned long long) pool->split_frames, (unsigned long long) pool->frames, (pool->frame_peak + 1023) / 1024);
+   if (pool->held_peak >= pool->num)
+      fprintf(stderr, "Encoder pool: all buffers were held at once, the encoder had to wait\n");
+}
+
 /* not sure if here everything is correct */
 static void SwitchMotionVectorsOnFly(RASPIVID_STATE* pState, int bTurnOn)
 {
@@ -901,7 +1974,7 @@ static void SwitchMotionVectorsOnFly(RASPIVID_STATE* pState, int bTurnOn)
     if (MMAL_SUCCESS != mmal_connection_enable(pState->encoder_connection))
         fprintf(stderr, "%d\n", __LINE__);
 
-    if (MMAL_SUCCESS != mmal_port_enable(encoder_output_port, pState->enc_cb_func))
+    if (MMAL_SUCCESS != mmal_port_enable(encoder_output_port, encoder_pipeline_callback))
         fprintf(stderr, "%d\n", __LINE__);
 
     // Send all the buffers to the encoder output port
@@ -922,6 +1995,63 @@ static void SwitchMotionVectorsOnFly(RASPIVID_STATE* pState, int bTurnOn)
       fprintf(stderr, "%d\n", __LINE__);
 }
 
+/**
+ * Execute one command line received from a viewer
+ *
+ * @param pState Pointer to state
+ * @param line Zero terminated command, e.g. "iso=400\n"
+ */
+static void handle_command_line(RASPIVID_STATE* pState, const char *line)
+{
+   int iPar;
+   //printf(line);
+   if (!strncmp("iso=", line, 4))
+   {
+      if (1 == sscanf(line, "iso=%d\n", &iPar))
+      {
+         raspicamcontrol_set_ISO(pState->camera_component, iPar);
+         //printf("%d, %d\n", iPar, tt);
+      }
+   }
+   else if (!strncmp("ss=", line, 3))
+   {
+      if (1 == sscanf(line, "ss=%d\n", &iPar))
+      {
+         raspicamcontrol_set_shutter_speed(pState->camera_component,
+               iPar);
+         //printf("ss=%d, %d\n", iPar, tt);
+      }
+   }
+   else if (!strncmp("stat=", line, 5))
+   {
+      sscanf(line, "stat=%d\n",
+            &pState->callback_data.runTimeShowStat);
+      //fprintf(stderr, "stat=%d\n", pState->callback_data.runTimeShowStat);
+      if (0 == pState->callback_data.runTimeShowStat)
+         my_annotate(pState->camera_component, "");
+   }
+   else if (!strncmp("motion=", line, 7))
+   {
+      //only switch off motion vectors if motion alarm is turned off
+      if (gMotionAlarm == 0)
+      {
+         if (1 == sscanf(line, "motion=%d\n", &iPar))
+            SwitchMotionVectorsOnFly(pState, iPar);
+      }
+   }
+   else if (!strncmp("move=", line, 5))
+   {
+      my_raspicamcontrol_zoom_in_zoom_out(pState->camera_component, line[5]);
+   }
+   else if (!strncmp("mot_alarm=", line, 10))
+   {
+      if (1 == sscanf(line, "mot_alarm=%d\n", &gMotionAlarm))
+      {
+         SwitchMotionVectorsOnFly(pState, (gMotionAlarm==0)?(0):(1));
+      }
+   }
+}
+
 void receive_commands(RASPIVID_STATE* pState)
 {
     FILE* fpSock = fdopen(pState->callback_data.sockFD, "r");
@@ -931,66 +2061,309 @@ void receive_commands(RASPIVID_STATE* pState)
         size_t len = 0;
         ssize_t read;
         while ((read = getline(&line, &len, fpSock)) != -1)
-        {
-            int iPar;
-            //printf(line);
-            if (!strncmp("iso=", line, 4))
-            {
-                if (1 == sscanf(line, "iso=%d\n", &iPar))
-                {
-                    raspicamcontrol_set_ISO(pState->camera_component, iPar);
-                    //printf("%d, %d\n", iPar, tt);
-                }
-            }
-            else if (!strncmp("ss=", line, 3))
-            {
-                if (1 == sscanf(line, "ss=%d\n", &iPar))
-                {
-                    raspicamcontrol_set_shutter_speed(pState->camera_component,
-                            iPar);
-                    //printf("ss=%d, %d\n", iPar, tt);
-                }
-            }
-            else if (!strncmp("stat=", line, 5))
-            {
-                sscanf(line, "stat=%d\n",
-                        &pState->callback_data.runTimeShowStat);
-                //fprintf(stderr, "stat=%d\n", pState->callback_data.runTimeShowStat);
-                if (0 == pState->callback_data.runTimeShowStat)
-                    my_annotate(pState->camera_component, "");
-            }
-            else if (!strncmp("motion=", line, 7))
-            {
-               //only switch off motion vectors if motion alarm is turned off
-               if (gMotionAlarm == 0)
-               {
-                  if (1 == sscanf(line, "motion=%d\n", &iPar))
-                     SwitchMotionVectorsOnFly(pState, iPar);
-               }
-            }
-            else if (!strncmp("move=", line, 5))
-            {
-                my_raspicamcontrol_zoom_in_zoom_out(pState->camera_component, line[5]);
-            }
-            else if (!strncmp("mot_alarm=", line, 10))
-            {
-               if (1 == sscanf(line, "mot_alarm=%d\n", &gMotionAlarm))
-               {
-                  SwitchMotionVectorsOnFly(pState, (gMotionAlarm==0)?(0):(1));
-               }
-            }
-
-        }//while ((read = getline(&line, &len, fpSock)) != -1)
+            handle_command_line(pState, line);
         fclose(fpSock);
     }
 }
 
+/// Posted by SIGINT/SIGTERM, see wait_for_stop()
+static sem_t gStopSem;
+
+static void stop_signal_handler(int sig)
+{
+   sem_post(&gStopSem);//async-signal-safe, whichever thread the signal hits
+}
+
+/**
+ * Outputs that send no commands (files, stdout, shm://, record mode): run for -t ms or until SIGINT/SIGTERM.
+ * stdin is not read, under a service it is at EOF right away and the recording would stop.
+ *
+ * @param pState State
+ */
+static void wait_for_stop(RASPIVID_STATE *pState)
+{
+   struct sigaction sa;
+   struct timespec until;
+   int ret;
+
+   sem_init(&gStopSem, 0, 0);
+   memset(&sa, 0, sizeof(sa));
+   sa.sa_handler = stop_signal_handler;
+   sa.sa_flags = SA_RESETHAND;//a second one ends a stuck shutdown
+   sigaction(SIGINT, &sa, NULL);
+   sigaction(SIGTERM, &sa, NULL);
+
+   clock_gettime(CLOCK_REALTIME, &until);
+   until.tv_sec += pState->timeout / 1000;
+   until.tv_nsec += (long)(pState->timeout % 1000) * 1000000;
+   if (until.tv_nsec >= 1000000000)
+   {
+      until.tv_sec++;
+      until.tv_nsec -= 1000000000;
+   }
+   do
+      ret = pState->timeout ? sem_timedwait(&gStopSem, &until) : sem_wait(&gStopSem);
+   while (ret && (errno == EINTR));
+   fprintf(stderr, "%s, stopping\n", ret ? "Timeout" : "Signal");
+}
+
+/// Low latency profile: socket buffers hold this much of the stream
+#define NET_LOWLAT_BUFFER_MS 100
+/// Low latency profile: the kernel reports writable once less than this much is unsent
+#define NET_LOWLAT_NOTSENT_MS 20
+/// Low latency profile: a viewer that acknowledges nothing for this long is dead
+#define NET_LOWLAT_USER_TIMEOUT_MS 3000
+/// Low latency profile: DSCP AF41, interactive video
+#define NET_LOWLAT_TOS 0x88
+
+/**
+ * Size the send buffer and TCP_NOTSENT_LOWAT of the low latency profile for a bitrate
+ *
+ * @param sfd Connected socket
+ * @param type SOCK_STREAM or SOCK_DGRAM
+ * @param bitrate Stream bitrate in bits/s
+ */
+static void net_socket_buffers(int sfd, int type, uint32_t bitrate)
+{
+   int buffer = vcos_max(16 * 1024, (int)((uint64_t) bitrate / 8 * NET_LOWLAT_BUFFER_MS / 1000));
+   int notsent = vcos_max(4 * 1024, (int)((uint64_t) bitrate / 8 * NET_LOWLAT_NOTSENT_MS / 1000));
+
+   setsockopt(sfd, SOL_SOCKET, SO_SNDBUF, &buffer, sizeof(buffer));
+   if (type == SOCK_STREAM)
+      setsockopt(sfd, IPPROTO_TCP, TCP_NOTSENT_LOWAT, &notsent, sizeof(notsent));
+}
+
+/**
+ * Apply the low latency socket profile: no Nagle, small kernel buffers sized from the bitrate,
+ * fast dead peer detection and AF41 marking. The effective values are logged.
+ *
+ * @param sfd Connected socket
+ * @param bitrate Stream bitrate in bits/s the buffers are sized for, -abr sizes them again when it changes
+ */
+static void net_socket_profile(int sfd, uint32_t bitrate)
+{
+   int type = 0, val;
+   socklen_t len = sizeof(type);
+   int buffer = vcos_max(16 * 1024, (int)((uint64_t) bitrate / 8 * NET_LOWLAT_BUFFER_MS / 1000));
+   int tos = NET_LOWLAT_TOS;
+
+   getsockopt(sfd, SOL_SOCKET, SO_TYPE, &type, &len);
+   //no error handling, an option the kernel does not know is just left at its default
+   net_socket_buffers(sfd, type, bitrate);
+   setsockopt(sfd, SOL_SOCKET, SO_RCVBUF, &buffer, sizeof(buffer));
+   setsockopt(sfd, IPPROTO_IP, IP_TOS, &tos, sizeof(tos));
+   if (type == SOCK_STREAM)
+   {
+      int timeout = NET_LOWLAT_USER_TIMEOUT_MS, idle = 1, intvl = 1, cnt = 3;
+      val = 1;
+      setsockopt(sfd, IPPROTO_TCP, TCP_NODELAY, &val, sizeof(val));
+      setsockopt(sfd, IPPROTO_TCP, TCP_USER_TIMEOUT, &timeout, sizeof(timeout));
+      setsockopt(sfd, SOL_SOCKET, SO_KEEPALIVE, &val, sizeof(val));
+      setsockopt(sfd, IPPROTO_TCP, TCP_KEEPIDLE, &idle, sizeof(idle));
+      setsockopt(sfd, IPPROTO_TCP, TCP_KEEPINTVL, &intvl, sizeof(intvl));
+      setsockopt(sfd, IPPROTO_TCP, TCP_KEEPCNT, &cnt, sizeof(cnt));
+   }
+
+   //read back what the kernel made of it, SO_SNDBUF/SO_RCVBUF are doubled and clamped to wmem_max/rmem_max
+   int sndbuf = 0, rcvbuf = 0, nodelay = 0, lowat = 0, user_timeout = 0, keepalive = 0;
+   len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_SNDBUF, &sndbuf, &len);
+   len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_RCVBUF, &rcvbuf, &len);
+   len = sizeof(int); getsockopt(sfd, IPPROTO_IP, IP_TOS, &tos, &len);
+   if (type == SOCK_STREAM)
+   {
+      len = sizeof(int); getsockopt(sfd, IPPROTO_TCP, TCP_NODELAY, &nodelay, &len);
+      len = sizeof(int); getsockopt(sfd, IPPROTO_TCP, TCP_NOTSENT_LOWAT, &lowat, &len);
+      len = sizeof(int); getsockopt(sfd, IPPROTO_TCP, TCP_USER_TIMEOUT, &user_timeout, &len);
+      len = sizeof(int); getsockopt(sfd, SOL_SOCKET, SO_KEEPALIVE, &keepalive, &len);
+      fprintf(stderr, "Low latency socket: sndbuf=%d rcvbuf=%d nodelay=%d notsent_lowat=%d user_timeout=%dms keepalive=%d tos=0x%02x\n",
+              sndbuf, rcvbuf, nodelay, lowat, user_timeout, keepalive, tos);
+   }
+   else
+      fprintf(stderr, "Low latency socket: sndbuf=%d rcvbuf=%d tos=0x%02x\n", sndbuf, rcvbuf, tos);
+}
+
+/**
+ * Create the shared memory ring of -o shm://name, an old ring of the same name is replaced
+ *
+ * @param shm Ring to set up
+ * @param name Name behind shm://
+ * @param size Ring data bytes
+ * @return true if OK
+ */
+static bool shm_output_open(SHM_OUTPUT *shm, const char *name, uint32_t size)
+{
+   char path[NAME_MAX];
+   uint32_t header_size = (sizeof(SHM_RING_HEADER) + 4095) & ~4095;
+   void *map;
+   int fd;
+
+   memset(shm, 0, sizeof(*shm));
+   snprintf(path, sizeof(path), "/%s", name);
+   shm_unlink(path);//readers of a previous run keep their old mapping
+   if ((fd = shm_open(path, O_CREAT | O_EXCL | O_RDWR, 0644)) < 0)
+   {
+      vcos_log_error("shm_open %s failed: %s", path, strerror(errno));
+      return false;
+   }
+   size &= ~7;
+   shm->map_size = header_size + size;
+   if (ftruncate(fd, shm->map_size) ||
+       (MAP_FAILED == (map = mmap(NULL, shm->map_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0))))
+   {
+      vcos_log_error("Unable to map %u bytes for %s: %s", (unsigned) shm->map_size, path, strerror(errno));
+      close(fd);
+      shm_unlink(path);
+      return false;
+   }
+   close(fd);
+
+   shm->hdr = (SHM_RING_HEADER *) map;
+   shm->data = (uint8_t *) map + header_size;
+   shm->bFrameStart = true;
+   shm->hdr->header_size = header_size;
+   shm->hdr->data_size = size;
+   shm->hdr->version = SHM_RING_VERSION;
+   __atomic_store_n(&shm->hdr->magic, SHM_RING_MAGIC, __ATOMIC_RELEASE);
+   fprintf(stderr, "Publishing to shared memory %s, %u KB ring\n", path, size / 1024);
+   return true;
+}
+
+/**
+ * Copy one encoder buffer into the ring and wake up the readers. Never waits for readers.
+ *
+ * @param shm Ring
+ * @param buffer Encoder buffer, locked
+ */
+static void shm_output_publish(SHM_OUTPUT *shm, MMAL_BUFFER_HEADER_T *buffer)
+{
+   SHM_RING_HEADER *hdr = shm->hdr;
+   uint64_t rec_size = SHM_RECORD_SIZE(buffer->length);
+   uint64_t pos = hdr->write_pos, pad = 0;
+   uint64_t offset = pos % hdr->data_size;
+   bool bPicture = !(buffer->flags & (MMAL_BUFFER_HEADER_FLAG_CONFIG | MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO));
+
+   if (rec_size > hdr->data_size / 4)
+   {//would lap every reader at once
+      if (!shm->records_dropped++)
+         vcos_log_error("Buffer of %u bytes does not fit into the shm ring, use a larger -shmsize", buffer->length);
+      return;
+   }
+   if (hdr->data_size - offset < rec_size)
+      pad = hdr->data_size - offset;//records do not wrap
+
+   //readers check reserve_pos after using a record, it has to be visible before any byte changes
+   __atomic_store_n(&hdr->reserve_pos, pos + pad + rec_size, __ATOMIC_RELAXED);
+   __atomic_thread_fence(__ATOMIC_SEQ_CST);
+
+   if (pad >= sizeof(SHM_RECORD))
+   {
+      SHM_RECORD *rec = (SHM_RECORD *)(shm->data + offset);
+      rec->length = 0;
+      rec->flags = SHM_RECORD_FLAG_PAD;
+      rec->pts = 0;
+      rec->pos = pos;
+   }
+   pos += pad;
+   offset = pos % hdr->data_size;
+
+   SHM_RECORD *rec = (SHM_RECORD *)(shm->data + offset);
+   rec->length = buffer->length;
+   rec->flags = buffer->flags;
+   rec->pts = buffer->pts;
+   rec->pos = pos;
+   memcpy(rec + 1, buffer->data, buffer->length);
+
+   if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+   {//late readers start with these, SPS and PPS may come in separate buffers
+      uint32_t seq = hdr->config_seq;
+      uint32_t len = shm->bLastWasConfig ? hdr->config_len : 0;
+      if (len + buffer->length <= SHM_RING_MAX_CONFIG)
+      {
+         __atomic_store_n(&hdr->config_seq, seq + 1, __ATOMIC_RELAXED);
+         __atomic_thread_fence(__ATOMIC_SEQ_CST);
+         memcpy(hdr->config + len, buffer->data, buffer->length);
+         hdr->config_len = len + buffer->length;
+         __atomic_store_n(&hdr->config_seq, seq + 2, __ATOMIC_RELEASE);
+      }
+   }
+   shm->bLastWasConfig = (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG) != 0;
+
+   if (bPicture && shm->bFrameStart)
+   {
+      shm->frame_start = pos;
+      shm->bFrameStart = false;
+   }
+   __atomic_store_n(&hdr->write_pos, pos + rec_size, __ATOMIC_RELEASE);
+   if (bPicture && (buffer->flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME))
+      __atomic_store_n(&hdr->keyframe_pos, shm->frame_start, __ATOMIC_RELEASE);
+   if (bPicture && (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END))
+      shm->bFrameStart = true;
+
+   __atomic_add_fetch(&hdr->futex, 1, __ATOMIC_RELEASE);
+   syscall(SYS_futex, &hdr->futex, FUTEX_WAKE, INT_MAX, NULL, NULL, 0);
+}
+
+/**
+ * Parse a network output name like tcp://1.2.3.4:1234 or udp://1.2.3.4:1234
+ *
+ * @param filename Output name
+ * @param pAddr Receives the IPv4 address and port
+ * @param pSockType Receives SOCK_STREAM or SOCK_DGRAM
+ * @return true if filename is a network name, false if it is a regular file. Exits on malformed names.
+ */
+static bool parse_network_filename(const char *filename, struct sockaddr_in *pAddr, int *pSockType)
+{
+   unsigned short port;
+   char *colon;
+   char strIP[INET_ADDRSTRLEN];
+
+   if(!strncmp("tcp://", filename, 6))
+      *pSockType = SOCK_STREAM;
+   else if(!strncmp("udp://", filename, 6))
+      *pSockType = SOCK_DGRAM;
+   else
+      return false;
+
+   filename += 6;
+   if(NULL == (colon = strchr(filename, ':')))
+   {
+      fprintf(stderr, "%s is not a valid IPv4:port, use something like tcp://1.2.3.4:1234 or udp://1.2.3.4:1234\n",
+              filename);
+      exit(132);
+   }
+   if(1 != sscanf(colon + 1, "%hu", &port))
+   {
+      fprintf(stderr,
+              "Port parse failed. %s is not a valid network file name, use something like tcp://1.2.3.4:1234 or udp://1.2.3.4:1234\n",
+              filename);
+      exit(133);
+   }
+   if(colon - filename >= sizeof(strIP))
+   {
+      fprintf(stderr, "%s is not a valid IPv4 address\n", filename);
+      exit(134);
+   }
+   memcpy(strIP, filename, colon - filename);
+   strIP[colon - filename] = 0;
+
+   memset(pAddr, 0, sizeof(*pAddr));
+   pAddr->sin_family = AF_INET;
+   pAddr->sin_port = htons(port);
+   if(0 == inet_aton(strIP, &pAddr->sin_addr))
+   {
+      fprintf(stderr, "inet_aton failed. %s is not a valid IPv4 address\n",
+              strIP);
+      exit(134);
+   }
+   return true;
+}
+
 static FILE *open_filename(RASPIVID_STATE *pState, char *filename, int* pSockFD)
 {
    FILE *new_handle = NULL;
    char *tempname = NULL;
 
-   if (pState->segmentSize || pState->splitWait)
+   if (pState->segmentSize || pState->segmentMB || pState->splitWait)
    {
       // Create a new filename string
       asprintf(&tempname, filename, pState->segmentNumber);
@@ -999,56 +2372,17 @@ static FILE *open_filename(RASPIVID_STATE *pState, char *filename, int* pSockFD)
 
    if (filename)
    {
-      bool bNetwork = false;
       int sfd, socktype;
+      struct sockaddr_in saddr;
 
-      if(!strncmp("tcp://", filename, 6))
-      {
-         bNetwork = true;
-         socktype = SOCK_STREAM;
-      }
-      else if(!strncmp("udp://", filename, 6))
+      if(parse_network_filename(filename, &saddr, &socktype))
       {
-         if (pState->netListen)
+         unsigned short port = ntohs(saddr.sin_port);
+         if ((socktype == SOCK_DGRAM) && pState->netListen)
          {
             fprintf(stderr, "No support for listening in UDP mode\n");
             exit(131);
          }
-         bNetwork = true;
-         socktype = SOCK_DGRAM;
-      }
-
-      if(bNetwork)
-      {
-         unsigned short port;
-         filename += 6;
-         char *colon;
-         if(NULL == (colon = strchr(filename, ':')))
-         {
-            fprintf(stderr, "%s is not a valid IPv4:port, use something like tcp://1.2.3.4:1234 or udp://1.2.3.4:1234\n",
-                    filename);
-            exit(132);
-         }
-         if(1 != sscanf(colon + 1, "%hu", &port))
-         {
-            fprintf(stderr,
-                    "Port parse failed. %s is not a valid network file name, use something like tcp://1.2.3.4:1234 or udp://1.2.3.4:1234\n",
-                    filename);
-            exit(133);
-         }
-         char chTmp = *colon;
-         *colon = 0;
-
-         struct sockaddr_in saddr={};
-         saddr.sin_family = AF_INET;
-         saddr.sin_port = htons(port);
-         if(0 == inet_aton(filename, &saddr.sin_addr))
-         {
-            fprintf(stderr, "inet_aton failed. %s is not a valid IPv4 address\n",
-                    filename);
-            exit(134);
-         }
-         *colon = chTmp;
 
          if (pState->netListen)
          {
@@ -1077,6 +2411,8 @@ static FILE *open_filename(RASPIVID_STATE *pState, char *filename, int* pSockFD)
                         if (setsockopt(sfd, SOL_SOCKET, SO_SNDTIMEO, (char *) &timeout, sizeof(timeout)) < 0)
                            fprintf(stderr, "setsockopt failed\n");
                         fprintf(stderr, "Client connected from %s:%"SCNu16"\n", inet_ntoa(cli_addr.sin_addr), ntohs(cli_addr.sin_port));
+                        if (pState->bLowLatency)
+                           net_socket_profile(sfd, pState->bitrate);
                      }
                      else
                         fprintf(stderr, "Error on accept: %s\n", strerror(errno));
@@ -1111,7 +2447,11 @@ static FILE *open_filename(RASPIVID_STATE *pState, char *filename, int* pSockFD)
                if (iTmp < 0)
                   fprintf(stderr, "error: %s\n", strerror(errno));
                else
+               {
                   fprintf(stderr, "connected, sending video...\n");
+                  if (pState->bLowLatency)
+                     net_socket_profile(sfd, pState->bitrate);
+               }
             }
             else
                fprintf(stderr, "Error creating socket: %s\n", strerror(errno));
@@ -1132,728 +2472,5551 @@ static FILE *open_filename(RASPIVID_STATE *pState, char *filename, int* pSockFD)
    return new_handle;
 }
 
-
-void my_annotate (MMAL_COMPONENT_T *camera, const char *string)
+/**
+ * Drop one reference of a chunk, give it back to its hub or free it when nobody uses it anymore.
+ * Must be called with NET_HUB::lock held.
+ */
+static void net_chunk_unref(NET_CHUNK *chunk)
 {
-   MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T annotate = {
-         { MMAL_PARAMETER_ANNOTATE, sizeof(MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T) } };
-   memset(&annotate.enable, sizeof(MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T) - sizeof(annotate.hdr) - sizeof(annotate.text), 0);
-   annotate.enable = 1;
-   strncpy(annotate.text, string, MMAL_CAMERA_ANNOTATE_MAX_TEXT_LEN_V3);
-   mmal_port_parameter_set(camera->control, &annotate.hdr);
+   if (chunk && (0 == --chunk->refcnt))
+   {
+      NET_HUB *hub = chunk->owner;
+      if (hub && (hub->spare_cnt < NET_SPARE_CHUNKS))
+         hub->spare[hub->spare_cnt++] = chunk;
+      else
+         free(chunk);
+   }
 }
 
-void handle_frame_end(PORT_USERDATA *pData)
+/**
+ * Release everything queued for a viewer and free its slot.
+ * Must be called with NET_HUB::lock held.
+ */
+static void net_client_close(NET_CLIENT *client)
 {
-   pData->pstate->i64FramesCnt++;
-   if(0 == pData->pstate->callback_data.runTimeShowStat)
-      return;
-   int64_t time_us = vcos_getmicrosecs64();
-   static int64_t last_frame_time_us = -1;
-   char strFPS[164];
-   float fFPS = 1000000.0/(time_us-last_frame_time_us);
-   snprintf(strFPS, sizeof(strFPS), "FPS=%2.1f, %llu, %.2" SCNu8 ", %llu", fFPS, pData->pstate->i64FramesCnt, pData->lastFrameMotion, pData->pstate->i64FramesSkip);
-   my_annotate(pData->pstate->camera_component, strFPS);
-   last_frame_time_us = time_us;
+   fprintf(stderr, "Viewer %s:%"SCNu16" disconnected, sent %llu, dropped %llu messages, peak queue %u bytes\n",
+           inet_ntoa(client->addr.sin_addr), ntohs(client->addr.sin_port),
+           client->chunks_sent, client->chunks_dropped, client->peak_queued_bytes);
+   close(client->fd);
+   while (client->q_rd != client->q_wr)
+      net_chunk_unref(client->queue[client->q_rd++ % NET_CLIENT_QUEUE_LEN]);
+   client->fd = -1;
 }
 
-
-typedef struct
+/**
+ * Queue a chunk for a viewer.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @return false if the viewer queue is full
+ */
+static bool net_client_push(NET_CLIENT *client, NET_CHUNK *chunk)
 {
-   signed char x_vector;
-   signed char y_vector;
-   short sad;
-} INLINE_MOTION_VECTOR;
+   if (client->q_wr - client->q_rd >= NET_CLIENT_QUEUE_LEN)
+      return false;
+   chunk->refcnt++;
+   client->queue[client->q_wr++ % NET_CLIENT_QUEUE_LEN] = chunk;
+   client->queued_bytes += chunk->length;
+   if (client->queued_bytes > client->peak_queued_bytes)
+      client->peak_queued_bytes = client->queued_bytes;
+   return true;
+}
 
-#define MOTION_DEBUG_STRONGNESS (1<<0)//1
-#define MOTION_DEBUG_STATISTICS (1<<1)//2
-#include <math.h>
-unsigned char DetectMotion(INLINE_MOTION_VECTOR *imv, RASPIVID_STATE *pstate)
+/**
+ * The viewer can not keep up: throw away all queued frames which did not start going out yet,
+ * so it continues with the next key frame. SPS/PPS and RTSP replies are kept, the viewer may still need them.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @return Number of dropped chunks
+ */
+static unsigned int net_client_drop_frames(NET_CLIENT *client)
 {
-#define MIN(a,b) (((a)<(b))?(a):(b))
-#define MAX(a,b) (((a)>(b))?(a):(b))
-   int64_t t_b;
-   if(pstate->motion_verbose & MOTION_DEBUG_STRONGNESS)
-      t_b = vcos_getmicrosecs64();
-   unsigned short x,j;
-   double sum = 0;
-   unsigned char max_vx=0, max_vy=0, max_vxvy=0;
-   //printf("\033[2J");//clear terminal
-   for(j=0; j<pstate->mby; j++)
-   {
-      for(x=0; x<pstate->mbx; x++)
-      {
-         signed char vx =-imv[x+(pstate->mbx+1)*j].x_vector;
-         signed char vy = imv[x+(pstate->mbx+1)*j].y_vector;
-         max_vxvy = MAX(max_vxvy, (unsigned char)sqrt(vx*vx+vy*vy));
-         /*max_vx=MAX(max_vx, abs(vx));
-         max_vy=MAX(max_vy, abs(vy));*/
-         //fprintf(stderr, "%.3d,%.3d|", vx,vy);
-
-         //sum += sqrt(vx*vx+vy*vy);
-         /*if(sum > pstate->motion_threshold)
-            goto _loop_end;*/
-         /*if((abs(vx) > pstate->motion_threshold)||
-               (abs(vy) > pstate->motion_threshold))
-         {
-            if(pstate->motion_verbose & MOTION_DEBUG_STRONGNESS)
-                  fprintf(stderr, "max_vx=%d, max_vy=%d, time us=%llu\n", max_vx, max_vy, vcos_getmicrosecs64() - t_b);
-            return 1;
-         }*/
+   unsigned int rd = client->q_rd, wr, dropped = 0;
+
+   if ((rd != client->q_wr) && client->chunk_offset)
+      rd++;//the head chunk is on the wire already, it has to be completed
+   for (wr = rd; rd != client->q_wr; rd++)
+   {
+      NET_CHUNK *chunk = client->queue[rd % NET_CLIENT_QUEUE_LEN];
+      if (chunk->flags & (NET_CHUNK_FLAG_CONFIG | NET_CHUNK_FLAG_CONTROL))
+         client->queue[wr++ % NET_CLIENT_QUEUE_LEN] = chunk;
+      else
+      {
+         client->queued_bytes -= chunk->length;
+         net_chunk_unref(chunk);
+         dropped++;
       }
    }
-return max_vxvy;
-   if(pstate->motion_verbose & MOTION_DEBUG_STRONGNESS)
-      fprintf(stderr, "max_vx=%d, max_vy=%d, time us=%llu\n", max_vx, max_vy, vcos_getmicrosecs64() - t_b);
-   return 0;
-   //_loop_end:
-   if(sum > pstate->motion_threshold)
-      return 1;
-   return 0;
+   client->q_wr = wr;
+   client->bStarted = false;
+   client->bResync = true;
+   client->chunks_dropped += dropped;
+   return dropped;
 }
 
-void PrintDataType(PORT_USERDATA *pData, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Set up queued output, viewers are added by net_hub_listen() or net_hub_add_client()
+ *
+ * @param hub Hub to set up
+ * @param max_clients Number of viewers to serve at once
+ * @param max_queue_bytes Per viewer queue limit, 0 = disconnect viewers which fall NET_CLIENT_QUEUE_LEN chunks behind
+ * @return true if OK
+ */
+static bool net_hub_init(NET_HUB *hub, int max_clients, uint32_t max_queue_bytes)
 {
-   int64_t time_now = vcos_getmicrosecs64();
-   static int64_t time_us_prev = 0;
-   int uiTimeDiff;
-   if(time_us_prev == 0)
-      uiTimeDiff = 0;
-   else
-      uiTimeDiff = time_now - time_us_prev;
-   time_us_prev = time_now;
-   fprintf(stderr, "time(us)=%.6d, frame=%.3llu, callbacks=%.3lu, buffer->length=%.6d, buffer->flags=0x%.2x: ",
-           uiTimeDiff, pData->pstate->i64FramesCnt, pData->ulValidCallbackCnt++, buffer->length, buffer->flags);
-   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME)
-          fprintf(stderr, "KEYFRAME, ");
-   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_START)
-          fprintf(stderr, "FRAME_START, ");
-   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-          fprintf(stderr, "FRAME_END, ");
-   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
-          fprintf(stderr, "FLAG_CONFIG, ");
-   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-          fprintf(stderr, "FLAG_CODECSIDEINFO, ");
+   int i;
 
-   fprintf(stderr, "\n");
+   memset(hub, 0, sizeof(*hub));
+   hub->listen_fd = hub->wake_pipe[0] = hub->wake_pipe[1] = -1;
+   hub->max_clients = max_clients;
+   hub->max_queue_bytes = max_queue_bytes;
+   for (i = 0; i < NET_MAX_CLIENTS; i++)
+      hub->clients[i].fd = -1;
+
+   if (0 != pipe(hub->wake_pipe))
+   {
+      fprintf(stderr, "Error creating pipe: %s\n", strerror(errno));
+      return false;
+   }
+   fcntl(hub->wake_pipe[0], F_SETFL, O_NONBLOCK);
+   fcntl(hub->wake_pipe[1], F_SETFL, O_NONBLOCK);
+   pthread_mutex_init(&hub->lock, NULL);
+   return true;
 }
 
-typedef enum ANDROID_DATA_TYPES
+/**
+ * Create the listening socket for fan-out mode. Viewers are accepted later by net_hub_run()
+ *
+ * @param hub Hub set up by net_hub_init()
+ * @param filename tcp://ip:port to listen on
+ * @return true if OK
+ */
+static bool net_hub_listen(NET_HUB *hub, const char *filename)
 {
-    CurrentResolution=0,
-    RegularFrame,
-    MotionInFrame,
-    MotionAlarm
-} ANDROID_DATA_TYPES;
+   struct sockaddr_in saddr;
+   int socktype, iTmp = 1;
 
+   if (!parse_network_filename(filename, &saddr, &socktype) || (socktype != SOCK_STREAM))
+   {
+      fprintf(stderr, "Fan-out mode needs a tcp://ip:port output\n");
+      return false;
+   }
+
+   if (0 > (hub->listen_fd = socket(AF_INET, SOCK_STREAM, 0)))
+   {
+      fprintf(stderr, "Error creating socket: %s\n", strerror(errno));
+      return false;
+   }
+   setsockopt(hub->listen_fd, SOL_SOCKET, SO_REUSEADDR, &iTmp, sizeof(int));//no error handling, just go on
+   if (bind(hub->listen_fd, (struct sockaddr *) &saddr, sizeof(saddr)) < 0)
+   {
+      fprintf(stderr, "Error on binding socket: %s\n", strerror(errno));
+      return false;
+   }
+   if (listen(hub->listen_fd, hub->max_clients) < 0)
+   {
+      fprintf(stderr, "Error trying to listen on a socket: %s\n", strerror(errno));
+      return false;
+   }
+   fprintf(stderr, "Serving up to %d viewers on %s:%"SCNu16"\n", hub->max_clients,
+           inet_ntoa(saddr.sin_addr), ntohs(saddr.sin_port));
+   return true;
+}
 
-void SendToAndroid(int sockFD, void* buf, size_t len)
+/**
+ * @return Bytes queued for the slowest viewer
+ */
+static uint32_t net_hub_max_queued(NET_HUB *hub)
 {
-   //size of an unsent data in skb
-   /*#include <sys/ioctl.h>
-   unsigned long size;
-   ioctl( sockFD, TIOCOUTQ, &size );
-   fprintf(stderr, "%d\n", size);*/
+   uint32_t queued = 0;
+   int i;
 
-   if(len != send(sockFD, buf, len, MSG_NOSIGNAL))
-      exit(__LINE__);//TCP connection closed, stop program
+   pthread_mutex_lock(&hub->lock);
+   for (i = 0; i < hub->max_clients; i++)
+   {
+      if ((hub->clients[i].fd >= 0) && (hub->clients[i].queued_bytes > queued))
+         queued = hub->clients[i].queued_bytes;
+   }
+   pthread_mutex_unlock(&hub->lock);
+   return queued;
 }
-MMAL_BUFFER_HEADER_T* p_buf_partial_begin = NULL;
 
-static void encoder_buffer_callback_android_dimon(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Append data to the chunk the encoder callback is currently assembling.
+ * Called from the encoder callback only, the pending chunk is not shared yet so no locking.
+ */
+static void net_hub_append(NET_HUB *hub, const void *buf, uint32_t len)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
+   NET_CHUNK *chunk = hub->pending;
+   uint32_t used = chunk ? chunk->length : 0;
 
-   if (pData)
+   if (!chunk || (used + len > chunk->size))
    {
-      if (buffer->length)
+      uint32_t size = vcos_max(65536, 2 * (used + len));
+      if (NULL == (chunk = realloc(chunk, sizeof(NET_CHUNK) + size)))
       {
-         mmal_buffer_header_mem_lock(buffer);
+         vcos_log_error("Out of memory assembling a %u bytes chunk", used + len);
+         exit(__LINE__);
+      }
+      chunk->owner = hub;
+      chunk->length = used;
+      chunk->size = size;
+      hub->pending = chunk;
+   }
+   memcpy(chunk->data + chunk->length, buf, len);
+   chunk->length += len;
+}
+
+/**
+ * Hand the assembled chunk over to all viewers and wake up the sending thread.
+ * Called from the encoder callback, never blocks on a viewer.
+ *
+ * @param hub Hub
+ * @param flags NET_CHUNK_FLAG_xxx describing the chunk
+ */
+static void net_hub_commit(NET_HUB *hub, uint32_t flags)
+{
+   NET_CHUNK *chunk = hub->pending;
+   int i;
 
-         //PrintDataType(pData, buffer);
+   if (!chunk || !chunk->length)
+      return;
+   hub->pending = NULL;
+   chunk->flags = flags;
+   chunk->refcnt = 1;//our own reference, dropped below
+
+   pthread_mutex_lock(&hub->lock);
 
-         if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+   if (flags & NET_CHUNK_FLAG_CONFIG)
+   {
+      NET_CHUNK *config = chunk;
+      if (hub->bLastWasConfig && hub->config)
+      {//SPS and PPS came in separate buffers, remember both for new viewers
+         if (NULL != (config = malloc(sizeof(NET_CHUNK) + hub->config->length + chunk->length)))
          {
-            static char dimon_sps_buf[30];
-            static uint32_t dimon_sps_len = 0;
-            //sps/pps comes in 2 callbacks
-            if(dimon_sps_len == 0)//do not send a first part of sps/pps immediately
-            {//but store it temporarly
-               if(sizeof(dimon_sps_buf) < buffer->length)
-                  exit(__LINE__);
-               dimon_sps_len = buffer->length;
-               memcpy(dimon_sps_buf, buffer->data, dimon_sps_len);
-            }
-            else
-            {//wait for the second part and send both parts in one chunk
-               uint32_t uiTmp = dimon_sps_len;
-               dimon_sps_len += buffer->length;
-               SendToAndroid(pData->sockFD, &dimon_sps_len, 4);
-               SendToAndroid(pData->sockFD, &dimon_sps_buf, uiTmp);
-               SendToAndroid(pData->sockFD, buffer->data, buffer->length);
-            }
+            config->refcnt = 0;
+            config->owner = NULL;
+            config->flags = flags;
+            config->size = config->length = hub->config->length + chunk->length;
+            memcpy(config->data, hub->config->data, hub->config->length);
+            memcpy(config->data + hub->config->length, chunk->data, chunk->length);
          }
-         else
-         {
-            //H264 data comes first, then comes motion vectors
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-            {   //motion vectors
-            }
-            else
-            {   //H264 data
-               if (0 == buffer->flags)
-               {//begin of a partial frame
-                  if(p_buf_partial_begin)
-                  {
-                     printf("Error in logic, p_buf_partial_begin\n");
-                     exit(12);
-                  }
-                  p_buf_partial_begin = buffer;
-               }
-               else if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               {//a complete frame or the end of a partial frame
-                  if(p_buf_partial_begin)
-                  {
-                     uint32_t all_length = p_buf_partial_begin->length + buffer->length;
-
-                     //printf("    partial, p_buf_partial_begin->length=%u, buffer->length=%u, all_length=0x%x\n", p_buf_partial_begin->length, buffer->length, all_length);
-                     SendToAndroid(pData->sockFD, &all_length,                      4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, p_buf_partial_begin->data, p_buf_partial_begin->length);   //send the frame
-                     SendToAndroid(pData->sockFD, buffer->data,                    buffer->length);   //send the frame
-                     mmal_buffer_header_mem_unlock(p_buf_partial_begin);
-                     mmal_buffer_header_release(p_buf_partial_begin);
-                     if (port->is_enabled)
-                     {
-                        if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-                           vcos_log_error("mmal_queue_get");
-                        else
-                        {
-                           MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-                           if (status != MMAL_SUCCESS)
-                              vcos_log_error("mmal_port_send_buffer=%d", status);
-                        }
-                     }// if (port->is_enabled)
-                     p_buf_partial_begin = NULL;
-                  }
-                  else
-                  {
-                     //printf("not buffer->length=%d, buffer->length=0x%x\n", buffer->length, buffer->length);
-                     SendToAndroid(pData->sockFD, &buffer->length, 4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, buffer->data, buffer->length);   //send the frame
-                  }
-                  handle_frame_end(pData);
-               }
-            }
-         }//if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
-
-         if(!p_buf_partial_begin)
-            mmal_buffer_header_mem_unlock(buffer);
+      }
+      if (config)
+      {
+         config->refcnt++;
+         net_chunk_unref(hub->config);
+         hub->config = config;
       }
    }
-   else
+   hub->bLastWasConfig = (flags & NET_CHUNK_FLAG_CONFIG) != 0;
+
+   for (i = 0; i < hub->max_clients; i++)
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      NET_CLIENT *client = &hub->clients[i];
+      if ((client->fd < 0) || client->bDrop || client->bIdle)
+         continue;
+      if (!client->bStarted)
+      {//a new viewer can only start decoding from a key frame
+         if (flags & NET_CHUNK_FLAG_KEYFRAME)
+            client->bStarted = true;
+         else if (!(flags & NET_CHUNK_FLAG_CONFIG))
+         {
+            if (client->bResync)
+            {
+               client->chunks_dropped++;
+               hub->chunks_dropped++;
+            }
+            continue;
+         }
+      }
+      if (hub->max_queue_bytes && !(flags & NET_CHUNK_FLAG_CONFIG) &&
+          (client->queued_bytes + chunk->length > hub->max_queue_bytes))
+      {//latest frame wins: skip what is queued and continue with the next key frame
+         hub->chunks_dropped += net_client_drop_frames(client);
+         hub->bKeyframeRequest = true;
+         if (!(flags & NET_CHUNK_FLAG_KEYFRAME))
+         {
+            client->chunks_dropped++;
+            hub->chunks_dropped++;
+            continue;
+         }
+         client->bStarted = true;//a key frame is sent even if it alone exceeds the limit
+      }
+      client->bResync = false;
+      if (!net_client_push(client, chunk))
+      {
+         if (hub->max_queue_bytes)
+         {
+            hub->chunks_dropped += net_client_drop_frames(client) + 1;
+            client->chunks_dropped++;
+            hub->bKeyframeRequest = true;
+         }
+         else
+            client->bDrop = true;//too slow, the main thread will disconnect it
+      }
    }
 
-   // release buffer back to the pool
-   if(!p_buf_partial_begin)
-      mmal_buffer_header_release(buffer);
+   net_chunk_unref(chunk);
+   if (hub->spare_cnt)
+   {//the next chunk reuses a released one, it grew to frame size already
+      hub->pending = hub->spare[--hub->spare_cnt];
+      hub->pending->length = 0;
+   }
+   pthread_mutex_unlock(&hub->lock);
 
-   // and send one back to the port (if still open)
-   if (port->is_enabled && !p_buf_partial_begin)
+   if (write(hub->wake_pipe[1], "", 1) < 0)
    {
-      if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-         vcos_log_error("mmal_queue_get");
-      else
-      {
-         MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-         if (status != MMAL_SUCCESS)
-            vcos_log_error("mmal_port_send_buffer=%d", status);
-      }
-   }// if (port->is_enabled)
+      //pipe full, the main thread is awake anyway
+   }
 }
 
-static void encoder_buffer_callback_android_motion(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Send as much of the viewer queue as the socket takes without blocking.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @return false if the connection is broken
+ */
+static bool net_client_flush(NET_CLIENT *client)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
-
-   if (pData)
+   while (client->q_rd != client->q_wr)
    {
-      if (buffer->length)
+      //gather as many queued chunks as possible into one sendmsg()
+      struct iovec iov[OUTPUT_MAX_IOV];
+      struct msghdr msg;
+      unsigned int rd;
+      int n = 0;
+
+      for (rd = client->q_rd; (rd != client->q_wr) && (n < OUTPUT_MAX_IOV); rd++, n++)
       {
-         uint8_t dataType;
-         mmal_buffer_header_mem_lock(buffer);
+         NET_CHUNK *chunk = client->queue[rd % NET_CLIENT_QUEUE_LEN];
+         uint32_t offset = (rd == client->q_rd) ? client->chunk_offset : 0;
+         iov[n].iov_base = chunk->data + offset;
+         iov[n].iov_len = chunk->length - offset;
+      }
+      memset(&msg, 0, sizeof(msg));
+      msg.msg_iov = iov;
+      msg.msg_iovlen = n;
+
+      ssize_t sent = sendmsg(client->fd, &msg, MSG_NOSIGNAL | MSG_DONTWAIT);
+      if (sent < 0)
+         return (errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR);
 
-         //PrintDataType(pData, buffer);
-         static bool b_config_sent = false;//sent SPS/PPS only one time on the beginning
-         if ((!b_config_sent) && buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+      while (sent > 0)
+      {
+         NET_CHUNK *chunk = client->queue[client->q_rd % NET_CLIENT_QUEUE_LEN];
+         uint32_t left = chunk->length - client->chunk_offset;
+         if (sent < (ssize_t)left)
          {
-            b_config_sent = true;
-            SendToAndroid(pData->sockFD, &buffer->length, 4);
-            SendToAndroid(pData->sockFD, buffer->data, buffer->length);
+            client->chunk_offset += sent;
+            return true;//socket buffer is full
          }
-         else
-         {
-            //H264 data comes first, then comes motion vectors
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-            {   //motion vectors
-               dataType = (uint8_t)MotionInFrame;
-               SendToAndroid(pData->sockFD, &dataType, 1);
-               unsigned char mot = DetectMotion((INLINE_MOTION_VECTOR*) &buffer->data[0], pData->pstate);
-               SendToAndroid(pData->sockFD, &mot, 1);
-
-               if((gMotionAlarm != 0) && ((int)mot) > gMotionAlarm)
-               {
-                  dataType = (uint8_t)MotionAlarm;
-                  SendToAndroid(pData->sockFD, &dataType, 1);
-               }
-            }
-            else
-            {   //H264 data
-               if (0 == buffer->flags)
-               {//begin of a partial frame
-                  if(p_buf_partial_begin)
-                  {
-                     printf("Error in logic, p_buf_partial_begin\n");
-                     exit(12);
-                  }
-                  p_buf_partial_begin = buffer;
-               }
-               else if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               {//a complete frame or the end of a partial frame
-                  dataType = (uint8_t)RegularFrame;
-                  if(p_buf_partial_begin)
-                  {
-                     uint32_t all_length = p_buf_partial_begin->length + buffer->length;
+         sent -= left;
+         client->queued_bytes -= chunk->length;
+         client->chunks_sent++;
+         net_chunk_unref(chunk);
+         client->q_rd++;
+         client->chunk_offset = 0;
+      }
+   }
+   return true;
+}
 
-                     //printf("    partial, p_buf_partial_begin->length=%u, buffer->length=%u, all_length=0x%x\n", p_buf_partial_begin->length, buffer->length, all_length);
+/**
+ * Ask the encoder for an I-frame, so a new or lagging viewer does not have to wait for the next one.
+ * With --intra 0 there would never be another key frame to start from.
+ */
+static void request_keyframe(void)
+{
+   if (g_encoder_output && (MMAL_SUCCESS != mmal_port_parameter_set_boolean(g_encoder_output, MMAL_PARAMETER_VIDEO_REQUEST_I_FRAME, 1)))
+      vcos_log_error("Unable to request an I-frame");
+}
 
-                     SendToAndroid(pData->sockFD, &dataType,                        1);
-                     SendToAndroid(pData->sockFD, &all_length,                      4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, p_buf_partial_begin->data, p_buf_partial_begin->length);   //send the frame
-                     SendToAndroid(pData->sockFD, buffer->data,                    buffer->length);   //send the frame
-                     mmal_buffer_header_mem_unlock(p_buf_partial_begin);
-                     mmal_buffer_header_release(p_buf_partial_begin);
-                     if (port->is_enabled)
-                     {
-                        if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-                           vcos_log_error("mmal_queue_get");
-                        else
-                        {
-                           MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-                           if (status != MMAL_SUCCESS)
-                              vcos_log_error("mmal_port_send_buffer=%d", status);
-                        }
-                     }// if (port->is_enabled)
-                     p_buf_partial_begin = NULL;
-                  }
-                  else
-                  {
-                     //printf("not buffer->length=%d, buffer->length=0x%x\n", buffer->length, buffer->length);
-                     SendToAndroid(pData->sockFD, &dataType,                        1);
-                     SendToAndroid(pData->sockFD, &buffer->length, 4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, buffer->data, buffer->length);   //send the frame
-                  }
-                  handle_frame_end(pData);
-               }
-            }
-         }//if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+/**
+ * Start serving a connected viewer with the latest SPS/PPS, its video starts with the next key frame
+ *
+ * @param hub Hub
+ * @param sfd Connected socket, switched to non-blocking mode here
+ * @param addr Peer address
+ * @return false if all slots are busy
+ */
+static bool net_hub_add_client(NET_HUB *hub, int sfd, const struct sockaddr_in *addr)
+{
+   int i;
 
-         if(!p_buf_partial_begin)
-            mmal_buffer_header_mem_unlock(buffer);
-      }
+   pthread_mutex_lock(&hub->lock);
+   for (i = 0; i < hub->max_clients; i++)
+   {
+      if (hub->clients[i].fd < 0)
+         break;
    }
-   else
+   if (i == hub->max_clients)
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      pthread_mutex_unlock(&hub->lock);
+      return false;
    }
 
-   // release buffer back to the pool
-   if(!p_buf_partial_begin)
-      mmal_buffer_header_release(buffer);
+   fcntl(sfd, F_SETFL, fcntl(sfd, F_GETFL, 0) | O_NONBLOCK);
+   if (hub->profile_bitrate)
+      net_socket_profile(sfd, hub->profile_bitrate);
+   NET_CLIENT *client = &hub->clients[i];
+   memset(client, 0, sizeof(*client));
+   client->fd = sfd;
+   client->addr = *addr;
+   client->bIdle = hub->bRtsp || hub->bHttp || hub->bWebSocket;//nothing but replies until PLAY, /live.mp4 or the handshake
+   if (hub->config && !client->bIdle)
+      net_client_push(client, hub->config);
+   pthread_mutex_unlock(&hub->lock);
+
+   request_keyframe();
+   return true;
+}
 
-   // and send one back to the port (if still open)
-   if (port->is_enabled && !p_buf_partial_begin)
+/**
+ * Accept a new viewer in fan-out mode
+ */
+static void net_hub_accept(NET_HUB *hub)
+{
+   struct sockaddr_in cli_addr;
+   socklen_t clilen = sizeof(cli_addr);
+   int sfd;
+
+   if (0 > (sfd = accept(hub->listen_fd, (struct sockaddr *) &cli_addr, &clilen)))
    {
-      if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-         vcos_log_error("mmal_queue_get");
-      else
+      if (errno != EINTR)
+         fprintf(stderr, "Error on accept: %s\n", strerror(errno));
+      return;
+   }
+
+   if (hub->bTakeOver)
+   {//the old viewer is probably a dead connection of the one coming back now
+      pthread_mutex_lock(&hub->lock);
+      if (hub->clients[0].fd >= 0)
       {
-         MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-         if (status != MMAL_SUCCESS)
-            vcos_log_error("mmal_port_send_buffer=%d", status);
+         int i;
+         for (i = 1; i < hub->max_clients; i++)
+         {
+            if (hub->clients[i].fd < 0)
+               break;
+         }
+         if (i == hub->max_clients)
+            net_client_close(&hub->clients[0]);
       }
-   }// if (port->is_enabled)
+      pthread_mutex_unlock(&hub->lock);
+   }
+
+   if (net_hub_add_client(hub, sfd, &cli_addr))
+      fprintf(stderr, "Viewer connected from %s:%"SCNu16"\n", inet_ntoa(cli_addr.sin_addr), ntohs(cli_addr.sin_port));
+   else
+   {
+      fprintf(stderr, "Rejecting viewer %s:%"SCNu16", already serving %d\n",
+              inet_ntoa(cli_addr.sin_addr), ntohs(cli_addr.sin_port), hub->max_clients);
+      close(sfd);
+   }
 }
 
-static void encoder_buffer_callback_android(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Read commands from a viewer and execute complete lines
+ *
+ * @return false if the connection is closed
+ */
+static bool net_client_read_commands(RASPIVID_STATE *pState, NET_CLIENT *client)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
+   ssize_t got = recv(client->fd, client->cmd_buf + client->cmd_len, sizeof(client->cmd_buf) - 1 - client->cmd_len, MSG_DONTWAIT);
+   if (got == 0)
+      return false;
+   if (got < 0)
+      return (errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR);
+
+   client->cmd_len += got;
+   client->cmd_buf[client->cmd_len] = 0;
 
-   if (pData)
+   char *line = client->cmd_buf, *eol;
+   while (NULL != (eol = strchr(line, '\n')))
    {
-      if (buffer->length)
-      {
-         mmal_buffer_header_mem_lock(buffer);
+      char chTmp = eol[1];
+      eol[1] = 0;
+      handle_command_line(pState, line);
+      eol[1] = chTmp;
+      line = eol + 1;
+   }
+   client->cmd_len -= line - client->cmd_buf;
+   memmove(client->cmd_buf, line, client->cmd_len);
+   if (client->cmd_len == sizeof(client->cmd_buf) - 1)
+      client->cmd_len = 0;//garbage without a newline, forget it
+   return true;
+}
 
-         //PrintDataType(pData, buffer);
+/// First and longest wait between two connection attempts in keepalive push mode
+#define NET_RECONNECT_MIN_MS 100
+#define NET_RECONNECT_MAX_MS 5000
 
-         if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
-         {
-            SendToAndroid(pData->sockFD, &buffer->length, 4);
-            SendToAndroid(pData->sockFD, buffer->data, buffer->length);
-         }
-         else
+/**
+ * Connect to the viewer, retrying with exponential backoff until it answers
+ *
+ * @param addr Viewer address
+ * @return Connected TCP socket
+ */
+static int net_connect_backoff(const struct sockaddr_in *addr)
+{
+   int wait_ms = NET_RECONNECT_MIN_MS;
+
+   for (;;)
+   {
+      int sfd = socket(AF_INET, SOCK_STREAM, 0);
+      if (sfd < 0)
+      {
+         fprintf(stderr, "Error creating socket: %s\n", strerror(errno));
+         exit(__LINE__);
+      }
+      fprintf(stderr, "Connecting to %s:%"SCNu16"...", inet_ntoa(addr->sin_addr), ntohs(addr->sin_port));
+      int iTmp;
+      while ((-1 == (iTmp = connect(sfd, (struct sockaddr *) addr, sizeof(*addr)))) && (EINTR == errno))
+         ;
+      if (iTmp == 0)
+      {
+         fprintf(stderr, "connected, sending video...\n");
+         return sfd;
+      }
+      fprintf(stderr, "error: %s, retry in %dms\n", strerror(errno), wait_ms);
+      close(sfd);
+      vcos_sleep(wait_ms);
+      wait_ms = vcos_min(2 * wait_ms, NET_RECONNECT_MAX_MS);
+   }
+}
+
+/**
+ * rtsp mode: hand the batched RTP packets to the viewers. TCP interleaved viewers get them with the
+ * frame chunk the encoder callback commits to the hub, UDP viewers right away.
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Unconnected UDP socket, packets go to NET_CLIENT::rtp_addr of every UDP viewer
+ */
+static void rtsp_flush(RTP_STATE *rtp, int sockFD)
+{
+   NET_HUB *hub = rtp->pHub;
+   int i, k;
+
+   for (k = 0; k < rtp->batch_cnt; k++)
+   {
+      struct iovec *iov = rtp->batch_iov[k];
+      uint32_t len = iov[0].iov_len + iov[1].iov_len;
+      unsigned char interleaved[4] = { '$', RTSP_CHANNEL_RTP, len >> 8, len & 0xff };
+
+      net_hub_append(hub, interleaved, sizeof(interleaved));
+      net_hub_append(hub, iov[0].iov_base, iov[0].iov_len);
+      net_hub_append(hub, iov[1].iov_base, iov[1].iov_len);
+   }
+
+   pthread_mutex_lock(&hub->lock);
+   for (i = 0; (i < hub->max_clients) && (sockFD >= 0); i++)
+   {
+      NET_CLIENT *client = &hub->clients[i];
+      int done = 0;
+
+      if ((client->fd < 0) || !client->bPlaying || !client->rtp_addr.sin_port)
+         continue;
+      for (k = 0; k < rtp->batch_cnt; k++)
+      {
+         rtp->batch_msg[k].msg_hdr.msg_name = &client->rtp_addr;
+         rtp->batch_msg[k].msg_hdr.msg_namelen = sizeof(client->rtp_addr);
+      }
+      while (done < rtp->batch_cnt)
+      {
+         int sent = sendmmsg(sockFD, rtp->batch_msg + done, rtp->batch_cnt - done, MSG_NOSIGNAL | MSG_DONTWAIT);
+         if (sent < 0)
          {
-            //H264 data comes first, then comes motion vectors
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-            {   //motion vectors
-            }
-            else
-            {   //H264 data
-               if (0 == buffer->flags)
-               {//begin of a partial frame
-                  if(p_buf_partial_begin)
-                  {
-                     printf("Error in logic, p_buf_partial_begin\n");
-                     exit(12);
-                  }
-                  p_buf_partial_begin = buffer;
-               }
-               else if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               {//a complete frame or the end of a partial frame
-                  if(p_buf_partial_begin)
-                  {
-                     uint32_t all_length = p_buf_partial_begin->length + buffer->length;
-
-                     //printf("    partial, p_buf_partial_begin->length=%u, buffer->length=%u, all_length=0x%x\n", p_buf_partial_begin->length, buffer->length, all_length);
-                     SendToAndroid(pData->sockFD, &all_length,                      4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, p_buf_partial_begin->data, p_buf_partial_begin->length);   //send the frame
-                     SendToAndroid(pData->sockFD, buffer->data,                    buffer->length);   //send the frame
-                     mmal_buffer_header_mem_unlock(p_buf_partial_begin);
-                     mmal_buffer_header_release(p_buf_partial_begin);
-                     if (port->is_enabled)
-                     {
-                        if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-                           vcos_log_error("mmal_queue_get");
-                        else
-                        {
-                           MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-                           if (status != MMAL_SUCCESS)
-                              vcos_log_error("mmal_port_send_buffer=%d", status);
-                        }
-                     }// if (port->is_enabled)
-                     p_buf_partial_begin = NULL;
-                  }
-                  else
-                  {
-                     //printf("not buffer->length=%d, buffer->length=0x%x\n", buffer->length, buffer->length);
-                     SendToAndroid(pData->sockFD, &buffer->length, 4);   //send first the length of a frame
-                     SendToAndroid(pData->sockFD, buffer->data, buffer->length);   //send the frame
-                  }
-                  handle_frame_end(pData);
-               }
-            }
-         }//if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+            if (errno == EINTR)
+               continue;
+            break;//socket buffer full, UDP may drop
+         }
+         done += sent;
+      }
+   }
+   pthread_mutex_unlock(&hub->lock);
+   rtp->batch_cnt = 0;
+}
+
+/**
+ * Create the socket RTP over UDP goes out from in rtsp mode
+ *
+ * @param filename tcp://ip:port the RTSP server listens on, the UDP socket uses the same local IPv4
+ * @return Socket, -1 if RTP over UDP is not available
+ */
+static int rtsp_udp_open(const char *filename)
+{
+   struct sockaddr_in saddr;
+   int socktype, sfd;
+
+   if (!parse_network_filename(filename, &saddr, &socktype))
+      return -1;
+   saddr.sin_port = 0;//any free port, it is announced in the SETUP reply
+   if ((0 > (sfd = socket(AF_INET, SOCK_DGRAM, 0))) ||
+       (bind(sfd, (struct sockaddr *) &saddr, sizeof(saddr)) < 0))
+   {
+      fprintf(stderr, "rtsp: no RTP over UDP, socket failed: %s\n", strerror(errno));
+      if (sfd >= 0)
+         close(sfd);
+      return -1;
+   }
+   return sfd;
+}
+
+/**
+ * Base64 for the sprop-parameter-sets of the SDP
+ *
+ * @param out Receives the zero terminated text, 4 * ((len + 2) / 3) + 1 bytes
+ */
+static void base64_encode(const unsigned char *in, uint32_t len, char *out)
+{
+   static const char table[] = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+   uint32_t i;
+
+   for (i = 0; i < len; i += 3)
+   {
+      uint32_t v = (in[i] << 16) | ((i + 1 < len) ? in[i + 1] << 8 : 0) | ((i + 2 < len) ? in[i + 2] : 0);
+      *out++ = table[(v >> 18) & 0x3f];
+      *out++ = table[(v >> 12) & 0x3f];
+      *out++ = (i + 1 < len) ? table[(v >> 6) & 0x3f] : '=';
+      *out++ = (i + 2 < len) ? table[v & 0x3f] : '=';
+   }
+   *out = 0;
+}
+
+/**
+ * Copy the value of an RTSP or HTTP header
+ *
+ * @param req Request, header lines end with CRLF
+ * @param name Header name, compared case insensitive
+ * @param value Receives the value, empty if the header is missing
+ * @param size Size of value
+ * @return true if the header is there
+ */
+static bool request_header(const char *req, const char *name, char *value, size_t size)
+{
+   size_t name_len = strlen(name);
+   const char *line = strstr(req, "\r\n");
 
-         if(!p_buf_partial_begin)
-            mmal_buffer_header_mem_unlock(buffer);
+   *value = 0;
+   while (line && line[2])
+   {
+      line += 2;
+      if (!strncasecmp(line, name, name_len) && (line[name_len] == ':'))
+      {
+         const char *v = line + name_len + 1, *eol = strstr(v, "\r\n");
+         size_t len;
+
+         while (*v == ' ')
+            v++;
+         len = eol ? (size_t)(eol - v) : strlen(v);
+         if (len >= size)
+            len = size - 1;
+         memcpy(value, v, len);
+         value[len] = 0;
+         return true;
       }
+      line = strstr(line, "\r\n");
+   }
+   return false;
+}
+
+/**
+ * Queue a reply behind what is already queued for the viewer, head and body are copied into one chunk.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param client Viewer
+ * @param head Status line and headers
+ * @param head_len Size of head
+ * @param body Message body, may be NULL
+ * @param body_len Size of body
+ */
+static void net_client_reply(NET_CLIENT *client, const char *head, uint32_t head_len, const void *body, uint32_t body_len)
+{
+   NET_CHUNK *chunk;
+
+   if (NULL == (chunk = malloc(sizeof(NET_CHUNK) + head_len + body_len)))
+   {
+      client->bDrop = true;
+      return;
+   }
+   chunk->refcnt = 0;
+   chunk->owner = NULL;
+   chunk->flags = NET_CHUNK_FLAG_CONTROL;
+   chunk->size = chunk->length = head_len + body_len;
+   memcpy(chunk->data, head, head_len);
+   if (body_len)
+      memcpy(chunk->data + head_len, body, body_len);
+   if (!net_client_push(client, chunk))
+   {
+      free(chunk);
+      client->bDrop = true;
    }
+}
+
+/**
+ * Queue an RTSP reply behind the media already queued for the viewer.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param client Viewer
+ * @param status Status code and reason, e.g. "200 OK"
+ * @param cseq CSeq of the request
+ * @param headers Additional header lines, each ending with CRLF
+ * @param body Message body, NULL for none
+ */
+static void rtsp_reply(NET_CLIENT *client, const char *status, const char *cseq, const char *headers, const char *body)
+{
+   char text[2048];
+   int len;
+
+   if (body)
+      len = snprintf(text, sizeof(text), "RTSP/1.0 %s\r\nCSeq: %s\r\nServer: raspivid\r\n%sContent-Length: %u\r\n\r\n%s",
+                     status, cseq, headers, (unsigned int) strlen(body), body);
+   else
+      len = snprintf(text, sizeof(text), "RTSP/1.0 %s\r\nCSeq: %s\r\nServer: raspivid\r\n%s\r\n", status, cseq, headers);
+   if (len >= (int) sizeof(text))
+      client->bDrop = true;
    else
+      net_client_reply(client, text, len, NULL, 0);
+}
+
+/**
+ * Build the SDP of the H.264 stream from the latest SPS/PPS.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param pState Pointer to state
+ * @param client Viewer asking, its connection tells our address
+ * @param sdp Receives the SDP
+ * @param size Size of sdp
+ */
+static void rtsp_build_sdp(RASPIVID_STATE *pState, NET_CLIENT *client, char *sdp, size_t size)
+{
+   RTP_STATE *rtp = &pState->callback_data.rtp;
+   struct sockaddr_in local;
+   socklen_t locallen = sizeof(local);
+   char fmtp[256] = "";
+
+   memset(&local, 0, sizeof(local));
+   getsockname(client->fd, (struct sockaddr *) &local, &locallen);
+   if (rtp->sps_len >= 4)
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      char sps[4 * (RTSP_MAX_PARAM_SET + 2) / 3 + 1], pps[4 * (RTSP_MAX_PARAM_SET + 2) / 3 + 1];
+      base64_encode(rtp->sps, rtp->sps_len, sps);
+      base64_encode(rtp->pps, rtp->pps_len, pps);
+      snprintf(fmtp, sizeof(fmtp), ";profile-level-id=%02X%02X%02X;sprop-parameter-sets=%s%s%s",
+               rtp->sps[1], rtp->sps[2], rtp->sps[3], sps, rtp->pps_len ? "," : "", pps);
    }
+   snprintf(sdp, size,
+            "v=0\r\n"
+            "o=- %u 1 IN IP4 %s\r\n"
+            "s=raspivid\r\n"
+            "c=IN IP4 0.0.0.0\r\n"
+            "t=0 0\r\n"
+            "a=control:*\r\n"
+            "m=video 0 RTP/AVP %d\r\n"
+            "a=rtpmap:%d H264/90000\r\n"
+            "a=fmtp:%d packetization-mode=1%s\r\n"
+            "a=control:track1\r\n",
+            rtp->ssrc, inet_ntoa(local.sin_addr), RTP_PAYLOAD_TYPE_H264, RTP_PAYLOAD_TYPE_H264,
+            RTP_PAYLOAD_TYPE_H264, fmtp);
+}
 
-   // release buffer back to the pool
-   if(!p_buf_partial_begin)
-      mmal_buffer_header_release(buffer);
+/**
+ * Handle one RTSP request, the stream has a single track and a session lives as long as its RTSP connection
+ *
+ * @param pState Pointer to state
+ * @param client Viewer
+ * @param req Request line and headers, each ending with CRLF
+ * @return false if the connection should be closed
+ */
+static bool rtsp_handle_request(RASPIVID_STATE *pState, NET_CLIENT *client, const char *req)
+{
+   NET_HUB *hub = &pState->hub;
+   RTP_STATE *rtp = &pState->callback_data.rtp;
+   char method[16], url[256], cseq[16], value[256], headers[512];
+
+   if (2 != sscanf(req, "%15s %255s", method, url))
+      return false;
+   request_header(req, "CSeq", cseq, sizeof(cseq));
+   headers[0] = 0;
+
+   pthread_mutex_lock(&hub->lock);
+   if (!strcmp(method, "OPTIONS"))
+      rtsp_reply(client, "200 OK", cseq, "Public: OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN, GET_PARAMETER, SET_PARAMETER\r\n", NULL);
+   else if (!strcmp(method, "DESCRIBE"))
+   {
+      char sdp[1024];
+      rtsp_build_sdp(pState, client, sdp, sizeof(sdp));
+      snprintf(headers, sizeof(headers), "Content-Base: %s%s\r\nContent-Type: application/sdp\r\n",
+               url, (url[strlen(url) - 1] == '/') ? "" : "/");
+      rtsp_reply(client, "200 OK", cseq, headers, sdp);
+   }
+   else if (!strcmp(method, "SETUP"))
+   {
+      unsigned int rtp_port, rtcp_port;
+      const char *cp;
 
-   // and send one back to the port (if still open)
-   if (port->is_enabled && !p_buf_partial_begin)
+      request_header(req, "Transport", value, sizeof(value));
+      if (!client->session_id)
+         client->session_id = (rand() << 1) | 1;
+      if (strstr(value, "RTP/AVP/TCP") || strstr(value, "interleaved="))
+      {
+         memset(&client->rtp_addr, 0, sizeof(client->rtp_addr));
+         snprintf(headers, sizeof(headers), "Transport: RTP/AVP/TCP;unicast;interleaved=%d-%d;ssrc=%08X\r\n"
+                  "Session: %08X;timeout=%d\r\n", RTSP_CHANNEL_RTP, RTSP_CHANNEL_RTP + 1, rtp->ssrc,
+                  client->session_id, RTSP_SESSION_TIMEOUT);
+      }
+      else if ((pState->callback_data.sockFD >= 0) && (NULL != (cp = strstr(value, "client_port="))) &&
+               (2 == sscanf(cp, "client_port=%u-%u", &rtp_port, &rtcp_port)) && rtp_port && (rtp_port < 65536))
+      {
+         struct sockaddr_in local;
+         socklen_t locallen = sizeof(local);
+
+         memset(&local, 0, sizeof(local));
+         getsockname(pState->callback_data.sockFD, (struct sockaddr *) &local, &locallen);
+         client->rtp_addr = client->addr;
+         client->rtp_addr.sin_port = htons(rtp_port);
+         snprintf(headers, sizeof(headers), "Transport: RTP/AVP;unicast;client_port=%u-%u;server_port=%u-%u;ssrc=%08X\r\n"
+                  "Session: %08X;timeout=%d\r\n", rtp_port, rtcp_port, ntohs(local.sin_port), ntohs(local.sin_port) + 1,
+                  rtp->ssrc, client->session_id, RTSP_SESSION_TIMEOUT);
+      }
+      else
+         headers[0] = 0;
+      if (headers[0])
+         rtsp_reply(client, "200 OK", cseq, headers, NULL);
+      else
+         rtsp_reply(client, "461 Unsupported Transport", cseq, "", NULL);
+   }
+   else if (!strcmp(method, "PLAY"))
    {
-      if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
-         vcos_log_error("mmal_queue_get");
+      if (!client->session_id)
+         rtsp_reply(client, "455 Method Not Valid in This State", cseq, "", NULL);
       else
       {
-         MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
-         if (status != MMAL_SUCCESS)
-            vcos_log_error("mmal_port_send_buffer=%d", status);
+         snprintf(headers, sizeof(headers), "Session: %08X\r\nRange: npt=0.000-\r\n", client->session_id);
+         rtsp_reply(client, "200 OK", cseq, headers, NULL);
+         if (!client->bPlaying)
+         {//the reply is queued before any media, interleaved media starts with the next key frame
+            fprintf(stderr, "Viewer %s:%"SCNu16" plays over %s\n", inet_ntoa(client->addr.sin_addr),
+                    ntohs(client->addr.sin_port), client->rtp_addr.sin_port ? "UDP" : "TCP");
+            client->bPlaying = true;
+            client->bIdle = (client->rtp_addr.sin_port != 0);
+            client->bStarted = false;
+            client->bResync = false;
+            hub->bKeyframeRequest = true;
+         }
       }
-   }// if (port->is_enabled)
+   }
+   else if (!strcmp(method, "PAUSE") || !strcmp(method, "TEARDOWN"))
+   {
+      snprintf(headers, sizeof(headers), "Session: %08X\r\n", client->session_id);
+      rtsp_reply(client, "200 OK", cseq, headers, NULL);
+      client->bPlaying = false;
+      client->bIdle = true;
+      if (!strcmp(method, "TEARDOWN"))
+         client->session_id = 0;
+   }
+   else if (!strcmp(method, "GET_PARAMETER") || !strcmp(method, "SET_PARAMETER"))
+   {//keepalive
+      snprintf(headers, sizeof(headers), "Session: %08X\r\n", client->session_id);
+      rtsp_reply(client, "200 OK", cseq, headers, NULL);
+   }
+   else
+      rtsp_reply(client, "501 Not Implemented", cseq, "", NULL);
+   pthread_mutex_unlock(&hub->lock);
+   return true;
 }
 
-static void encoder_buffer_callback_empty(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Read RTSP requests from a viewer and answer complete ones. Interleaved packets
+ * from the viewer (RTCP receiver reports) and request bodies are skipped, also when
+ * they are split over several TCP segments: cmd_skip carries the rest to the next call.
+ *
+ * @return false if the connection is closed
+ */
+static bool rtsp_client_read(RASPIVID_STATE *pState, NET_CLIENT *client)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
-
-   if (pData)
+   ssize_t got = recv(client->fd, client->cmd_buf + client->cmd_len, sizeof(client->cmd_buf) - 1 - client->cmd_len, MSG_DONTWAIT);
+   if (got == 0)
+      return false;
+   if (got < 0)
+      return (errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR);
+   client->cmd_len += got;
+
+   for (;;)
    {
-      if (buffer->length)
+      char *buf = client->cmd_buf, *end, length[16];
+      uint32_t used;
+
+      if (client->cmd_skip)
+      {//the rest of an interleaved packet or of a body may come with a later recv()
+         if (!client->cmd_len)
+            break;
+         used = vcos_min(client->cmd_skip, (uint32_t) client->cmd_len);
+         client->cmd_skip -= used;
+      }
+      else if (!client->cmd_len)
+         break;
+      else if (buf[0] == '$')
+      {//$ channel length(2) packet
+         if (client->cmd_len < 4)
+            break;
+         client->cmd_skip = 4 + (((unsigned char) buf[2] << 8) | (unsigned char) buf[3]);
+         continue;
+      }
+      else
       {
-         pData->ulValidCallbackCnt = 0;
-         mmal_buffer_header_mem_lock(buffer);
+         buf[client->cmd_len] = 0;
+         if (NULL == (end = strstr(buf, "\r\n\r\n")))
+            return client->cmd_len < (int) sizeof(client->cmd_buf) - 1;//a request this long is not RTSP
+         end[2] = 0;
+         used = end + 4 - buf;
+         if (!rtsp_handle_request(pState, client, buf))
+            return false;
+         if (request_header(buf, "Content-Length", length, sizeof(length)))
+            client->cmd_skip = strtoul(length, NULL, 10);//SET_PARAMETER body, not used
+      }
+      client->cmd_len -= used;
+      memmove(client->cmd_buf, client->cmd_buf + used, client->cmd_len);
+   }
+   return true;
+}
 
-         PrintDataType(pData, buffer);
+/**
+ * Queue an HTTP reply, the body is copied.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param client Viewer
+ * @param status Status code and reason, e.g. "200 OK"
+ * @param type Content-Type
+ * @param headers Additional header lines, each ending with CRLF
+ * @param body Message body
+ * @param body_len Size of body
+ */
+static void http_reply(NET_CLIENT *client, const char *status, const char *type, const char *headers, const void *body, uint32_t body_len)
+{
+   char head[512];
+   int len = snprintf(head, sizeof(head), "HTTP/1.1 %s\r\nServer: raspivid\r\nContent-Type: %s\r\nContent-Length: %u\r\n"
+                      "Cache-Control: no-cache\r\nAccess-Control-Allow-Origin: *\r\n%s\r\n", status, type, body_len, headers);
 
-         //H264 data comes first, then comes motion vectors
-         if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-         {//motion vectors
-         }
-         else
-         {//H264 data
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-            {
-               handle_frame_end(pData);
-            }
-            else
-            {
+   if (len >= (int) sizeof(head))
+      client->bDrop = true;
+   else
+      net_client_reply(client, head, len, body, body_len);
+}
 
-            }
+/**
+ * Write the LL-HLS playlist: the last complete segments, parts of the recent ones and a hint for the next part.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param f Segment cache
+ * @param text Receives the playlist
+ * @param size Size of text
+ * @return Length of the playlist
+ */
+static int hls_playlist(FMP4_STATE *f, char *text, size_t size)
+{
+   uint32_t oldest = (f->msn > HLS_SEGMENTS - 3) ? f->msn - (HLS_SEGMENTS - 3) : 0;
+   uint32_t part_target = vcos_max(HLS_PART_US, f->frame_us), msn;
+   int64_t max_us = HLS_SEGMENT_US;
+   int len, i;
+
+   for (msn = oldest; msn <= f->msn; msn++)
+      max_us = vcos_max(max_us, f->segments[msn % HLS_SEGMENTS].duration_us);
+   len = snprintf(text, size, "#EXTM3U\n#EXT-X-VERSION:9\n#EXT-X-TARGETDURATION:%d\n"
+                  "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n"
+                  "#EXT-X-PART-INF:PART-TARGET=%.3f\n#EXT-X-MEDIA-SEQUENCE:%u\n#EXT-X-MAP:URI=\"init.mp4\"\n",
+                  (int)((max_us + 999999) / 1000000), 3 * part_target / 1e6, part_target / 1e6, oldest);
+
+   for (msn = oldest; (msn <= f->msn) && (len < (int) size); msn++)
+   {
+      HLS_SEGMENT *seg = &f->segments[msn % HLS_SEGMENTS];
+
+      if (msn + 2 >= f->msn)
+      {//parts are listed for the last three target durations
+         for (i = 0; (i < seg->parts) && (len < (int) size); i++)
+            len += snprintf(text + len, size - len, "#EXT-X-PART:DURATION=%.5f,URI=\"part%u.%d.m4s\"%s\n",
+                            seg->part_us[i] / 1e6, msn, i, seg->part_independent[i] ? ",INDEPENDENT=YES" : "");
+      }
+      if (seg->bComplete && (len < (int) size))
+         len += snprintf(text + len, size - len, "#EXTINF:%.5f,\nseg%u.m4s\n", seg->duration_us / 1e6, msn);
+      else if (len < (int) size)
+         len += snprintf(text + len, size - len, "#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"part%u.%d.m4s\"\n", msn, seg->parts);
+   }
+   return vcos_min(len, (int) size - 1);
+}
+
+/**
+ * Answer one HTTP GET:
+ * / player page, /init.mp4, /live.mp4 (chunked fMP4 from the next key frame on),
+ * /live.m3u8 (LL-HLS, blocking reload), /seg<msn>.m4s, /part<msn>.<part>.m4s.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param pState Pointer to state
+ * @param client Viewer
+ * @param path Requested path and query
+ * @return false if the request has to wait for a part that is not there yet
+ */
+static bool http_serve(RASPIVID_STATE *pState, NET_CLIENT *client, const char *path)
+{
+   NET_HUB *hub = &pState->hub;
+   FMP4_STATE *f = &pState->callback_data.fmp4;
+   const char *query;
+   uint32_t msn;
+   int part;
+
+   if (!f->fragment_seq && strcmp(path, "/") && strcmp(path, "/index.html"))
+   {//no key frame yet
+      http_reply(client, "503 Service Unavailable", "text/plain", "Retry-After: 1\r\n", "", 0);
+      return true;
+   }
+
+   if (!strcmp(path, "/") || !strcmp(path, "/index.html"))
+   {//Safari plays the LL-HLS playlist, other browsers get /live.mp4 through Media Source Extensions
+      char page[2048];
+      int len = snprintf(page, sizeof(page),
+         "<!DOCTYPE html><html><head><title>raspivid</title></head><body style=\"margin:0;background:#000\">\n"
+         "<video id=\"v\" autoplay muted playsinline controls style=\"width:100%%;height:100vh\"></video>\n"
+         "<script>\n"
+         "const v = document.getElementById('v');\n"
+         "if (v.canPlayType('application/vnd.apple.mpegurl')) v.src = 'live.m3u8';\n"
+         "else {\n"
+         " const ms = new MediaSource(); v.src = URL.createObjectURL(ms);\n"
+         " ms.addEventListener('sourceopen', async () => {\n"
+         "  const sb = ms.addSourceBuffer('video/mp4; codecs=\"avc1.%02X%02X%02X\"'), q = [];\n"
+         "  sb.mode = 'sequence';\n"
+         "  sb.addEventListener('updateend', () => { if (q.length && !sb.updating) sb.appendBuffer(q.shift()); });\n"
+         "  const r = (await fetch('live.mp4')).body.getReader();\n"
+         "  for (;;) {\n"
+         "   const { value, done } = await r.read(); if (done) break;\n"
+         "   if (sb.updating || q.length) q.push(value); else sb.appendBuffer(value);\n"
+         "   if (v.buffered.length && v.buffered.end(0) - v.currentTime > 0.5) v.currentTime = v.buffered.end(0) - 0.05;\n"
+         "  }\n"
+         " });\n"
+         "}\n"
+         "</script></body></html>\n",
+         f->sps[1], f->sps[2], f->sps[3]);
+      http_reply(client, "200 OK", "text/html", "", page, vcos_min(len, (int) sizeof(page) - 1));
+   }
+   else if (!strcmp(path, "/init.mp4"))
+      http_reply(client, "200 OK", "video/mp4", "", f->init.data, f->init.length);
+   else if (!strcmp(path, "/live.mp4"))
+   {//one endless chunked response, the fragments come through the hub queue
+      char head[256];
+      int len = snprintf(head, sizeof(head), "HTTP/1.1 200 OK\r\nServer: raspivid\r\nContent-Type: video/mp4\r\n"
+                         "Cache-Control: no-cache\r\nAccess-Control-Allow-Origin: *\r\nTransfer-Encoding: chunked\r\n\r\n%X\r\n",
+                         f->init.length);
+      net_client_reply(client, head, len, f->init.data, f->init.length);
+      net_client_reply(client, "\r\n", 2, NULL, 0);
+      fprintf(stderr, "Viewer %s:%"SCNu16" plays /live.mp4\n", inet_ntoa(client->addr.sin_addr), ntohs(client->addr.sin_port));
+      client->bIdle = false;
+      client->bStarted = false;
+      client->bResync = false;
+      hub->bKeyframeRequest = true;
+   }
+   else if (!strncmp(path, "/live.m3u8", 10))
+   {
+      char text[16384];
+      const char *p;
+
+      if ((NULL != (query = strstr(path, "_HLS_msn="))) && (1 == sscanf(query, "_HLS_msn=%u", &msn)))
+      {//blocking playlist reload: answer once the playlist has that segment or part
+         part = -1;
+         if (NULL != (p = strstr(path, "_HLS_part=")))
+            sscanf(p, "_HLS_part=%d", &part);
+         if (msn > f->msn + 2)
+         {
+            http_reply(client, "400 Bad Request", "text/plain", "", "", 0);
+            return true;
          }
+         if ((msn == f->msn) && ((part < 0) || (f->segments[msn % HLS_SEGMENTS].parts <= part)))
+            return false;
+         if (msn > f->msn)
+            return false;
+      }
+      http_reply(client, "200 OK", "application/vnd.apple.mpegurl", "", text, hls_playlist(f, text, sizeof(text)));
+   }
+   else if (2 == sscanf(path, "/part%u.%d.m4s", &msn, &part))
+   {
+      HLS_SEGMENT *seg = &f->segments[msn % HLS_SEGMENTS];
 
-         mmal_buffer_header_mem_unlock(buffer);
+      if (((msn == f->msn) && (part >= seg->parts) && (part <= seg->parts + 1)) || ((msn == f->msn + 1) && (part <= 1)))
+         return false;//preload hint, sent once complete
+      if ((seg->msn != msn) || (msn > f->msn) || (part < 0) || (part >= seg->parts))
+         http_reply(client, "404 Not Found", "text/plain", "", "", 0);
+      else
+      {
+         uint32_t start = part ? seg->part_end[part - 1] : 0;
+         http_reply(client, "200 OK", "video/mp4", "", seg->buf.data + start, seg->part_end[part] - start);
       }
    }
-   else
+   else if (1 == sscanf(path, "/seg%u.m4s", &msn))
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      HLS_SEGMENT *seg = &f->segments[msn % HLS_SEGMENTS];
+
+      if (msn == f->msn)
+         return false;
+      if ((seg->msn != msn) || !seg->bComplete)
+         http_reply(client, "404 Not Found", "text/plain", "", "", 0);
+      else
+         http_reply(client, "200 OK", "video/mp4", "", seg->buf.data, seg->buf.length);
    }
+   else
+      http_reply(client, "404 Not Found", "text/plain", "", "", 0);
+   return true;
+}
 
-   // release buffer back to the pool
-   mmal_buffer_header_release(buffer);
+/**
+ * Answer the complete requests of a viewer in order, stop at one that has to wait
+ *
+ * @return false if the connection should be closed
+ */
+static bool http_process(RASPIVID_STATE *pState, NET_CLIENT *client)
+{
+   NET_HUB *hub = &pState->hub;
 
-   // and send one back to the port (if still open)
-   if (port->is_enabled)
+   for (;;)
    {
-      MMAL_STATUS_T status;
+      char *buf = client->cmd_buf, *end, method[8], path[sizeof(client->request)];
+      bool bDone;
+
+      if (client->bWaiting)
+      {
+         pthread_mutex_lock(&hub->lock);
+         bDone = http_serve(pState, client, client->request);
+         pthread_mutex_unlock(&hub->lock);
+         if (!bDone)
+            return true;
+         client->bWaiting = false;
+      }
+      if (!client->bIdle || !client->cmd_len)
+         return true;//nothing more is answered on a /live.mp4 connection
+
+      buf[client->cmd_len] = 0;
+      if (NULL == (end = strstr(buf, "\r\n\r\n")))
+         return client->cmd_len < (int) sizeof(client->cmd_buf) - 1;//a request this long is not for us
+      if (2 != sscanf(buf, "%7s %127s", method, path))
+         return false;
+      client->cmd_len -= end + 4 - buf;
+      memmove(buf, end + 4, client->cmd_len);
+
+      pthread_mutex_lock(&hub->lock);
+      if (strcmp(method, "GET"))
+         http_reply(client, "405 Method Not Allowed", "text/plain", "Allow: GET\r\n", "", 0);
+      else if (!http_serve(pState, client, path))
+      {
+         client->bWaiting = true;
+         strcpy(client->request, path);
+      }
+      pthread_mutex_unlock(&hub->lock);
+   }
+}
 
-      new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue);
+/**
+ * Read HTTP requests from a viewer and answer them
+ *
+ * @return false if the connection is closed
+ */
+static bool http_client_read(RASPIVID_STATE *pState, NET_CLIENT *client)
+{
+   ssize_t got = recv(client->fd, client->cmd_buf + client->cmd_len, sizeof(client->cmd_buf) - 1 - client->cmd_len, MSG_DONTWAIT);
+   if (got == 0)
+      return false;
+   if (got < 0)
+      return (errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR);
+   client->cmd_len += got;
+   return http_process(pState, client);
+}
 
-      if (new_buffer)
-         status = mmal_port_send_buffer(port, new_buffer);
+/**
+ * A frame was added to the segment cache, answer the parked requests which waited for it
+ *
+ * @param pState Pointer to state
+ */
+static void http_retry_waiting(RASPIVID_STATE *pState)
+{
+   NET_HUB *hub = &pState->hub;
+   int i;
 
-      if (!new_buffer || status != MMAL_SUCCESS)
-         vcos_log_error("Unable to return a buffer to the encoder port");
+   for (i = 0; i < hub->max_clients; i++)
+   {
+      NET_CLIENT *client = &hub->clients[i];
+      if ((client->fd >= 0) && client->bWaiting && !http_process(pState, client))
+         client->bDrop = true;//garbage behind the parked request, the main loop disconnects it
    }
 }
 
-static void encoder_buffer_callback_raw_tcp(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
-{
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
+/// GUID appended to Sec-WebSocket-Key, RFC 6455
+#define WS_GUID "258EAFA5-E914-47DA-95CA-C5AB0DC85B11"
+#define WS_OP_TEXT   0x1
+#define WS_OP_BINARY 0x2
+#define WS_OP_CLOSE  0x8
+#define WS_OP_PING   0x9
+#define WS_OP_PONG   0xA
+/// websocket mode message types, first byte of the message header
+#define WS_MSG_CONFIG 0
+#define WS_MSG_FRAME  1
+/// Message header: type, flags (bit 0 = key frame), motion, reserved, pts in us (int64 big endian)
+#define WS_MSG_HEADER 12
 
-   if (pData)
+/**
+ * SHA-1 of a short message, only used for the WebSocket handshake
+ *
+ * @param msg Message
+ * @param len Size of msg, up to 119 bytes
+ * @param digest Receives the 20 bytes hash
+ */
+static void sha1(const uint8_t *msg, uint32_t len, uint8_t digest[20])
+{
+   uint32_t h[5] = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+   uint8_t block[128];
+   uint32_t blocks = (len + 8) / 64 + 1, b, i;
+   uint64_t bits = (uint64_t) len * 8;
+
+   memset(block, 0, sizeof(block));
+   memcpy(block, msg, len);
+   block[len] = 0x80;
+   for (i = 0; i < 8; i++)
+      block[blocks * 64 - 1 - i] = (uint8_t)(bits >> (8 * i));
+
+   for (b = 0; b < blocks; b++)
    {
-      if (buffer->length)
-      {
-         mmal_buffer_header_mem_lock(buffer);
+      uint32_t w[80], a = h[0], bb = h[1], c = h[2], d = h[3], e = h[4];
 
-         //H264 data comes first, then comes motion vectors
-         if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-         {//motion vectors
+      for (i = 0; i < 16; i++)
+         w[i] = ((uint32_t) block[b * 64 + 4 * i] << 24) | (block[b * 64 + 4 * i + 1] << 16) |
+                (block[b * 64 + 4 * i + 2] << 8) | block[b * 64 + 4 * i + 3];
+      for (i = 16; i < 80; i++)
+      {
+         uint32_t x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+         w[i] = (x << 1) | (x >> 31);
+      }
+      for (i = 0; i < 80; i++)
+      {
+         uint32_t f, k, t;
+         if (i < 20)
+         {
+            f = (bb & c) | (~bb & d);
+            k = 0x5A827999;
+         }
+         else if (i < 40)
+         {
+            f = bb ^ c ^ d;
+            k = 0x6ED9EBA1;
+         }
+         else if (i < 60)
+         {
+            f = (bb & c) | (bb & d) | (c & d);
+            k = 0x8F1BBCDC;
          }
          else
-         {//H264 data
-            if(buffer->length != send(pData->sockFD, buffer->data, buffer->length, MSG_NOSIGNAL))
-               exit(__LINE__);//TCP connection closed, stop program
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               handle_frame_end(pData);
+         {
+            f = bb ^ c ^ d;
+            k = 0xCA62C1D6;
          }
+         t = ((a << 5) | (a >> 27)) + f + e + k + w[i];
+         e = d;
+         d = c;
+         c = (bb << 30) | (bb >> 2);
+         bb = a;
+         a = t;
+      }
+      h[0] += a;
+      h[1] += bb;
+      h[2] += c;
+      h[3] += d;
+      h[4] += e;
+   }
+   for (i = 0; i < 20; i++)
+      digest[i] = (uint8_t)(h[i / 4] >> (24 - 8 * (i % 4)));
+}
+
+/**
+ * Write the header of an unmasked, unfragmented server frame, the length takes as few bytes as allowed
+ *
+ * @param hdr Receives up to 10 bytes
+ * @param opcode WS_OP_xxx
+ * @param len Payload bytes
+ * @return Header bytes
+ */
+static uint32_t ws_frame_header(uint8_t *hdr, uint8_t opcode, uint64_t len)
+{
+   int i;
+
+   hdr[0] = 0x80 | opcode;
+   if (len < 126)
+   {
+      hdr[1] = (uint8_t) len;
+      return 2;
+   }
+   if (len <= 0xFFFF)
+   {
+      hdr[1] = 126;
+      hdr[2] = (uint8_t)(len >> 8);
+      hdr[3] = (uint8_t) len;
+      return 4;
+   }
+   hdr[1] = 127;
+   for (i = 0; i < 8; i++)
+      hdr[2 + i] = (uint8_t)(len >> (56 - 8 * i));
+   return 10;
+}
+
+/**
+ * Answer the opening handshake, the viewer gets media from the next key frame on
+ *
+ * @return false if the request is not a WebSocket upgrade and the connection should be closed
+ */
+static bool ws_handshake(RASPIVID_STATE *pState, NET_CLIENT *client)
+{
+   NET_HUB *hub = &pState->hub;
+   char *buf = client->cmd_buf, *end, key[128], upgrade[32], text[256];
+   uint8_t digest[20];
+   char accept[32];
+   int len;
+
+   buf[client->cmd_len] = 0;
+   if (NULL == (end = strstr(buf, "\r\n\r\n")))
+      return client->cmd_len < (int) sizeof(client->cmd_buf) - 1;
+   end[2] = 0;//the headers are looked up in this request only
+   if (strncmp(buf, "GET ", 4) || !request_header(buf, "Upgrade", upgrade, sizeof(upgrade)) ||
+       strcasecmp(upgrade, "websocket") || !request_header(buf, "Sec-WebSocket-Key", key, sizeof(key)) ||
+       (strlen(key) + sizeof(WS_GUID) > 119))
+   {
+      static const char reply[] = "HTTP/1.1 426 Upgrade Required\r\nServer: raspivid\r\nUpgrade: websocket\r\n"
+                                  "Connection: close\r\nContent-Length: 0\r\n\r\n";
+      if (send(client->fd, reply, sizeof(reply) - 1, MSG_NOSIGNAL | MSG_DONTWAIT) < 0)
+      {
+         //closed anyway
+      }
+      return false;
+   }
+   strcat(key, WS_GUID);
+   sha1((const uint8_t *) key, strlen(key), digest);
+   base64_encode(digest, sizeof(digest), accept);
+   len = snprintf(text, sizeof(text), "HTTP/1.1 101 Switching Protocols\r\nServer: raspivid\r\nUpgrade: websocket\r\n"
+                  "Connection: Upgrade\r\nSec-WebSocket-Accept: %s\r\n\r\n", accept);
+   client->cmd_len -= end + 4 - buf;
+   memmove(buf, end + 4, client->cmd_len);
+
+   fprintf(stderr, "Viewer %s:%"SCNu16" opened a WebSocket\n", inet_ntoa(client->addr.sin_addr), ntohs(client->addr.sin_port));
+   pthread_mutex_lock(&hub->lock);
+   net_client_reply(client, text, len, NULL, 0);
+   if (hub->config)
+      net_client_push(client, hub->config);
+   client->bIdle = false;
+   client->bStarted = false;
+   client->bResync = false;
+   hub->bKeyframeRequest = true;
+   pthread_mutex_unlock(&hub->lock);
+   return true;
+}
+
+/**
+ * Read the handshake and then the frames of a WebSocket viewer. Text messages are command lines,
+ * pings are answered, binary messages are ignored.
+ *
+ * @return false if the connection is closed
+ */
+static bool ws_client_read(RASPIVID_STATE *pState, NET_CLIENT *client)
+{
+   NET_HUB *hub = &pState->hub;
+   uint8_t *buf = (uint8_t *) client->cmd_buf;
+   ssize_t got = recv(client->fd, client->cmd_buf + client->cmd_len, sizeof(client->cmd_buf) - 1 - client->cmd_len, MSG_DONTWAIT);
+
+   if (got == 0)
+      return false;
+   if (got < 0)
+      return (errno == EAGAIN) || (errno == EWOULDBLOCK) || (errno == EINTR);
+   client->cmd_len += got;
+   if (client->bIdle)
+   {
+      if (!ws_handshake(pState, client))
+         return false;
+      if (client->bIdle)
+         return true;//handshake not complete yet
+   }
+
+   for (;;)
+   {
+      uint32_t hdr_len = 2, len, i;
+      uint8_t opcode, *payload;
+
+      if (client->cmd_len < 2)
+         return true;
+      if (!(buf[1] & 0x80))
+         return false;//client frames must be masked
+      len = buf[1] & 0x7F;
+      if (len == 127)
+         return false;//nothing a viewer sends us is that long
+      if (len == 126)
+      {
+         if (client->cmd_len < 4)
+            return true;
+         len = (buf[2] << 8) | buf[3];
+         hdr_len = 4;
+      }
+      if (hdr_len + 4 + len > sizeof(client->cmd_buf) - 1)
+         return false;
+      if ((uint32_t) client->cmd_len < hdr_len + 4 + len)
+         return true;
+
+      opcode = buf[0] & 0x0F;
+      payload = buf + hdr_len + 4;
+      for (i = 0; i < len; i++)
+         payload[i] ^= buf[hdr_len + (i & 3)];
+
+      if (opcode == WS_OP_CLOSE)
+         return false;
+      if (opcode == WS_OP_PING)
+      {
+         uint8_t pong[4];
+         uint32_t pong_len = ws_frame_header(pong, WS_OP_PONG, len);
+         pthread_mutex_lock(&hub->lock);
+         net_client_reply(client, (const char *) pong, pong_len, payload, len);
+         pthread_mutex_unlock(&hub->lock);
+      }
+      else if (opcode == WS_OP_TEXT)
+      {//one or more command lines, the last newline may be missing
+         char *line = (char *) payload, *eol, chTmp = payload[len];
+         payload[len] = 0;
+         while (*line)
+         {
+            char line_buf[256];
+            size_t line_len = (NULL != (eol = strchr(line, '\n'))) ? (size_t)(eol - line) : strlen(line);
+            if (line_len < sizeof(line_buf) - 1)
+            {
+               memcpy(line_buf, line, line_len);
+               strcpy(line_buf + line_len, "\n");
+               handle_command_line(pState, line_buf);
+            }
+            line += line_len + (eol ? 1 : 0);
+         }
+         payload[len] = chTmp;
+      }
+
+      client->cmd_len -= hdr_len + 4 + len;
+      memmove(buf, buf + hdr_len + 4 + len, client->cmd_len);
+   }
+}
+
+/**
+ * Queued output main loop: accept viewers, send their queues and execute their commands.
+ * Returns when serving a single connection and it is closed.
+ *
+ * @param pState Pointer to state
+ */
+static void net_hub_run(RASPIVID_STATE *pState)
+{
+   NET_HUB *hub = &pState->hub;
+   struct pollfd pfd[2 + NET_MAX_CLIENTS];
+   int slot[2 + NET_MAX_CLIENTS];
+
+   for (;;)
+   {
+      int i, n = 2;
+      bool bKeyframeRequest;
+
+      pfd[0].fd = hub->listen_fd;
+      pfd[0].events = POLLIN;
+      pfd[1].fd = hub->wake_pipe[0];
+      pfd[1].events = POLLIN;
+
+      pthread_mutex_lock(&hub->lock);
+      for (i = 0; i < hub->max_clients; i++)
+      {
+         NET_CLIENT *client = &hub->clients[i];
+         if (client->fd < 0)
+            continue;
+         if (client->bDrop)
+         {
+            fprintf(stderr, "Viewer %s:%"SCNu16" is too slow, ", inet_ntoa(client->addr.sin_addr), ntohs(client->addr.sin_port));
+            net_client_close(client);
+            continue;
+         }
+         pfd[n].fd = client->fd;
+         pfd[n].events = POLLIN | ((client->q_rd != client->q_wr) ? POLLOUT : 0);
+         slot[n++] = i;
+      }
+      bKeyframeRequest = hub->bKeyframeRequest;
+      hub->bKeyframeRequest = false;
+      pthread_mutex_unlock(&hub->lock);
+
+      if (bKeyframeRequest)
+         request_keyframe();
+      if ((hub->listen_fd < 0) && (n == 2))
+         return;//the single viewer is gone
+
+      if (poll(pfd, n, -1) < 0)
+      {
+         if (errno != EINTR)
+         {
+            fprintf(stderr, "poll failed: %s\n", strerror(errno));
+            return;
+         }
+         continue;
+      }
+
+      if (pfd[1].revents & POLLIN)
+      {
+         char drain[64];
+         while (read(hub->wake_pipe[0], drain, sizeof(drain)) > 0)
+            ;
+         if (hub->bHttp)
+            http_retry_waiting(pState);
+      }
+
+      for (i = 2; i < n; i++)
+      {
+         NET_CLIENT *client = &hub->clients[slot[i]];
+         bool bOK = true;
+
+         if (pfd[i].revents & (POLLERR | POLLNVAL))
+            bOK = false;
+         if (bOK && (pfd[i].revents & (POLLIN | POLLHUP)))
+         {
+            if (hub->bRtsp)
+               bOK = rtsp_client_read(pState, client);
+            else if (hub->bHttp)
+               bOK = http_client_read(pState, client);
+            else if (hub->bWebSocket)
+               bOK = ws_client_read(pState, client);
+            else
+               bOK = net_client_read_commands(pState, client);
+         }
+
+         pthread_mutex_lock(&hub->lock);
+         if (bOK)
+            bOK = net_client_flush(client);
+         if (!bOK)
+            net_client_close(client);
+         pthread_mutex_unlock(&hub->lock);
+      }
+
+      if (pfd[0].revents & POLLIN)
+         net_hub_accept(hub);
+   }
+}
+
+
+void my_annotate (MMAL_COMPONENT_T *camera, const char *string)
+{
+   MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T annotate = {
+         { MMAL_PARAMETER_ANNOTATE, sizeof(MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T) } };
+   memset(&annotate.enable, sizeof(MMAL_PARAMETER_CAMERA_ANNOTATE_V3_T) - sizeof(annotate.hdr) - sizeof(annotate.text), 0);
+   annotate.enable = 1;
+   strncpy(annotate.text, string, MMAL_CAMERA_ANNOTATE_MAX_TEXT_LEN_V3);
+   mmal_port_parameter_set(camera->control, &annotate.hdr);
+}
+
+/**
+ * Set up the adaptive bitrate controller
+ *
+ * @param abr Controller state
+ * @param start Bitrate the encoder starts with
+ * @param floor Lowest bitrate
+ * @param ceiling Highest bitrate
+ * @param down_pct Cut on congestion in percent
+ * @param up_pct Raise after ABR_PROBE_US without congestion in percent
+ */
+static void abr_init(ABR_STATE *abr, uint32_t start, uint32_t floor, uint32_t ceiling, int down_pct, int up_pct)
+{
+   memset(abr, 0, sizeof(*abr));
+   abr->floor = floor;
+   abr->ceiling = ceiling;
+   abr->current = start;
+   abr->down_pct = down_pct;
+   abr->up_pct = up_pct;
+   abr->last_frame = abr->last_change = abr->clear_since = vcos_getmicrosecs64();
+}
+
+/**
+ * Sample the send path at a frame end and move the encoder bitrate if needed.
+ * Congestion is a backlog of more than ABR_TARGET_MS of stream, or send calls
+ * that blocked for more than half of the frame interval.
+ *
+ * @param pData Callback data
+ */
+static void abr_update(PORT_USERDATA *pData)
+{
+   ABR_STATE *abr = &pData->abr;
+   int64_t now = vcos_getmicrosecs64();
+   int64_t interval = now - abr->last_frame;
+   uint32_t target = (uint64_t) abr->current / 8 * ABR_TARGET_MS / 1000;
+   uint32_t next = abr->current;
+   bool bCongested;
+
+   if (pData->pHub)
+      abr->backlog = net_hub_max_queued(pData->pHub);//the slowest viewer decides
+   else
+   {
+      int unsent = 0;
+      if ((pData->sockFD <= 0) || ioctl(pData->sockFD, TIOCOUTQ, &unsent))
+         unsent = 0;
+      abr->backlog = unsent;
+      if (pData->pNetWriter)//not handed to the socket yet
+         abr->backlog += (uint32_t)(pData->pNetWriter->data_tail - __atomic_load_n(&pData->pNetWriter->data_head, __ATOMIC_RELAXED));
+   }
+   bCongested = (abr->backlog > target) || (abr->send_us > interval / 2);
+   abr->send_us = 0;
+   abr->last_frame = now;
+
+   if (bCongested)
+   {
+      abr->clear_since = now;
+      if (now - abr->last_change >= ABR_HOLD_US)
+         next = vcos_max(abr->floor, (uint64_t) abr->current * (100 - abr->down_pct) / 100);
+   }
+   else if ((now - abr->clear_since >= ABR_PROBE_US) && (now - abr->last_change >= ABR_PROBE_US))
+      next = vcos_min(abr->ceiling, (uint64_t) abr->current * (100 + abr->up_pct) / 100);
+
+   if (next == abr->current)
+      return;
+   if (MMAL_SUCCESS != mmal_port_parameter_set_uint32(g_encoder_output, MMAL_PARAMETER_VIDEO_BIT_RATE, next))
+   {
+      vcos_log_error("Unable to change the bitrate to %u", next);
+      return;
+   }
+   abr->current = next;
+   abr->last_change = now;
+   pData->pstate->bitrate = next;
+
+   if (pData->pstate->bLowLatency)
+   {//the profile keeps NET_LOWLAT_BUFFER_MS of the stream in the kernel, at the new bitrate
+      if (pData->pHub)
+      {
+         NET_HUB *hub = pData->pHub;
+         int i;
+
+         pthread_mutex_lock(&hub->lock);
+         hub->profile_bitrate = next;//for new viewers
+         for (i = 0; i < hub->max_clients; i++)
+            if (hub->clients[i].fd >= 0)
+               net_socket_buffers(hub->clients[i].fd, SOCK_STREAM, next);
+         pthread_mutex_unlock(&hub->lock);
+      }
+      else
+         net_socket_buffers(pData->sockFD, SOCK_STREAM, next);//-abr needs a tcp:// output
+   }
+}
+
+void handle_frame_end(PORT_USERDATA *pData)
+{
+   pData->pstate->i64FramesCnt++;
+   if (pData->abr.ceiling)
+      abr_update(pData);
+   if(0 == pData->pstate->callback_data.runTimeShowStat)
+      return;
+   int64_t time_us = vcos_getmicrosecs64();
+   static int64_t last_frame_time_us = -1;
+   char strFPS[200];
+   float fFPS = 1000000.0/(time_us-last_frame_time_us);
+   if (pData->pHub)
+   {//latency first sending: show dropped messages (frames, motion...) and the longest viewer queue
+      NET_HUB *hub = pData->pHub;
+      snprintf(strFPS, sizeof(strFPS), "FPS=%2.1f, %llu, %.2" SCNu8 ", drop=%llu, q=%uKB", fFPS, pData->pstate->i64FramesCnt,
+               pData->lastFrameMotion, hub->chunks_dropped, net_hub_max_queued(hub) / 1024);
+   }
+   else if (pData->rtp.hist)
+   {//retransmissions tell how lossy the link is
+      snprintf(strFPS, sizeof(strFPS), "FPS=%2.1f, %llu, %.2" SCNu8 ", resent=%u, late=%u", fFPS, pData->pstate->i64FramesCnt,
+               pData->lastFrameMotion, pData->rtp.resent, pData->rtp.expired);
+   }
+   else
+      snprintf(strFPS, sizeof(strFPS), "FPS=%2.1f, %llu, %.2" SCNu8 ", %llu", fFPS, pData->pstate->i64FramesCnt, pData->lastFrameMotion, pData->pstate->i64FramesSkip);
+   if (pData->abr.ceiling)
+   {
+      size_t used = strlen(strFPS);
+      snprintf(strFPS + used, sizeof(strFPS) - used, ", br=%uk, out=%uKB", pData->abr.current / 1000, pData->abr.backlog / 1024);
+   }
+   FILE_WRITER *writers[] = { &pData->writer, &pData->recWriter };
+   int i;
+   for (i = 0; i < 2; i++)
+   {
+      FILE_WRITER *w = writers[i];
+      if (w->data)
+      {//write queue depth, latency of the last write, dropped output
+         size_t used = strlen(strFPS);
+         snprintf(strFPS + used, sizeof(strFPS) - used, ", wq=%uKB, wlat=%ums, wdrop=%u",
+                  (uint32_t)(w->data_tail - __atomic_load_n(&w->data_head, __ATOMIC_RELAXED)) / 1024,
+                  __atomic_load_n(&w->last_latency_us, __ATOMIC_RELAXED) / 1000, w->drops);
+      }
+   }
+   if (pData->pstate->encoderBuffers || pData->pstate->bEncoderBufAuto)
+   {//encoder buffers held now and at peak, of all
+      size_t used = strlen(strFPS);
+      ENCODER_POOL_STATS *pool = &pData->pool;
+      snprintf(strFPS + used, sizeof(strFPS) - used, ", pool=%u/%u/%u", __atomic_load_n(&pool->held, __ATOMIC_RELAXED),
+               pool->held_peak, pool->num);
+   }
+   my_annotate(pData->pstate->camera_component, strFPS);
+   last_frame_time_us = time_us;
+}
+
+
+typedef struct
+{
+   signed char x_vector;
+   signed char y_vector;
+   short sad;
+} INLINE_MOTION_VECTOR;
+
+#define MOTION_DEBUG_STRONGNESS (1<<0)//1
+#define MOTION_DEBUG_STATISTICS (1<<1)//2
+#include <math.h>
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#endif
+
+/**
+ * Largest squared vector length of a row of macroblocks, plain C
+ *
+ * @param imv First vector of the row
+ * @param n Macroblocks in the row
+ * @return Max of x*x + y*y, at most 2 * 128 * 128
+ */
+static uint32_t motion_row_max_sq_scalar(const INLINE_MOTION_VECTOR *imv, int n)
+{
+   uint32_t max_sq = 0;
+   int x;
+
+   for (x = 0; x < n; x++)
+   {
+      uint32_t sq = imv[x].x_vector * imv[x].x_vector + imv[x].y_vector * imv[x].y_vector;
+      if (sq > max_sq)
+         max_sq = sq;
+   }
+   return max_sq;
+}
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+/**
+ * Largest squared vector length of a row of macroblocks, 16 macroblocks per step with NEON
+ *
+ * @param imv First vector of the row
+ * @param n Macroblocks in the row
+ * @return Max of x*x + y*y, at most 2 * 128 * 128
+ */
+static uint32_t motion_row_max_sq_neon(const INLINE_MOTION_VECTOR *imv, int n)
+{
+   uint16x8_t vmax = vdupq_n_u16(0);
+   uint16x4_t m;
+   uint32_t max_sq, rest;
+   int x;
+
+   for (x = 0; x + 16 <= n; x += 16)
+   {//x, y and the two sad bytes of 16 vectors, squares are at most 16384 and their sum fits 16 bit unsigned
+      int8x16x4_t v = vld4q_s8((const int8_t *)(imv + x));
+      uint16x8_t lo = vaddq_u16(vreinterpretq_u16_s16(vmull_s8(vget_low_s8(v.val[0]), vget_low_s8(v.val[0]))),
+                                vreinterpretq_u16_s16(vmull_s8(vget_low_s8(v.val[1]), vget_low_s8(v.val[1]))));
+      uint16x8_t hi = vaddq_u16(vreinterpretq_u16_s16(vmull_s8(vget_high_s8(v.val[0]), vget_high_s8(v.val[0]))),
+                                vreinterpretq_u16_s16(vmull_s8(vget_high_s8(v.val[1]), vget_high_s8(v.val[1]))));
+      vmax = vmaxq_u16(vmax, vmaxq_u16(lo, hi));
+   }
+   m = vmax_u16(vget_low_u16(vmax), vget_high_u16(vmax));
+   m = vpmax_u16(m, m);
+   m = vpmax_u16(m, m);
+   max_sq = vget_lane_u16(m, 0);
+   rest = motion_row_max_sq_scalar(imv + x, n - x);
+   return (rest > max_sq) ? rest : max_sq;
+}
+#define motion_row_max_sq motion_row_max_sq_neon
+#define MOTION_ROW_IMPL "NEON"
+#else
+#define motion_row_max_sq motion_row_max_sq_scalar
+#define MOTION_ROW_IMPL "integer"
+#endif
+
+/**
+ * Largest squared vector length of a vector field, the encoder adds one column to every row
+ *
+ * @param imv Inline motion vectors of a frame
+ * @param mbx Macroblocks in x direction
+ * @param mby Macroblocks in y direction
+ */
+static uint32_t motion_max_sq(const INLINE_MOTION_VECTOR *imv, int mbx, int mby)
+{
+   uint32_t max_sq = 0;
+   int j;
+
+   for (j = 0; j < mby; j++)
+   {
+      uint32_t sq = motion_row_max_sq(imv + (mbx + 1) * j, mbx);
+      if (sq > max_sq)
+         max_sq = sq;
+   }
+   return max_sq;
+}
+
+/**
+ * Motion of a frame: the length of its longest vector. Squared lengths are compared,
+ * the one square root is taken of the maximum.
+ *
+ * @param imv Inline motion vectors of a frame
+ * @param pstate State with the macroblock counts
+ * @return Length of the longest vector, 0..181
+ */
+unsigned char DetectMotion(INLINE_MOTION_VECTOR *imv, RASPIVID_STATE *pstate)
+{
+   int64_t t_b = 0;
+   uint32_t max_sq;
+
+   if(pstate->motion_verbose & MOTION_DEBUG_STRONGNESS)
+      t_b = vcos_getmicrosecs64();
+   max_sq = motion_max_sq(imv, pstate->mbx, pstate->mby);
+   if(pstate->motion_verbose & MOTION_DEBUG_STRONGNESS)
+      fprintf(stderr, "max_sq=%u, time us=%llu\n", max_sq, vcos_getmicrosecs64() - t_b);
+   return (unsigned char) sqrt(max_sq);
+}
+
+/**
+ * Is a point inside a polygon, even-odd rule
+ *
+ * @param pt x0,y0,x1,y1,... of the corners
+ * @param n Number of corners
+ */
+static bool motion_zone_inside(const int *pt, int n, int x, int y)
+{
+   bool bInside = false;
+   int i, j;
+
+   for (i = 0, j = n - 1; i < n; j = i++)
+   {
+      int xi = pt[2 * i], yi = pt[2 * i + 1], xj = pt[2 * j], yj = pt[2 * j + 1];
+      if (((yi > y) != (yj > y)) && ((int64_t)(x - xi) * (yj - yi) < (int64_t)(xj - xi) * (y - yi)) == (yj > yi))
+         bInside = !bInside;
+   }
+   return bInside;
+}
+
+/**
+ * Add the macroblocks of one -zone to the zone masks
+ *
+ * @param zones Motion zones
+ * @param spec x0,y0,x1,y1,... pixel corners of a polygon or @file with a row of characters per macroblock row,
+ *             '#', 'x' or '1' marks a block, either followed by [:threshold[:blocks]]
+ * @param mbx Macroblocks in x direction
+ * @param mby Macroblocks in y direction
+ * @return false if spec is not valid
+ */
+static bool motion_zone_add(MOTION_ZONES *zones, const char *spec, int mbx, int mby)
+{
+   MOTION_ZONE *zone = &zones->zone[zones->count];
+   uint8_t bit = 1 << zones->count;
+   char *copy = strdup(spec), *shape = copy, *opt;
+   int x, y;
+
+   if (!copy)
+      return false;
+   zone->threshold = 0;
+   zone->minBlocks = 1;
+   if ((opt = strchr(shape, ':')))
+   {
+      *opt++ = 0;
+      if ((sscanf(opt, "%d:%d", &zone->threshold, &zone->minBlocks) < 1) ||
+          (zone->threshold < 0) || (zone->threshold > 255) || (zone->minBlocks < 1))
+      {
+         free(copy);
+         return false;
+      }
+   }
+
+   if (shape[0] == '@')
+   {
+      FILE *f = fopen(shape + 1, "r");
+      char line[1024];
+
+      if (!f)
+      {
+         fprintf(stderr, "Can not open %s: %s\n", shape + 1, strerror(errno));
+         free(copy);
+         return false;
+      }
+      for (y = 0; (y < mby) && fgets(line, sizeof(line), f); y++)
+         for (x = 0; (x < mbx) && line[x] && (line[x] != '\n'); x++)
+            if (strchr("#xX1", line[x]))
+               zones->mask[y * mbx + x] |= bit;
+      fclose(f);
+   }
+   else
+   {
+      int pt[2 * 32], n = 0, used;
+      const char *p = shape;
+
+      while ((n < 32) && (sscanf(p, "%d,%d%n", &pt[2 * n], &pt[2 * n + 1], &used) == 2))
+      {
+         n++;
+         p += used;
+         if (*p != ',')
+            break;
+         p++;
+      }
+      if ((n < 3) || *p)
+      {
+         free(copy);
+         return false;
+      }
+      for (y = 0; y < mby; y++)
+         for (x = 0; x < mbx; x++)
+            if (motion_zone_inside(pt, n, x * 16 + 8, y * 16 + 8))//block centre
+               zones->mask[y * mbx + x] |= bit;
+   }
+   free(copy);
+
+   zone->blocks = 0;
+   for (x = 0; x < mbx * mby; x++)
+      if (zones->mask[x] & bit)
+         zone->blocks++;
+   zones->count++;
+   return true;
+}
+
+/**
+ * Rasterise the -zone options to the macroblock grid
+ *
+ * @param zones Motion zones
+ * @param spec The -zone options
+ * @param count Number of them
+ * @param width Frame width
+ * @param height Frame height
+ * @return false on an invalid -zone
+ */
+static bool motion_zones_init(MOTION_ZONES *zones, const char **spec, int count, int width, int height)
+{
+   int mbx = (width + 15) / 16, mby = (height + 15) / 16;
+   int i;
+
+   memset(zones, 0, sizeof(*zones));
+   zones->mbx = mbx;
+   zones->mask = calloc(mbx * mby, 1);
+   zones->above = malloc(MOTION_MAX_SQ + 1);
+   if (!zones->mask || !zones->above)
+      return false;
+   zones->aboveAlarm = -1;
+   for (i = 0; i < count; i++)
+   {
+      if (!motion_zone_add(zones, spec[i], mbx, mby))
+      {
+         fprintf(stderr, "Invalid -zone %s\n", spec[i]);
+         return false;
+      }
+      fprintf(stderr, "Motion zone %d: %u macroblocks\n", i, zones->zone[i].blocks);
+   }
+   return true;
+}
+
+/**
+ * Score the zones of a frame. A block is active in a zone if its motion, the vector length rounded down
+ * like DetectMotion() does, is above the threshold of the zone. A zone with at least its minimum of active
+ * blocks scores the motion of its longest vector, otherwise 0. Any score above 0 is an alarm.
+ *
+ * Per block one table lookup of the squared length gives the zones it is active in, ANDed with the
+ * zones the block belongs to. Only the rare active blocks are counted zone by zone.
+ *
+ * @param zones Motion zones, the scores are left in zones->score
+ * @param imv Inline motion vectors of a frame
+ * @param mby Macroblocks in y direction
+ * @return Highest score, 0 = no zone alarmed
+ */
+static unsigned char motion_zones_score(MOTION_ZONES *zones, const INLINE_MOTION_VECTOR *imv, int mby)
+{
+   uint32_t active[MOTION_MAX_ZONES] = { 0 }, max_sq[MOTION_MAX_ZONES] = { 0 };
+   const uint8_t *mask = zones->mask;
+   unsigned char best = 0;
+   int mbx = zones->mbx, x, j, z;
+
+   if (zones->aboveAlarm != gMotionAlarm)
+   {//thresholds of 0 follow the alarm level, which mot_alarm= may change
+      uint32_t sq;
+      for (sq = 0; sq <= MOTION_MAX_SQ; sq++)
+      {
+         uint8_t bits = 0;
+         for (z = 0; z < zones->count; z++)
+         {
+            uint32_t thr = zones->zone[z].threshold ? zones->zone[z].threshold : gMotionAlarm;
+            if (sq >= (thr + 1) * (thr + 1))//(unsigned char) sqrt(sq) > thr
+               bits |= 1 << z;
+         }
+         zones->above[sq] = bits;
+      }
+      zones->aboveAlarm = gMotionAlarm;
+   }
+
+   for (j = 0; j < mby; j++, imv += mbx + 1, mask += mbx)
+      for (x = 0; x < mbx; x++)
+      {
+         uint8_t bits = mask[x];
+         if (bits)
+         {
+            uint32_t sq = imv[x].x_vector * imv[x].x_vector + imv[x].y_vector * imv[x].y_vector;
+            bits &= zones->above[sq];
+            while (bits)
+            {
+               z = __builtin_ctz(bits);
+               bits &= bits - 1;
+               active[z]++;
+               if (sq > max_sq[z])
+                  max_sq[z] = sq;
+            }
+         }
+      }
+
+   for (z = 0; z < zones->count; z++)
+   {
+      zones->score[z] = (active[z] >= zones->zone[z].minBlocks) ? (unsigned char) sqrt(max_sq[z]) : 0;
+      if (zones->score[z] > best)
+         best = zones->score[z];
+   }
+   return best;
+}
+
+/**
+ * Allocate the -blob labelling state for the resolution
+ *
+ * @param blobs Blob state
+ * @param minBlocks Active blocks an object needs
+ * @param threshold A block is active if its vector is longer, 0 = the -trigger level
+ * @param width Frame width
+ * @param height Frame height
+ * @return false if out of memory or too many macroblocks
+ */
+static bool motion_blobs_init(MOTION_BLOBS *blobs, int minBlocks, int threshold, int width, int height)
+{
+   int mbx = (width + 15) / 16, mby = (height + 15) / 16;
+
+   memset(blobs, 0, sizeof(*blobs));
+   if (mbx * mby >= UINT16_MAX)
+      return false;//labels are 16 bit
+   blobs->minBlocks = minBlocks;
+   blobs->threshold = threshold;
+   blobs->parent = malloc((mbx * mby + 1) * sizeof(uint16_t));
+   blobs->rows = malloc(2 * (mbx + 2) * sizeof(uint16_t));
+   blobs->acc = malloc((mbx * mby + 1) * sizeof(MOTION_BLOB_ACC));
+   return blobs->parent && blobs->rows && blobs->acc;
+}
+
+/**
+ * Root of a label, halves the path on the way
+ */
+static inline uint16_t motion_blob_find(uint16_t *parent, uint16_t l)
+{
+   while (parent[l] != l)
+   {
+      parent[l] = parent[parent[l]];
+      l = parent[l];
+   }
+   return l;
+}
+
+/**
+ * Find the moving objects of a frame: blocks with motion above the threshold, 8-connected. The motion of a
+ * block is its vector length rounded down like DetectMotion() does.
+ *
+ * One raster pass with union-find: an active block joins the labels of its left and upper neighbours,
+ * the sums of a blob are kept at its root and merged when two labels meet. Only two rows of labels are
+ * kept, the objects are read from the roots afterwards.
+ *
+ * @param blobs Blob state, the objects of at least minBlocks blocks are left in blobs->blob, largest first
+ * @param imv Inline motion vectors of a frame
+ * @param mbx Macroblocks in x direction
+ * @param mby Macroblocks in y direction
+ * @param mask Only blocks with a bit set take part, NULL = all
+ * @return Longest vector of all objects, 0 = none
+ */
+static unsigned char motion_blobs_find(MOTION_BLOBS *blobs, const INLINE_MOTION_VECTOR *imv, int mbx, int mby,
+                                       const uint8_t *mask)
+{
+   uint16_t *parent = blobs->parent;
+   MOTION_BLOB_ACC *acc = blobs->acc;
+   uint32_t thr = blobs->threshold ? blobs->threshold : gMotionAlarm;
+   uint32_t thr_sq = (thr + 1) * (thr + 1), best_sq = 0;//(unsigned char) sqrt(sq) > thr, like DetectMotion()
+   uint16_t next = 0, l;
+   int x, j, k;
+
+   memset(blobs->rows, 0, 2 * (mbx + 2) * sizeof(uint16_t));
+   for (j = 0; j < mby; j++, imv += mbx + 1)
+   {
+      uint16_t *up = blobs->rows + ((j + 1) & 1) * (mbx + 2) + 1;
+      uint16_t *cur = blobs->rows + (j & 1) * (mbx + 2) + 1;
+
+      for (x = 0; x < mbx; x++)
+      {
+         uint32_t sq = imv[x].x_vector * imv[x].x_vector + imv[x].y_vector * imv[x].y_vector;
+         uint16_t nb[4];
+         MOTION_BLOB_ACC *a;
+
+         if ((sq < thr_sq) || (mask && !mask[j * mbx + x]))
+         {
+            cur[x] = 0;
+            continue;
+         }
+         nb[0] = cur[x - 1];
+         nb[1] = up[x - 1];
+         nb[2] = up[x];
+         nb[3] = up[x + 1];
+         l = 0;
+         for (k = 0; k < 4; k++)
+         {
+            uint16_t r;
+            if (!nb[k])
+               continue;
+            r = motion_blob_find(parent, nb[k]);
+            if (!l)
+               l = r;
+            else if (r != l)
+            {//two blobs meet, r goes into l
+               MOTION_BLOB_ACC *from = &acc[r], *to = &acc[l];
+               parent[r] = l;
+               to->x0 = vcos_min(to->x0, from->x0);
+               to->y0 = vcos_min(to->y0, from->y0);
+               to->x1 = vcos_max(to->x1, from->x1);
+               to->y1 = vcos_max(to->y1, from->y1);
+               to->area += from->area;
+               to->sum_x += from->sum_x;
+               to->sum_y += from->sum_y;
+               to->max_sq = vcos_max(to->max_sq, from->max_sq);
+            }
+         }
+         if (!l)
+         {//a new blob
+            l = ++next;
+            parent[l] = l;
+            a = &acc[l];
+            a->x0 = a->x1 = x;
+            a->y0 = a->y1 = j;
+            a->area = 0;
+            a->sum_x = a->sum_y = 0;
+            a->max_sq = 0;
+         }
+         a = &acc[l];
+         a->x0 = vcos_min(a->x0, x);
+         a->x1 = vcos_max(a->x1, x);
+         a->y1 = j;
+         a->area++;
+         a->sum_x += imv[x].x_vector;
+         a->sum_y += imv[x].y_vector;
+         a->max_sq = vcos_max(a->max_sq, sq);
+         cur[x] = l;
+      }
+   }
+
+   blobs->count = 0;
+   for (l = 1; l <= next; l++)
+   {
+      MOTION_BLOB_ACC *a = &acc[l];
+      MOTION_BLOB *b;
+
+      if (parent[l] != l)
+         continue;
+      if (a->area < blobs->minBlocks)
+         continue;
+      best_sq = vcos_max(best_sq, a->max_sq);
+      for (k = blobs->count; (k > 0) && (blobs->blob[k - 1].area < a->area); k--)
+         if (k < MOTION_MAX_BLOBS)
+            blobs->blob[k] = blobs->blob[k - 1];
+      if (k >= MOTION_MAX_BLOBS)
+         continue;//smaller than the ones kept
+      b = &blobs->blob[k];
+      b->x0 = a->x0;
+      b->y0 = a->y0;
+      b->x1 = a->x1;
+      b->y1 = a->y1;
+      b->area = a->area;
+      b->vx = a->sum_x / (int32_t) a->area;
+      b->vy = a->sum_y / (int32_t) a->area;
+      b->motion = (unsigned char) sqrt(a->max_sq);
+      if (blobs->count < MOTION_MAX_BLOBS)
+         blobs->count++;
+   }
+   return (unsigned char) sqrt(best_sq);
+}
+
+/**
+ * -motionbench: time DetectMotion() on random vector fields of common sizes against a square root
+ * per macroblock, check that both give the same motion and print the cost per frame, also of -blob 4:3
+ */
+static void motion_bench(void)
+{
+   static const struct
+   {
+      int width, height;
+   } sizes[] = { {1280, 720}, {1920, 1080}, {2592, 1944} };
+   const int frames = 200;
+   int i, f;
+
+   fprintf(stderr, "DetectMotion: " MOTION_ROW_IMPL "\n");
+   for (i = 0; i < sizeof(sizes) / sizeof(sizes[0]); i++)
+   {
+      int mbx = (sizes[i].width + 15) / 16, mby = (sizes[i].height + 15) / 16;
+      int count = (mbx + 1) * mby, k;
+      INLINE_MOTION_VECTOR *imv = malloc(count * sizeof(INLINE_MOTION_VECTOR));
+      int64_t t_sqrt = 0, t_fast = 0, t_blobs = 0, t0;
+      bool bSame = true;
+      MOTION_BLOBS blobs;
+
+      if (!imv || !motion_blobs_init(&blobs, 4, 3, sizes[i].width, sizes[i].height))
+         return;
+      srand(i);
+      for (f = 0; f < frames; f++)
+      {
+         unsigned char by_sqrt = 0, fast;
+         int j, x;
+
+         for (k = 0; k < count; k++)
+         {//mostly small vectors, a few long ones
+            imv[k].x_vector = (rand() % 100) ? (rand() % 9) - 4 : rand() % 256 - 128;
+            imv[k].y_vector = (rand() % 100) ? (rand() % 9) - 4 : rand() % 256 - 128;
+            imv[k].sad = rand();
+         }
+         t0 = vcos_getmicrosecs64();
+         for (j = 0; j < mby; j++)
+            for (x = 0; x < mbx; x++)
+            {
+               INLINE_MOTION_VECTOR *v = &imv[x + (mbx + 1) * j];
+               unsigned char len = (unsigned char) sqrt(v->x_vector * v->x_vector + v->y_vector * v->y_vector);
+               if (len > by_sqrt)
+                  by_sqrt = len;
+            }
+         t_sqrt += vcos_getmicrosecs64() - t0;
+         t0 = vcos_getmicrosecs64();
+         fast = (unsigned char) sqrt(motion_max_sq(imv, mbx, mby));
+         t_fast += vcos_getmicrosecs64() - t0;
+         bSame = bSame && (fast == by_sqrt);
+         t0 = vcos_getmicrosecs64();
+         motion_blobs_find(&blobs, imv, mbx, mby, NULL);
+         t_blobs += vcos_getmicrosecs64() - t0;
+      }
+      fprintf(stderr, "%dx%d, %d macroblocks: sqrt per macroblock %.1f us, DetectMotion %.1f us, -blob %.1f us per frame%s\n",
+              sizes[i].width, sizes[i].height, mbx * mby, (double) t_sqrt / frames, (double) t_fast / frames,
+              (double) t_blobs / frames, bSame ? "" : ", RESULTS DIFFER");
+      free(blobs.parent);
+      free(blobs.rows);
+      free(blobs.acc);
+      free(imv);
+   }
+}
+
+void PrintDataType(PORT_USERDATA *pData, MMAL_BUFFER_HEADER_T *buffer)
+{
+   int64_t time_now = vcos_getmicrosecs64();
+   static int64_t time_us_prev = 0;
+   int uiTimeDiff;
+   if(time_us_prev == 0)
+      uiTimeDiff = 0;
+   else
+      uiTimeDiff = time_now - time_us_prev;
+   time_us_prev = time_now;
+   fprintf(stderr, "time(us)=%.6d, frame=%.3llu, callbacks=%.3lu, buffer->length=%.6d, buffer->flags=0x%.2x: ",
+           uiTimeDiff, pData->pstate->i64FramesCnt, pData->ulValidCallbackCnt++, buffer->length, buffer->flags);
+   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME)
+          fprintf(stderr, "KEYFRAME, ");
+   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_START)
+          fprintf(stderr, "FRAME_START, ");
+   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
+          fprintf(stderr, "FRAME_END, ");
+   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+          fprintf(stderr, "FLAG_CONFIG, ");
+   if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
+          fprintf(stderr, "FLAG_CODECSIDEINFO, ");
+
+   fprintf(stderr, "\n");
+}
+
+typedef enum ANDROID_DATA_TYPES
+{
+    CurrentResolution=0,
+    RegularFrame,
+    MotionInFrame,
+    MotionAlarm,
+    MotionBlobs
+} ANDROID_DATA_TYPES;
+
+
+/**
+ * Writer thread: write the queued pieces in order, exits on errors like the synchronous writes
+ */
+static void *writer_thread(void *arg)
+{
+   FILE_WRITER *w = (FILE_WRITER *) arg;
+   uint32_t head = w->desc_head;
+
+   for (;;)
+   {
+      uint32_t wake = __atomic_load_n(&w->wake, __ATOMIC_ACQUIRE);
+      uint32_t tail = __atomic_load_n(&w->desc_tail, __ATOMIC_ACQUIRE);
+      WRITER_DESC *d;
+      uint32_t done = 0, latency;
+
+      if (head == tail)
+      {
+         if (__atomic_load_n(&w->bQuit, __ATOMIC_ACQUIRE))
+            break;
+         syscall(SYS_futex, &w->wake, FUTEX_WAIT_PRIVATE, wake, NULL, NULL, 0);
+         continue;
+      }
+      d = &w->desc[head % WRITER_MAX_DESC];
+      while (done < d->length)
+      {
+         const uint8_t *p = w->data + (d->end - d->length) % w->size + done;
+         ssize_t written = w->bSocket ? send(d->fd, p, d->length - done, MSG_NOSIGNAL) : write(d->fd, p, d->length - done);
+         if (written <= 0)
+         {
+            if ((written < 0) && (errno == EINTR))
+               continue;
+            if (w->bSocket)
+               exit(__LINE__);//TCP connection closed, stop program like SendToAndroid()
+            vcos_log_error("Error writing the output file: %s", strerror(errno));
+            exit(__LINE__);
+         }
+         done += written;
+      }
+      latency = (uint32_t)(vcos_getmicrosecs64() - d->queued_us);
+      __atomic_store_n(&w->last_latency_us, latency, __ATOMIC_RELAXED);
+      if (latency > w->max_latency_us)
+         __atomic_store_n(&w->max_latency_us, latency, __ATOMIC_RELAXED);
+      __atomic_store_n(&w->written, w->written + d->length, __ATOMIC_RELAXED);
+      __atomic_store_n(&w->writes, w->writes + 1, __ATOMIC_RELAXED);
+      __atomic_store_n(&w->data_head, d->end, __ATOMIC_RELEASE);
+      __atomic_store_n(&w->desc_head, ++head, __ATOMIC_RELEASE);
+      syscall(SYS_futex, &w->desc_head, FUTEX_WAKE_PRIVATE, INT_MAX, NULL, NULL, 0);
+   }
+   return NULL;
+}
+
+/**
+ * Allocate the queue and start the writer thread
+ *
+ * @param w Writer state
+ * @param kb Memory cap
+ * @param bWait A full queue makes the callback wait instead of dropping
+ * @param bSocket The writes go to a connected socket
+ */
+static void writer_start(FILE_WRITER *w, int kb, bool bWait, bool bSocket)
+{
+   memset(w, 0, sizeof(*w));
+   w->size = (uint32_t) kb * 1024;
+   w->bWait = bWait;
+   w->bSocket = bSocket;
+   if (NULL == (w->data = malloc(w->size)))
+   {
+      vcos_log_error("Unable to allocate %u bytes for the write queue", w->size);
+      exit(__LINE__);
+   }
+   if (pthread_create(&w->thread, NULL, writer_thread, w))
+   {
+      vcos_log_error("Unable to start the writer thread");
+      exit(__LINE__);
+   }
+}
+
+/**
+ * Queued bytes, callback side
+ */
+static uint32_t writer_queued(FILE_WRITER *w)
+{
+   return (uint32_t)(w->data_tail - __atomic_load_n(&w->data_head, __ATOMIC_ACQUIRE));
+}
+
+/**
+ * Wait until the thread has written the pieces queued before desc_tail had this value
+ */
+static void writer_wait(FILE_WRITER *w, uint32_t seq)
+{
+   uint32_t head;
+
+   while ((int32_t)(seq - (head = __atomic_load_n(&w->desc_head, __ATOMIC_ACQUIRE))) > 0)
+      syscall(SYS_futex, &w->desc_head, FUTEX_WAIT_PRIVATE, head, NULL, NULL, 0);
+}
+
+/**
+ * Check there is room for len bytes, which the caller queues with writer_push() then
+ *
+ * @param w Writer state
+ * @param len Bytes
+ * @param bWait Wait for the thread to make room, otherwise the caller drops its data and counts it in dropped
+ * @return false if the data has to be dropped
+ */
+static bool writer_reserve(FILE_WRITER *w, uint64_t len, bool bWait)
+{
+   for (;;)
+   {
+      uint32_t head = __atomic_load_n(&w->desc_head, __ATOMIC_ACQUIRE);
+
+      //a piece takes two descriptors when it wraps around the ring end, a caller may push several
+      if ((writer_queued(w) + len <= w->size) && (w->desc_tail - head + WRITER_RESERVE_DESC <= WRITER_MAX_DESC))
+         return true;
+      if (!bWait || (len > w->size))
+         return false;
+      syscall(SYS_futex, &w->desc_head, FUTEX_WAIT_PRIVATE, head, NULL, NULL, 0);
+   }
+}
+
+/**
+ * Queue the pieces of one message for the writer thread, room must have been reserved
+ *
+ * @param w Writer state
+ * @param fd File or socket to write to
+ * @param iov Pieces, copied
+ * @param iovcnt Number of pieces
+ */
+static void writer_pushv(FILE_WRITER *w, int fd, const struct iovec *iov, int iovcnt)
+{
+   int64_t now = vcos_getmicrosecs64();
+   uint64_t start = w->data_tail;
+   int i;
+
+   for (i = 0; i < iovcnt; i++)
+   {
+      const uint8_t *data = (const uint8_t *) iov[i].iov_base;
+      size_t len = iov[i].iov_len;
+
+      while (len)
+      {
+         uint32_t offset = w->data_tail % w->size;
+         uint32_t n = vcos_min(len, w->size - offset);
+
+         memcpy(w->data + offset, data, n);
+         w->data_tail += n;
+         data += n;
+         len -= n;
+      }
+   }
+   //one descriptor per contiguous part, two if the data wraps around the ring end
+   while (start < w->data_tail)
+   {
+      uint64_t end = vcos_min(w->data_tail, (start / w->size + 1) * w->size);
+      uint32_t head;
+      WRITER_DESC *d;
+
+      //the data has room, a descriptor the thread has not written yet must not be overwritten
+      while (w->desc_tail - (head = __atomic_load_n(&w->desc_head, __ATOMIC_ACQUIRE)) >= WRITER_MAX_DESC)
+         syscall(SYS_futex, &w->desc_head, FUTEX_WAIT_PRIVATE, head, NULL, NULL, 0);
+      d = &w->desc[w->desc_tail % WRITER_MAX_DESC];
+
+      d->end = end;
+      d->length = (uint32_t)(end - start);
+      d->fd = fd;
+      d->queued_us = now;
+      __atomic_store_n(&w->desc_tail, w->desc_tail + 1, __ATOMIC_RELEASE);
+      start = end;
+   }
+   if (writer_queued(w) > w->queued_peak)
+      w->queued_peak = writer_queued(w);
+   __atomic_add_fetch(&w->wake, 1, __ATOMIC_RELEASE);
+   syscall(SYS_futex, &w->wake, FUTEX_WAKE_PRIVATE, 1, NULL, NULL, 0);
+}
+
+/**
+ * Queue data for the writer thread, room must have been reserved
+ */
+static void writer_push(FILE_WRITER *w, int fd, const uint8_t *data, uint32_t len)
+{
+   struct iovec iov = { (void *) data, len };
+   writer_pushv(w, fd, &iov, 1);
+}
+
+/**
+ * Write everything queued, end the thread and print the metrics
+ */
+static void writer_stop(FILE_WRITER *w)
+{
+   if (!w->data)
+      return;
+   writer_wait(w, w->desc_tail);
+   __atomic_store_n(&w->bQuit, true, __ATOMIC_RELEASE);
+   __atomic_add_fetch(&w->wake, 1, __ATOMIC_RELEASE);
+   syscall(SYS_futex, &w->wake, FUTEX_WAKE_PRIVATE, 1, NULL, NULL, 0);
+   pthread_join(w->thread, NULL);
+   fprintf(stderr, "Writer: %u writes, %llu KB, peak queue %llu KB, max latency %u ms, dropped %llu KB in %u pieces\n",
+           w->writes, (unsigned long long) w->written / 1024, (unsigned long long) w->queued_peak / 1024,
+           w->max_latency_us / 1000, (unsigned long long) w->dropped / 1024, w->drops);
+   free(w->data);
+   w->data = NULL;
+}
+
+/**
+ * Send all pieces of a message with as few syscalls as possible, normally one sendmsg()
+ *
+ * @param sockFD Connected socket
+ * @param iov Pieces, modified on partial sends
+ * @param iovcnt Number of pieces
+ * @param flags Extra sendmsg() flags, e.g. MSG_ZEROCOPY
+ * @return Number of sendmsg() calls made
+ */
+int SendToAndroid(int sockFD, struct iovec *iov, int iovcnt, int flags)
+{
+   struct msghdr msg;
+   int calls = 0;
+
+   memset(&msg, 0, sizeof(msg));
+   msg.msg_iov = iov;
+   msg.msg_iovlen = iovcnt;
+   while (msg.msg_iovlen)
+   {
+      ssize_t sent = sendmsg(sockFD, &msg, MSG_NOSIGNAL | flags);
+      if (sent <= 0)
+      {
+         if ((sent < 0) && (errno == EINTR))
+            continue;
+         exit(__LINE__);//TCP connection closed, stop program
+      }
+      calls++;
+      //skip what went out, a blocking socket only returns short on timeout or signal
+      while (msg.msg_iovlen && (sent >= (ssize_t)msg.msg_iov->iov_len))
+      {
+         sent -= msg.msg_iov->iov_len;
+         msg.msg_iov++;
+         msg.msg_iovlen--;
+      }
+      if (sent)
+      {
+         msg.msg_iov->iov_base = (char *) msg.msg_iov->iov_base + sent;
+         msg.msg_iov->iov_len -= sent;
+      }
+   }
+   return calls;
+}
+
+/**
+ * SendToAndroid() that accounts the blocked time for the bitrate controller
+ */
+static int OutputSend(PORT_USERDATA *pData, struct iovec *iov, int iovcnt, int flags)
+{
+   int64_t start = vcos_getmicrosecs64();
+   int calls = SendToAndroid(pData->sockFD, iov, iovcnt, flags);
+   pData->abr.send_us += vcos_getmicrosecs64() - start;
+   return calls;
+}
+
+/**
+ * Send protocol data to the viewer(s). Pieces are collected until OutputCommit() and then
+ * go out with a single sendmsg(), in fan-out mode they are copied into a chunk for all viewers.
+ * buf must stay valid until OutputCommit().
+ */
+static void OutputData(PORT_USERDATA *pData, const void *buf, size_t len)
+{
+   if (pData->pHub)
+      net_hub_append(pData->pHub, buf, len);
+   else
+   {
+      if (pData->iovcnt == OUTPUT_MAX_IOV)
+      {
+         vcos_log_error("Too many pieces in one message");
+         exit(__LINE__);
+      }
+      pData->iov[pData->iovcnt].iov_base = (void *) buf;
+      pData->iov[pData->iovcnt++].iov_len = len;
+      pData->iovlen += len;
+   }
+}
+
+/**
+ * Copy a finished message into the -netq queue, the network thread sends it. A full queue drops
+ * messages up to the next key frame. SPS/PPS are never dropped and never wait: if they do not fit
+ * they are kept in a slot and queued in front of the next key frame.
+ *
+ * @param pData Callback data
+ * @param flags NET_CHUNK_FLAG_xxx describing the message
+ */
+static void OutputQueue(PORT_USERDATA *pData, uint32_t flags)
+{
+   FILE_WRITER *w = pData->pNetWriter;
+
+   if (flags & NET_CHUNK_FLAG_CONFIG)
+   {
+      pData->netConfigLen = 0;//a newer one replaces a waiting one
+      if (writer_reserve(w, pData->iovlen, false))
+         writer_pushv(w, pData->sockFD, pData->iov, pData->iovcnt);
+      else if (pData->iovlen <= sizeof(pData->netConfig))
+      {//frames up to the next key frame would need it, they are dropped
+         int i;
+         for (i = 0; i < pData->iovcnt; i++)
+         {
+            memcpy(pData->netConfig + pData->netConfigLen, pData->iov[i].iov_base, pData->iov[i].iov_len);
+            pData->netConfigLen += pData->iov[i].iov_len;
+         }
+         pData->bNetDropping = true;
+      }
+      else
+         vcos_log_error("SPS/PPS of %u bytes do not fit the -netq slot", (unsigned) pData->iovlen);
+   }
+   else if ((!pData->bNetDropping || (flags & NET_CHUNK_FLAG_KEYFRAME)) &&
+            writer_reserve(w, pData->netConfigLen + pData->iovlen + NET_WRITER_CONFIG_ROOM, w->bWait))
+   {
+      if (pData->netConfigLen)
+         writer_push(w, pData->sockFD, pData->netConfig, pData->netConfigLen);
+      pData->netConfigLen = 0;
+      writer_pushv(w, pData->sockFD, pData->iov, pData->iovcnt);
+      pData->bNetDropping = false;
+   }
+   else
+   {
+      w->dropped += pData->iovlen;
+      w->drops++;
+      pData->bNetDropping = true;
+   }
+   pData->iovcnt = 0;
+   pData->iovlen = 0;
+}
+
+/**
+ * Finish a protocol message, it is sent now, queued for the network thread (-netq) or
+ * queued for all viewers in fan-out mode
+ *
+ * @param pData Callback data
+ * @param flags NET_CHUNK_FLAG_xxx describing the message
+ */
+static void OutputCommit(PORT_USERDATA *pData, uint32_t flags)
+{
+   if (pData->pHub)
+      net_hub_commit(pData->pHub, flags);
+   else if (pData->pNetWriter)
+      OutputQueue(pData, flags);
+   else if (pData->iovcnt)
+   {
+      OutputSend(pData, pData->iov, pData->iovcnt, 0);
+      pData->iovcnt = 0;
+      pData->iovlen = 0;
+   }
+}
+
+/**
+ * Give an encoder buffer back to the pool and a fresh one to the port (if still open)
+ */
+static void return_buffer_to_port(PORT_USERDATA *pData, MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+{
+   MMAL_BUFFER_HEADER_T *new_buffer;
+
+   mmal_buffer_header_mem_unlock(buffer);
+   mmal_buffer_header_release(buffer);
+   if (port->is_enabled)
+   {
+      if (NULL == (new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue)))
+         vcos_log_error("mmal_queue_get");
+      else
+      {
+         MMAL_STATUS_T status = mmal_port_send_buffer(port, new_buffer);
+         if (status != MMAL_SUCCESS)
+            vcos_log_error("mmal_port_send_buffer=%d", status);
+      }
+   }
+}
+
+/**
+ * Wait for MSG_ZEROCOPY completions on the single connection and return the encoder buffers
+ * of completed frames. Runs in its own thread, the encoder callback may be starved of buffers
+ * while a frame is in flight.
+ */
+static void *zerocopy_reaper(void *arg)
+{
+   PORT_USERDATA *pData = (PORT_USERDATA *) arg;
+   char control[128];
+
+   for (;;)
+   {
+      struct pollfd pfd = { pData->sockFD, 0, 0 };//errqueue data is signalled as POLLERR
+      struct msghdr msg;
+      struct cmsghdr *cm;
+
+      if (poll(&pfd, 1, -1) <= 0)
+         continue;
+      if (pfd.revents & (POLLHUP | POLLNVAL))
+         return NULL;
+
+      memset(&msg, 0, sizeof(msg));
+      msg.msg_control = control;
+      msg.msg_controllen = sizeof(control);
+      if (recvmsg(pData->sockFD, &msg, MSG_ERRQUEUE | MSG_DONTWAIT) < 0)
+      {
+         if ((errno != EAGAIN) && (errno != EINTR))
+            return NULL;
+         usleep(1000);//POLLERR without a notification, e.g. a pending socket error
+         continue;
+      }
+
+      for (cm = CMSG_FIRSTHDR(&msg); cm; cm = CMSG_NXTHDR(&msg, cm))
+      {
+         struct sock_extended_err *serr = (struct sock_extended_err *) CMSG_DATA(cm);
+         int i, j;
+
+         if ((serr->ee_errno != 0) || (serr->ee_origin != SO_EE_ORIGIN_ZEROCOPY))
+            continue;
+         //[ee_info, ee_data] is the range of completed sendmsg() calls, TCP completes them in order
+         pthread_mutex_lock(&pData->zerocopyLock);
+         pData->zerocopyDone = serr->ee_data + 1;
+         for (i = 0; i < ZEROCOPY_MAX_PENDING; i++)
+         {
+            ZEROCOPY_FRAME *frame = &pData->zerocopy[i];
+            if (frame->count && ((int32_t)(serr->ee_data - frame->last_id) >= 0))
+            {
+               for (j = 0; j < frame->count; j++)
+                  return_buffer_to_port(pData, encoder_output_port, frame->buffers[j]);
+               frame->count = 0;
+            }
+         }
+         pthread_mutex_unlock(&pData->zerocopyLock);
+      }
+   }
+   return NULL;
+}
+
+/**
+ * Enable MSG_ZEROCOPY on the single connection
+ *
+ * @return false if the kernel does not support it
+ */
+static bool zerocopy_setup(PORT_USERDATA *pData)
+{
+   int one = 1;
+   pthread_t thread;
+
+   if (setsockopt(pData->sockFD, SOL_SOCKET, SO_ZEROCOPY, &one, sizeof(one)) < 0)
+   {
+      fprintf(stderr, "MSG_ZEROCOPY not supported: %s\n", strerror(errno));
+      return false;
+   }
+   pthread_mutex_init(&pData->zerocopyLock, NULL);
+   if (0 != pthread_create(&thread, NULL, zerocopy_reaper, pData))
+      return false;
+   pthread_detach(thread);
+   return true;
+}
+
+/**
+ * Finish a frame message. Large key frames go out with MSG_ZEROCOPY if enabled, the encoder
+ * buffers then stay in use until the kernel reports the data sent and zerocopy_reaper() returns them.
+ *
+ * @param pData Callback data
+ * @param flags NET_CHUNK_FLAG_xxx describing the frame
+ * @param au Access unit with the fragments held before last, they are taken over with MSG_ZEROCOPY
+ * @param last Last part of the frame
+ * @return true if the held fragments and last are owned by zerocopy_reaper() now and must not be released by the caller
+ */
+static bool OutputCommitFrame(PORT_USERDATA *pData, uint32_t flags, AU_STATE *au, MMAL_BUFFER_HEADER_T *last)
+{
+   ZEROCOPY_FRAME *frame = NULL;
+   struct iovec iov[OUTPUT_MAX_IOV + 1];
+   int i, j, iovcnt = 1, calls;
+   size_t prefix = 0;
+
+   if (pData->pHub || !pData->zerocopyMin || !(flags & NET_CHUNK_FLAG_KEYFRAME) || (pData->iovlen < pData->zerocopyMin) ||
+       au->spill.length)
+   {//copied fragments are not sent with MSG_ZEROCOPY, the spill buffer is reused by the next frame
+      OutputCommit(pData, flags);
+      return false;
+   }
+
+   pthread_mutex_lock(&pData->zerocopyLock);
+   for (i = 0; i < ZEROCOPY_MAX_PENDING; i++)
+   {
+      if (!pData->zerocopy[i].count)
+      {
+         frame = &pData->zerocopy[i];
+         break;
+      }
+   }
+   pthread_mutex_unlock(&pData->zerocopyLock);
+   if (!frame)
+   {
+      OutputCommit(pData, flags);
+      return false;
+   }
+
+   //small fields in front of the frame data live on the caller's stack, copy them
+   for (i = 0; (i < pData->iovcnt) && (prefix + pData->iov[i].iov_len <= sizeof(frame->prefix)) &&
+        (pData->iov[i].iov_base != last->data); i++)
+   {
+      for (j = 0; (j < au->count) && (pData->iov[i].iov_base != au->buffers[j]->data); j++)
+         ;
+      if (j < au->count)
+         break;
+      memcpy(frame->prefix + prefix, pData->iov[i].iov_base, pData->iov[i].iov_len);
+      prefix += pData->iov[i].iov_len;
+   }
+   iov[0].iov_base = frame->prefix;
+   iov[0].iov_len = prefix;
+   for (; i < pData->iovcnt; i++)
+      iov[iovcnt++] = pData->iov[i];
+
+   calls = OutputSend(pData, prefix ? iov : iov + 1, prefix ? iovcnt : iovcnt - 1, MSG_ZEROCOPY);
+   pData->zerocopyNextId += calls;
+   pData->iovcnt = 0;
+   pData->iovlen = 0;
+
+   pthread_mutex_lock(&pData->zerocopyLock);
+   if ((int32_t)(pData->zerocopyDone - pData->zerocopyNextId) >= 0)
+   {//completed already, the caller can release the buffers as usual
+      pthread_mutex_unlock(&pData->zerocopyLock);
+      return false;
+   }
+   frame->last_id = pData->zerocopyNextId - 1;
+   for (j = 0; j < au->count; j++)
+      frame->buffers[j] = au->buffers[j];
+   frame->buffers[j] = last;
+   frame->count = au->count + 1;
+   au->count = 0;
+   pthread_mutex_unlock(&pData->zerocopyLock);
+   return true;
+}
+
+/**
+ * NET_CHUNK_FLAG_xxx of a frame made of one or two encoder buffers
+ *
+ * @param first First part of a partial frame or NULL
+ * @param last Buffer with MMAL_BUFFER_HEADER_FLAG_FRAME_END
+ */
+static uint32_t FrameChunkFlags(MMAL_BUFFER_HEADER_T *first, MMAL_BUFFER_HEADER_T *last)
+{
+   uint32_t flags = last->flags | (first ? first->flags : 0);
+   return (flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME) ? NET_CHUNK_FLAG_KEYFRAME : 0;
+}
+
+/**
+ * Set up the RTP packetizer
+ *
+ * @param rtp Packetizer state
+ * @param mtu Max RTP packet size
+ * @param fec_group Media packets per XOR parity packet, 0 = no FEC
+ * @param nack_ms Resend NACKed packets up to this age, 0 = no retransmission
+ */
+static void rtp_init(RTP_STATE *rtp, uint32_t mtu, int fec_group, int nack_ms)
+{
+   memset(rtp, 0, sizeof(*rtp));
+   srand(vcos_getmicrosecs64() ^ getpid());
+   rtp->seq = rand();
+   rtp->fec_seq = rand();
+   rtp->ssrc = rand() ^ (rand() << 16);
+   do
+      rtp->fec_ssrc = rand() ^ (rand() << 16);
+   while (rtp->fec_ssrc == rtp->ssrc);
+   rtp->mtu = mtu;
+   rtp->bFrameStart = true;
+   if (fec_group)
+   {//the parity packet carries the FEC header, so media packets get less room
+      rtp->mtu -= RTP_FEC_HEADER_SIZE;
+      rtp->fec_group = fec_group;
+      if (NULL == (rtp->fec_xor = calloc(1, rtp->mtu)))
+      {
+         vcos_log_error("Out of memory for FEC");
+         exit(__LINE__);
+      }
+   }
+   if (nack_ms)
+   {
+      rtp->nack_deadline = nack_ms * 1000LL;
+      pthread_mutex_init(&rtp->hist_lock, NULL);
+      if (NULL == (rtp->hist = malloc(RTP_HISTORY_SLOTS * rtp->mtu)))
+      {
+         vcos_log_error("Out of memory for the retransmission history");
+         exit(__LINE__);
+      }
+   }
+}
+
+/**
+ * Send all batched packets with as few sendmmsg() calls as possible
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ */
+static void rtp_flush(RTP_STATE *rtp, int sockFD)
+{
+   int done = 0;
+
+   if (rtp->pHub)
+   {
+      rtsp_flush(rtp, sockFD);
+      return;
+   }
+
+   while (done < rtp->batch_cnt)
+   {
+      int sent = sendmmsg(sockFD, rtp->batch_msg + done, rtp->batch_cnt - done, MSG_NOSIGNAL);
+      if (sent < 0)
+      {
+         if (errno == EINTR)
+            continue;
+         //ECONNREFUSED etc: nobody listening right now, UDP just drops the packets
+         break;
+      }
+      done += sent;
+   }
+   rtp->batch_cnt = 0;
+}
+
+/**
+ * Add one packet to the batch, the payload is referenced, not copied
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket, used when the batch is full
+ * @param mpt Second header byte: marker bit and payload type, parity packets go out on fec_ssrc
+ * @param seq Sequence number
+ * @param prefix Payload bytes in front of data (FU indicator and header, FEC header), may be NULL
+ * @param prefix_len Size of prefix
+ * @param data Payload
+ * @param len Payload size
+ */
+static void rtp_queue(RTP_STATE *rtp, int sockFD, unsigned char mpt, uint16_t seq, const unsigned char *prefix, int prefix_len,
+                      const unsigned char *data, uint32_t len)
+{
+   unsigned char *hdr;
+   uint32_t ssrc = (mpt == RTP_PAYLOAD_TYPE_FEC) ? rtp->fec_ssrc : rtp->ssrc;
+
+   if (rtp->batch_cnt == RTP_BATCH)
+      rtp_flush(rtp, sockFD);
+
+   hdr = rtp->batch_hdr[rtp->batch_cnt];
+   hdr[0] = 0x80;//V=2
+   hdr[1] = mpt;
+   hdr[2] = seq >> 8;
+   hdr[3] = seq & 0xff;
+   hdr[4] = rtp->timestamp >> 24;
+   hdr[5] = rtp->timestamp >> 16;
+   hdr[6] = rtp->timestamp >> 8;
+   hdr[7] = rtp->timestamp;
+   hdr[8] = ssrc >> 24;
+   hdr[9] = ssrc >> 16;
+   hdr[10] = ssrc >> 8;
+   hdr[11] = ssrc;
+   if (prefix_len)
+      memcpy(hdr + RTP_HEADER_SIZE, prefix, prefix_len);
+
+   struct iovec *iov = rtp->batch_iov[rtp->batch_cnt];
+   iov[0].iov_base = hdr;
+   iov[0].iov_len = RTP_HEADER_SIZE + prefix_len;
+   iov[1].iov_base = (void *) data;
+   iov[1].iov_len = len;
+
+   struct mmsghdr *mmsg = &rtp->batch_msg[rtp->batch_cnt++];
+   memset(mmsg, 0, sizeof(*mmsg));
+   mmsg->msg_hdr.msg_iov = iov;
+   mmsg->msg_hdr.msg_iovlen = 2;
+}
+
+/**
+ * Send the XOR parity packet of the current FEC group and start a new group
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ */
+static void rtp_fec_send(RTP_STATE *rtp, int sockFD)
+{
+   unsigned char fec_hdr[RTP_FEC_HEADER_SIZE];
+
+   fec_hdr[0] = rtp->fec_base >> 8;
+   fec_hdr[1] = rtp->fec_base;
+   fec_hdr[2] = rtp->fec_cnt;
+   fec_hdr[3] = 0;
+   fec_hdr[4] = rtp->fec_len_xor >> 8;
+   fec_hdr[5] = rtp->fec_len_xor;
+   fec_hdr[6] = rtp->fec_mpt_xor;
+   fec_hdr[7] = 0;
+   fec_hdr[8] = rtp->fec_ts_xor >> 24;
+   fec_hdr[9] = rtp->fec_ts_xor >> 16;
+   fec_hdr[10] = rtp->fec_ts_xor >> 8;
+   fec_hdr[11] = rtp->fec_ts_xor;
+   rtp_queue(rtp, sockFD, RTP_PAYLOAD_TYPE_FEC, rtp->fec_seq++, fec_hdr, sizeof(fec_hdr), rtp->fec_xor, rtp->fec_max_len);
+   //fec_xor is cleared for the next group, so the batch has to go out now
+   rtp_flush(rtp, sockFD);
+
+   memset(rtp->fec_xor, 0, rtp->fec_max_len);
+   rtp->fec_cnt = 0;
+   rtp->fec_len_xor = 0;
+   rtp->fec_mpt_xor = 0;
+   rtp->fec_ts_xor = 0;
+   rtp->fec_max_len = 0;
+}
+
+/**
+ * Add the media packet to the XOR parity of the current FEC group
+ */
+static void rtp_fec_add(RTP_STATE *rtp, unsigned char mpt, uint16_t seq, const unsigned char *prefix, int prefix_len,
+                        const unsigned char *data, uint32_t len)
+{
+   uint32_t i, payload_len = prefix_len + len;
+   unsigned char *x = rtp->fec_xor;
+
+   if (!rtp->fec_cnt)
+      rtp->fec_base = seq;
+   rtp->fec_cnt++;
+   rtp->fec_len_xor ^= payload_len;
+   rtp->fec_mpt_xor ^= mpt;
+   rtp->fec_ts_xor ^= rtp->timestamp;
+   if (payload_len > rtp->fec_max_len)
+      rtp->fec_max_len = payload_len;
+
+   for (i = 0; i < (uint32_t)prefix_len; i++)
+      *x++ ^= prefix[i];
+   //word wise while both sides are aligned enough, the payload pointer is arbitrary
+   for (i = 0; (i < len) && ((uintptr_t)(data + i) & 3); i++)
+      x[i] ^= data[i];
+   if (!((uintptr_t)(x + i) & 3))
+   {
+      for (; i + 4 <= len; i += 4)
+         *(uint32_t *)(x + i) ^= *(const uint32_t *)(data + i);
+   }
+   for (; i < len; i++)
+      x[i] ^= data[i];
+}
+
+/**
+ * Add one media RTP packet to the batch, protected by FEC if enabled
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket, used when the batch is full
+ * @param prefix Payload bytes in front of data (FU indicator and header), may be NULL
+ * @param prefix_len 0 or 2
+ * @param data Payload
+ * @param len Payload size
+ * @param bMarker Last packet of the access unit
+ */
+static void rtp_queue_packet(RTP_STATE *rtp, int sockFD, const unsigned char *prefix, int prefix_len,
+                             const unsigned char *data, uint32_t len, bool bMarker)
+{
+   unsigned char mpt = (bMarker ? 0x80 : 0) | RTP_PAYLOAD_TYPE_H264;
+
+   rtp_queue(rtp, sockFD, mpt, rtp->seq, prefix, prefix_len, data, len);
+   if (rtp->hist)
+   {//the payload belongs to the encoder buffer, the history needs a copy
+      int slot = rtp->seq & (RTP_HISTORY_SLOTS - 1);
+      unsigned char *h = rtp->hist + slot * rtp->mtu;
+      struct iovec *iov = rtp->batch_iov[rtp->batch_cnt - 1];
+
+      pthread_mutex_lock(&rtp->hist_lock);
+      memcpy(h, iov[0].iov_base, iov[0].iov_len);
+      memcpy(h + iov[0].iov_len, data, len);
+      rtp->hist_len[slot] = iov[0].iov_len + len;
+      rtp->hist_seq[slot] = rtp->seq;
+      rtp->hist_time[slot] = vcos_getmicrosecs64();
+      pthread_mutex_unlock(&rtp->hist_lock);
+   }
+   if (rtp->fec_group)
+   {
+      rtp_fec_add(rtp, mpt, rtp->seq, prefix, prefix_len, data, len);
+      //a group does not wait for the next frame, that would add a frame of latency to the repair
+      if ((rtp->fec_cnt == rtp->fec_group) || bMarker)
+      {
+         rtp->seq++;
+         rtp_fec_send(rtp, sockFD);
+         return;
+      }
+   }
+   rtp->seq++;
+}
+
+/**
+ * Packetize one complete NAL unit: a single NAL unit packet if it fits, FU-A fragments otherwise
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ * @param nal NAL unit without start code, nal[0] is the NAL header
+ * @param len NAL unit size
+ * @param bMarker NAL unit ends the access unit
+ */
+static void rtp_send_nal(RTP_STATE *rtp, int sockFD, const unsigned char *nal, uint32_t len, bool bMarker)
+{
+   uint32_t max_payload = rtp->mtu - RTP_HEADER_SIZE;
+
+   if (!len)
+      return;
+   if (rtp->pHub && ((((nal[0] & 0x1f) == 7) || ((nal[0] & 0x1f) == 8))) && (len <= RTSP_MAX_PARAM_SET))
+   {//new rtsp viewers get them in the SDP
+      pthread_mutex_lock(&rtp->pHub->lock);
+      if ((nal[0] & 0x1f) == 7)
+      {
+         memcpy(rtp->sps, nal, len);
+         rtp->sps_len = len;
+      }
+      else
+      {
+         memcpy(rtp->pps, nal, len);
+         rtp->pps_len = len;
+      }
+      pthread_mutex_unlock(&rtp->pHub->lock);
+   }
+   if (len <= max_payload)
+   {
+      rtp_queue_packet(rtp, sockFD, NULL, 0, nal, len, bMarker);
+      return;
+   }
+
+   //FU-A: the NAL header is replaced by FU indicator and FU header in every fragment
+   unsigned char fu[2];
+   uint32_t offset = 1;
+   max_payload -= 2;
+   fu[0] = (nal[0] & 0xe0) | 28;
+   while (offset < len)
+   {
+      uint32_t chunk = vcos_min(max_payload, len - offset);
+      fu[1] = (nal[0] & 0x1f);
+      if (offset == 1)
+         fu[1] |= 0x80;//start
+      if (offset + chunk == len)
+         fu[1] |= 0x40;//end
+      //fu[] is copied into the batch header, so it may change for the next fragment
+      rtp_queue_packet(rtp, sockFD, fu, 2, nal + offset, chunk, bMarker && (offset + chunk == len));
+      offset += chunk;
+   }
+}
+
+/**
+ * Find the next Annex-B start code
+ *
+ * @param from Where to start searching
+ * @param end End of data
+ * @param pNalEnd Receives the end of the NAL unit in front of the start code (without the zero of a 4 byte start code)
+ * @return First byte after the start code, NULL if there is none
+ */
+static const unsigned char *find_start_code(const unsigned char *from, const unsigned char *end, const unsigned char **pNalEnd)
+{
+   const unsigned char *p;
+
+   for (p = from; p + 3 <= end; p++)
+   {
+      if (p[2] > 1)
+      {
+         p += 2;//no start code can begin at p, p+1 or p+2
+         continue;
+      }
+      if ((p[0] == 0) && (p[1] == 0) && (p[2] == 1))
+      {
+         *pNalEnd = p;
+         while ((*pNalEnd > from) && ((*pNalEnd)[-1] == 0))
+            (*pNalEnd)--;//zero of a 4 byte start code, trailing_zero_8bits
+         return p + 3;
+      }
+   }
+   *pNalEnd = end;
+   return NULL;
+}
+
+/**
+ * Find a start code split between the end of the carried NAL unit and the front of the next buffer
+ *
+ * @param rtp Packetizer state, the carry is cut before the start code when one is found
+ * @param p Front of the next buffer
+ * @param end End of the next buffer
+ * @return First byte of the next NAL unit, NULL if no start code spans the two
+ */
+static const unsigned char *rtp_carry_split(RTP_STATE *rtp, const unsigned char *p, const unsigned char *end)
+{
+   unsigned char win[4];
+   uint32_t tail = vcos_min(rtp->carry_len, 2), head = vcos_min((uint32_t) (end - p), 2), i;
+
+   //only 00 00 01 with its first byte in the carry and its last in the buffer, find_start_code sees the rest
+   memcpy(win, rtp->carry + rtp->carry_len - tail, tail);
+   memcpy(win + tail, p, head);
+   for (i = 0; i < tail && i + 3 <= tail + head; i++)
+   {
+      if (!win[i] && !win[i + 1] && win[i + 2] == 1)
+      {
+         rtp->carry_len -= tail - i;
+         return p + i + 3 - tail;
+      }
+   }
+   return NULL;
+}
+
+/**
+ * Packetize one encoder buffer of Annex-B data and send it as RTP over UDP.
+ * A NAL unit cut by the end of a partial frame buffer is carried over to the next buffer,
+ * SPS/PPS are held back and sent in front of the next frame with its timestamp.
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ * @param buffer Encoder buffer, locked
+ */
+static void rtp_send_buffer(RTP_STATE *rtp, int sockFD, MMAL_BUFFER_HEADER_T *buffer)
+{
+   const unsigned char *p = buffer->data, *end = buffer->data + buffer->length;
+   const unsigned char *nal, *nal_end;
+   bool bComplete = (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END) != 0;
+
+   if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)
+   {//sent after the marker of the previous frame they would carry its timestamp, keep them for the next one
+      if (rtp->config_len + buffer->length > rtp->config_size)
+      {
+         rtp->config_size = 2 * (rtp->config_len + buffer->length);
+         if (NULL == (rtp->config = realloc(rtp->config, rtp->config_size)))
+         {
+            vcos_log_error("Out of memory keeping %u bytes of SPS/PPS", rtp->config_len + buffer->length);
+            exit(__LINE__);
+         }
+      }
+      memcpy(rtp->config + rtp->config_len, p, buffer->length);
+      rtp->config_len += buffer->length;
+      return;
+   }
+
+   if (rtp->bFrameStart)
+   {//90kHz clock from the encoder timestamp in us
+      int64_t pts = (buffer->pts != MMAL_TIME_UNKNOWN) ? buffer->pts : vcos_getmicrosecs64();
+      rtp->timestamp = (uint32_t)(pts * 9 / 100);
+      if (rtp->config_len)
+      {//SPS/PPS go first in the access unit they belong to
+         const unsigned char *cfg_end = rtp->config + rtp->config_len;
+         for (nal = find_start_code(rtp->config, cfg_end, &nal_end); nal; )
+         {
+            const unsigned char *next = find_start_code(nal, cfg_end, &nal_end);
+            rtp_send_nal(rtp, sockFD, nal, nal_end - nal, false);
+            nal = next;
+         }
+         rtp_flush(rtp, sockFD);//the config buffer is overwritten on the next use
+         rtp->config_len = 0;
+      }
+   }
+
+   if (rtp->bCarry && (nal = rtp_carry_split(rtp, p, end)))
+      nal_end = p;//the next NAL unit starts right at the front
+   else
+      nal = find_start_code(p, end, &nal_end);
+   if (rtp->bCarry)
+   {//the first bytes continue the NAL unit of the previous buffer
+      uint32_t len = nal_end - p;
+      if (rtp->carry_len + len > rtp->carry_size)
+      {
+         rtp->carry_size = 2 * (rtp->carry_len + len);
+         if (NULL == (rtp->carry = realloc(rtp->carry, rtp->carry_size)))
+         {
+            vcos_log_error("Out of memory carrying a NAL unit of %u bytes", rtp->carry_len + len);
+            exit(__LINE__);
+         }
+      }
+      memcpy(rtp->carry + rtp->carry_len, p, len);
+      rtp->carry_len += len;
+      if (nal || bComplete)
+      {
+         while (rtp->carry_len && !rtp->carry[rtp->carry_len - 1])
+            rtp->carry_len--;//leading zero of a 4 byte start code, a NAL unit never ends with 0x00
+         rtp_send_nal(rtp, sockFD, rtp->carry, rtp->carry_len, bComplete && !nal);
+         rtp_flush(rtp, sockFD);//the carry buffer is overwritten on the next use
+         rtp->carry_len = 0;
+         rtp->bCarry = false;
+      }
+   }
+
+   while (nal)
+   {
+      const unsigned char *next = find_start_code(nal, end, &nal_end);
+      if (!next && !bComplete)
+      {//cut by the end of the buffer, send it with the rest from the next buffer
+         uint32_t len = end - nal;
+         if (len > rtp->carry_size)
+         {
+            rtp->carry_size = 2 * len;
+            free(rtp->carry);
+            if (NULL == (rtp->carry = malloc(rtp->carry_size)))
+            {
+               vcos_log_error("Out of memory carrying a NAL unit of %u bytes", len);
+               exit(__LINE__);
+            }
+         }
+         memcpy(rtp->carry, nal, len);
+         rtp->carry_len = len;
+         rtp->bCarry = true;
+         break;
+      }
+      rtp_send_nal(rtp, sockFD, nal, nal_end - nal, bComplete && !next);
+      nal = next;
+   }
+
+   rtp_flush(rtp, sockFD);
+   rtp->bFrameStart = bComplete;
+}
+
+/**
+ * Resend one packet from the history if it is still young enough
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ * @param seq Sequence number the receiver misses
+ */
+static void rtp_resend(RTP_STATE *rtp, int sockFD, uint16_t seq)
+{
+   int slot = seq & (RTP_HISTORY_SLOTS - 1);
+
+   pthread_mutex_lock(&rtp->hist_lock);
+   if (rtp->hist_len[slot] && (rtp->hist_seq[slot] == seq) &&
+       (vcos_getmicrosecs64() - rtp->hist_time[slot] <= rtp->nack_deadline))
+   {
+      send(sockFD, rtp->hist + slot * rtp->mtu, rtp->hist_len[slot], MSG_NOSIGNAL);
+      rtp->resent++;
+   }
+   else
+      rtp->expired++;//the receiver has given up on it already
+   pthread_mutex_unlock(&rtp->hist_lock);
+}
+
+/**
+ * Handle an RTCP generic NACK (RFC 4585): every FCI names a lost packet and a bitmask of the 16 following
+ *
+ * @param rtp Packetizer state
+ * @param sockFD Connected UDP socket
+ * @param pkt RTCP packet
+ * @param len Size of pkt
+ */
+static void rtp_handle_nack(RTP_STATE *rtp, int sockFD, const unsigned char *pkt, int len)
+{
+   int end = 4 * (((pkt[2] << 8) | pkt[3]) + 1);
+   int pos, bit;
+
+   if (end > len)
+      end = len;
+   for (pos = 12; pos + 4 <= end; pos += 4)
+   {
+      uint16_t pid = (pkt[pos] << 8) | pkt[pos + 1];
+      uint16_t blp = (pkt[pos + 2] << 8) | pkt[pos + 3];
+
+      rtp_resend(rtp, sockFD, pid);
+      for (bit = 0; bit < 16; bit++)
+         if (blp & (1 << bit))
+            rtp_resend(rtp, sockFD, pid + bit + 1);
+   }
+}
+
+/**
+ * Main thread loop of the rtp mode: the UDP socket carries NACKs and text commands from the receiver
+ *
+ * @param pState Pointer to state
+ */
+static void rtp_run(RASPIVID_STATE *pState)
+{
+   RTP_STATE *rtp = &pState->callback_data.rtp;
+   int sockFD = pState->callback_data.sockFD;
+   char pkt[2048];
+
+   while (1)
+   {
+      int len = recv(sockFD, pkt, sizeof(pkt) - 1, 0);
+      if (len < 0)
+      {
+         if ((errno == EINTR) || (errno == ECONNREFUSED))
+            continue;//ICMP port unreachable while no receiver runs
+         vcos_log_error("rtp: recv failed: %s", strerror(errno));
+         return;
+      }
+      if ((len >= 12) && ((pkt[0] & 0xc0) == 0x80) && ((unsigned char)pkt[1] == RTCP_PT_RTPFB))
+      {
+         if (((pkt[0] & 0x1f) == RTCP_FMT_NACK) && rtp->hist)
+            rtp_handle_nack(rtp, sockFD, (unsigned char *) pkt, len);
+         continue;
+      }
+      pkt[len] = 0;
+      handle_command_line(pState, pkt);
+   }
+}
+
+/**
+ * Make room for len more bytes
+ */
+static void fmp4_reserve(FMP4_BUF *b, uint32_t len)
+{
+   if (b->length + len > b->size)
+   {
+      uint32_t size = vcos_max(4096, 2 * (b->length + len));
+      if (NULL == (b->data = realloc(b->data, size)))
+      {
+         vcos_log_error("Out of memory for %u bytes of fMP4", size);
+         exit(__LINE__);
+      }
+      b->size = size;
+   }
+}
+
+static void fmp4_put(FMP4_BUF *b, const void *data, uint32_t len)
+{
+   fmp4_reserve(b, len);
+   memcpy(b->data + b->length, data, len);
+   b->length += len;
+}
+
+static void fmp4_set_u32(FMP4_BUF *b, uint32_t pos, uint32_t v)
+{
+   b->data[pos] = v >> 24;
+   b->data[pos + 1] = v >> 16;
+   b->data[pos + 2] = v >> 8;
+   b->data[pos + 3] = v;
+}
+
+static void fmp4_u8(FMP4_BUF *b, uint32_t v)
+{
+   unsigned char c = v;
+   fmp4_put(b, &c, 1);
+}
+
+static void fmp4_u16(FMP4_BUF *b, uint32_t v)
+{
+   fmp4_u8(b, v >> 8);
+   fmp4_u8(b, v);
+}
+
+static void fmp4_u32(FMP4_BUF *b, uint32_t v)
+{
+   fmp4_reserve(b, 4);
+   fmp4_set_u32(b, b->length, v);
+   b->length += 4;
+}
+
+/**
+ * Start a box, its size is filled in by fmp4_box_end()
+ *
+ * @return Offset of the box
+ */
+static uint32_t fmp4_box(FMP4_BUF *b, const char *type)
+{
+   uint32_t start = b->length;
+   fmp4_u32(b, 0);
+   fmp4_put(b, type, 4);
+   return start;
+}
+
+static uint32_t fmp4_fullbox(FMP4_BUF *b, const char *type, uint32_t version, uint32_t flags)
+{
+   uint32_t start = fmp4_box(b, type);
+   fmp4_u32(b, (version << 24) | flags);
+   return start;
+}
+
+static void fmp4_box_end(FMP4_BUF *b, uint32_t start)
+{
+   fmp4_set_u32(b, start, b->length - start);
+}
+
+/**
+ * Set up the muxer of the http mode
+ *
+ * @param f Muxer state
+ * @param width Picture size for the init segment
+ * @param height
+ * @param framerate Requested frame rate, the duration of the first frame
+ */
+static void fmp4_init(FMP4_STATE *f, uint32_t width, uint32_t height, int framerate)
+{
+   memset(f, 0, sizeof(*f));
+   f->width = width;
+   f->height = height;
+   f->frame_us = 1000000 / (framerate > 0 ? framerate : VIDEO_FRAME_RATE_NUM);
+   f->keyframe_ask_us = HLS_SEGMENT_US;
+}
+
+/**
+ * Write an AVCDecoderConfigurationRecord (the avcC payload) with the latest SPS/PPS
+ */
+static void fmp4_write_avcc(FMP4_BUF *b, const FMP4_STATE *f)
+{
+   fmp4_u8(b, 1);
+   fmp4_put(b, f->sps + 1, 3);          //profile, compatibility, level
+   fmp4_u8(b, 0xff);                    //4 byte NAL unit lengths
+   fmp4_u8(b, 0xe1);                    //one SPS
+   fmp4_u16(b, f->sps_len);
+   fmp4_put(b, f->sps, f->sps_len);
+   fmp4_u8(b, 1);                       //one PPS
+   fmp4_u16(b, f->pps_len);
+   fmp4_put(b, f->pps, f->pps_len);
+}
+
+/**
+ * Build the init segment (ftyp, moov with an avc1 track and mvex) from the latest SPS/PPS
+ *
+ * @param f Muxer state, init is rebuilt
+ */
+static void fmp4_write_init(FMP4_STATE *f)
+{
+   static const uint32_t matrix[9] = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+   static const unsigned char zero[32];
+   FMP4_BUF *b = &f->init;
+   uint32_t moov, trak, mdia, minf, dinf, stbl, stsd, avc1, mvex, box;
+   int i;
+
+   b->length = 0;
+   box = fmp4_box(b, "ftyp");
+   fmp4_put(b, "iso5", 4);
+   fmp4_u32(b, 512);
+   fmp4_put(b, "iso5iso6mp41", 12);
+   fmp4_box_end(b, box);
+
+   moov = fmp4_box(b, "moov");
+   box = fmp4_fullbox(b, "mvhd", 0, 0);
+   fmp4_put(b, zero, 8);                //creation and modification time
+   fmp4_u32(b, 1000);                   //timescale
+   fmp4_u32(b, 0);                      //duration, unknown for live
+   fmp4_u32(b, 0x00010000);             //rate 1.0
+   fmp4_u16(b, 0x0100);                 //volume 1.0
+   fmp4_put(b, zero, 10);
+   for (i = 0; i < 9; i++)
+      fmp4_u32(b, matrix[i]);
+   fmp4_put(b, zero, 24);
+   fmp4_u32(b, 2);                      //next track ID
+   fmp4_box_end(b, box);
+
+   trak = fmp4_box(b, "trak");
+   box = fmp4_fullbox(b, "tkhd", 0, 3); //enabled, in movie
+   fmp4_put(b, zero, 8);
+   fmp4_u32(b, 1);                      //track ID
+   fmp4_put(b, zero, 4);
+   fmp4_u32(b, 0);                      //duration
+   fmp4_put(b, zero, 16);               //reserved, layer, alternate group, volume, reserved
+   for (i = 0; i < 9; i++)
+      fmp4_u32(b, matrix[i]);
+   fmp4_u32(b, f->width << 16);
+   fmp4_u32(b, f->height << 16);
+   fmp4_box_end(b, box);
+
+   mdia = fmp4_box(b, "mdia");
+   box = fmp4_fullbox(b, "mdhd", 0, 0);
+   fmp4_put(b, zero, 8);
+   fmp4_u32(b, FMP4_TIMESCALE);
+   fmp4_u32(b, 0);
+   fmp4_u16(b, 0x55c4);                 //language "und"
+   fmp4_u16(b, 0);
+   fmp4_box_end(b, box);
+   box = fmp4_fullbox(b, "hdlr", 0, 0);
+   fmp4_u32(b, 0);
+   fmp4_put(b, "vide", 4);
+   fmp4_put(b, zero, 12);
+   fmp4_put(b, "VideoHandler", 13);
+   fmp4_box_end(b, box);
+
+   minf = fmp4_box(b, "minf");
+   box = fmp4_fullbox(b, "vmhd", 0, 1);
+   fmp4_put(b, zero, 8);
+   fmp4_box_end(b, box);
+   dinf = fmp4_box(b, "dinf");
+   box = fmp4_fullbox(b, "dref", 0, 0);
+   fmp4_u32(b, 1);
+   fmp4_box_end(b, fmp4_fullbox(b, "url ", 0, 1));//media is in this file
+   fmp4_box_end(b, box);
+   fmp4_box_end(b, dinf);
+
+   stbl = fmp4_box(b, "stbl");
+   stsd = fmp4_fullbox(b, "stsd", 0, 0);
+   fmp4_u32(b, 1);
+   avc1 = fmp4_box(b, "avc1");
+   fmp4_put(b, zero, 6);
+   fmp4_u16(b, 1);                      //data reference index
+   fmp4_put(b, zero, 16);
+   fmp4_u16(b, f->width);
+   fmp4_u16(b, f->height);
+   fmp4_u32(b, 0x00480000);             //72 dpi
+   fmp4_u32(b, 0x00480000);
+   fmp4_u32(b, 0);
+   fmp4_u16(b, 1);                      //frame count
+   fmp4_put(b, zero, 32);               //compressor name
+   fmp4_u16(b, 0x0018);                 //depth
+   fmp4_u16(b, 0xffff);
+   box = fmp4_box(b, "avcC");
+   fmp4_write_avcc(b, f);
+   fmp4_box_end(b, box);
+   fmp4_box_end(b, avc1);
+   fmp4_box_end(b, stsd);
+   //no samples here, they all come in fragments
+   box = fmp4_fullbox(b, "stts", 0, 0);
+   fmp4_u32(b, 0);
+   fmp4_box_end(b, box);
+   box = fmp4_fullbox(b, "stsc", 0, 0);
+   fmp4_u32(b, 0);
+   fmp4_box_end(b, box);
+   box = fmp4_fullbox(b, "stsz", 0, 0);
+   fmp4_put(b, zero, 8);
+   fmp4_box_end(b, box);
+   box = fmp4_fullbox(b, "stco", 0, 0);
+   fmp4_u32(b, 0);
+   fmp4_box_end(b, box);
+   fmp4_box_end(b, stbl);
+   fmp4_box_end(b, minf);
+   fmp4_box_end(b, mdia);
+   fmp4_box_end(b, trak);
+
+   mvex = fmp4_box(b, "mvex");
+   box = fmp4_fullbox(b, "trex", 0, 0);
+   fmp4_u32(b, 1);                      //track ID
+   fmp4_u32(b, 1);                      //sample description index
+   fmp4_put(b, zero, 12);
+   fmp4_box_end(b, box);
+   fmp4_box_end(b, mvex);
+   fmp4_box_end(b, moov);
+}
+
+/**
+ * Take SPS/PPS from a config buffer, the init segment is rebuilt when they change
+ *
+ * @param f Muxer state
+ * @param hub Hub whose lock protects the init segment, NULL if nobody else reads it
+ * @param buffer Encoder buffer with MMAL_BUFFER_HEADER_FLAG_CONFIG, locked
+ */
+static void fmp4_config(FMP4_STATE *f, NET_HUB *hub, MMAL_BUFFER_HEADER_T *buffer)
+{
+   const unsigned char *end = buffer->data + buffer->length, *nal_end;
+   const unsigned char *nal = find_start_code(buffer->data, end, &nal_end);
+   bool bChanged = false;
+
+   while (nal)
+   {
+      const unsigned char *next = find_start_code(nal, end, &nal_end);
+      uint32_t len = nal_end - nal;
+      unsigned char *set = NULL;
+      uint32_t *set_len = NULL;
+
+      if ((nal[0] & 0x1f) == 7)
+      {
+         set = f->sps;
+         set_len = &f->sps_len;
+      }
+      else if ((nal[0] & 0x1f) == 8)
+      {
+         set = f->pps;
+         set_len = &f->pps_len;
+      }
+      if (set && (len <= RTSP_MAX_PARAM_SET) && ((len != *set_len) || memcmp(set, nal, len)))
+      {
+         memcpy(set, nal, len);
+         *set_len = len;
+         bChanged = true;
+      }
+      nal = next;
+   }
+
+   if (bChanged && (f->sps_len >= 4) && f->pps_len)
+   {
+      if (hub)
+         pthread_mutex_lock(&hub->lock);
+      fmp4_write_init(f);
+      if (hub)
+         pthread_mutex_unlock(&hub->lock);
+   }
+}
+
+/**
+ * Append an Annex-B access unit as a sample, the start codes become 4 byte lengths
+ *
+ * @return Sample size
+ */
+static uint32_t fmp4_put_sample(FMP4_BUF *b, const unsigned char *data, uint32_t len)
+{
+   const unsigned char *end = data + len, *nal, *nal_end;
+   uint32_t start = b->length;
+
+   nal = find_start_code(data, end, &nal_end);
+   while (nal)
+   {
+      const unsigned char *next = find_start_code(nal, end, &nal_end);
+      int type = nal[0] & 0x1f;
+
+      //parameter sets are in the init segment, access unit delimiters are not needed
+      if ((nal_end > nal) && (type != 7) && (type != 8) && (type != 9))
+      {
+         fmp4_u32(b, nal_end - nal);
+         fmp4_put(b, nal, nal_end - nal);
+      }
+      nal = next;
+   }
+   return b->length - start;
+}
+
+/**
+ * Write the assembled frame as one moof/mdat fragment, the Annex-B start codes become 4 byte lengths
+ *
+ * @param f Muxer state, the fragment is written to f->fragment
+ * @param bKeyframe Frame is a key frame
+ * @param decode_time In FMP4_TIMESCALE units
+ * @param duration In FMP4_TIMESCALE units
+ */
+static void fmp4_write_fragment(FMP4_STATE *f, bool bKeyframe, uint64_t decode_time, uint32_t duration)
+{
+   FMP4_BUF *b = &f->fragment;
+   uint32_t moof, traf, trun, data_offset, mdat, box;
+
+   b->length = 0;
+   moof = fmp4_box(b, "moof");
+   box = fmp4_fullbox(b, "mfhd", 0, 0);
+   fmp4_u32(b, ++f->fragment_seq);
+   fmp4_box_end(b, box);
+   traf = fmp4_box(b, "traf");
+   box = fmp4_fullbox(b, "tfhd", 0, 0x020000);//default-base-is-moof
+   fmp4_u32(b, 1);
+   fmp4_box_end(b, box);
+   box = fmp4_fullbox(b, "tfdt", 1, 0);
+   fmp4_u32(b, decode_time >> 32);
+   fmp4_u32(b, decode_time);
+   fmp4_box_end(b, box);
+   trun = fmp4_fullbox(b, "trun", 0, 0x000701);//data offset, sample duration, size and flags
+   fmp4_u32(b, 1);
+   data_offset = b->length;
+   fmp4_u32(b, 0);
+   fmp4_u32(b, duration);
+   fmp4_u32(b, 0);                      //size, patched below
+   fmp4_u32(b, bKeyframe ? 0x02000000 : 0x01010000);//depends on no other / depends on others and is no sync sample
+   fmp4_box_end(b, trun);
+   fmp4_box_end(b, traf);
+   fmp4_box_end(b, moof);
+
+   mdat = fmp4_box(b, "mdat");
+   fmp4_put_sample(b, f->frame.data, f->frame.length);
+   fmp4_box_end(b, mdat);
+   fmp4_set_u32(b, data_offset, mdat + 8 - moof);
+   fmp4_set_u32(b, data_offset + 8, b->length - mdat - 8);
+}
+
+/**
+ * Close the open part of a segment if it has any fragments
+ */
+static void hls_close_part(FMP4_STATE *f, HLS_SEGMENT *seg)
+{
+   uint32_t start = seg->parts ? seg->part_end[seg->parts - 1] : 0;
+
+   if ((seg->buf.length == start) || (seg->parts == HLS_MAX_PARTS))
+      return;
+   seg->part_end[seg->parts] = seg->buf.length;
+   seg->part_us[seg->parts] = f->part_us;
+   seg->part_independent[seg->parts] = f->bPartIndependent;
+   seg->parts++;
+   f->part_us = 0;
+}
+
+/**
+ * Append the last fragment to the segment cache, cutting parts and segments.
+ * Must be called with NET_HUB::lock held.
+ *
+ * @param f Muxer state
+ * @param hub Hub, asked for a key frame when a segment is due
+ * @param bKeyframe Fragment is a key frame
+ */
+static void hls_cache_add(FMP4_STATE *f, NET_HUB *hub, bool bKeyframe)
+{
+   HLS_SEGMENT *seg = &f->segments[f->msn % HLS_SEGMENTS];
+
+   if (seg->buf.length && bKeyframe && (seg->duration_us >= HLS_SEGMENT_US - HLS_PART_US))
+   {//the open part is the last one of the segment, the next one starts with the key frame
+      hls_close_part(f, seg);
+      seg->bComplete = true;
+      seg = &f->segments[++f->msn % HLS_SEGMENTS];
+      seg->msn = f->msn;
+      seg->buf.length = 0;
+      seg->parts = 0;
+      seg->duration_us = 0;
+      seg->bComplete = false;
+      f->keyframe_ask_us = HLS_SEGMENT_US;
+   }
+
+   if (seg->buf.length == (seg->parts ? seg->part_end[seg->parts - 1] : 0))
+      f->bPartIndependent = bKeyframe;
+   fmp4_put(&seg->buf, f->fragment.data, f->fragment.length);
+   seg->duration_us += f->frame_us;
+   f->part_us += f->frame_us;
+   if (f->part_us + f->frame_us > HLS_PART_US)
+      hls_close_part(f, seg);//another frame would make the part longer than announced
+
+   if (seg->duration_us >= f->keyframe_ask_us)
+   {//with a long --intra the segment would go on until the next key frame, ask again if the encoder gives none
+      hub->bKeyframeRequest = true;
+      f->keyframe_ask_us = seg->duration_us + HLS_SEGMENT_US;
+   }
+}
+
+/**
+ * A frame is complete: mux it, add it to the segment cache and queue it for the /live.mp4 viewers
+ *
+ * @param pData Callback data
+ * @param pts Encoder timestamp of the frame
+ */
+static void fmp4_frame_end(PORT_USERDATA *pData, int64_t pts)
+{
+   FMP4_STATE *f = &pData->fmp4;
+   NET_HUB *hub = pData->pHub;
+   bool bKeyframe = (pData->frameFlags & NET_CHUNK_FLAG_KEYFRAME) != 0;
+   char chunk_size[16];
+
+   if (!f->init.length || (!f->fragment_seq && !bKeyframe))
+   {//nothing can be decoded without SPS/PPS and a key frame first
+      f->frame.length = 0;
+      return;
+   }
+   if (pts == MMAL_TIME_UNKNOWN)
+      pts = vcos_getmicrosecs64();
+   if (!f->fragment_seq)
+      f->first_pts = pts;
+   else if (pts > f->last_pts)
+      f->frame_us = pts - f->last_pts;
+   f->last_pts = pts;
+
+   fmp4_write_fragment(f, bKeyframe, (uint64_t)(pts - f->first_pts) * FMP4_TIMESCALE / 1000000,
+                       (uint64_t) f->frame_us * FMP4_TIMESCALE / 1000000);
+   f->frame.length = 0;
+
+   pthread_mutex_lock(&hub->lock);
+   hls_cache_add(f, hub, bKeyframe);
+   pthread_mutex_unlock(&hub->lock);
+
+   //chunked transfer encoding of /live.mp4, the hub starts every viewer at a key frame
+   snprintf(chunk_size, sizeof(chunk_size), "%X\r\n", f->fragment.length);
+   OutputData(pData, chunk_size, strlen(chunk_size));
+   OutputData(pData, f->fragment.data, f->fragment.length);
+   OutputData(pData, "\r\n", 2);
+   OutputCommit(pData, pData->frameFlags);
+}
+
+/**
+ * Set up the MPEG-TS muxer
+ *
+ * @param ts Muxer state
+ * @param framerate Frame rate, for frames without pts
+ * @param fd udp:// socket or file descriptor, -1 if the packets go through OutputData()
+ * @param bDatagram fd is a UDP socket
+ */
+static void ts_init(TS_STATE *ts, int framerate, int fd, bool bDatagram)
+{
+   memset(ts, 0, sizeof(*ts));
+   ts->first_pts = MMAL_TIME_UNKNOWN;
+   ts->frame_us = 1000000 / (framerate ? framerate : 30);
+   ts->fd = fd;
+   ts->bDatagram = bDatagram;
+}
+
+/**
+ * CRC of PSI sections, MPEG-2 polynomial 0x04C11DB7 without reflection
+ */
+static uint32_t ts_crc32(const uint8_t *data, uint32_t len)
+{
+   uint32_t crc = 0xFFFFFFFF;
+   int i;
+
+   while (len--)
+   {
+      crc ^= (uint32_t) *data++ << 24;
+      for (i = 0; i < 8; i++)
+         crc = (crc & 0x80000000) ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+   }
+   return crc;
+}
+
+/**
+ * Append one 188 byte packet, the payload is padded with adaptation field stuffing
+ *
+ * @param ts Muxer state
+ * @param pid PID
+ * @param cc Continuity counter of the PID, incremented
+ * @param bStart Payload unit start
+ * @param pcr 27MHz program clock reference, -1 = none
+ * @param head First part of the payload
+ * @param head_len Size of head
+ * @param body Second part of the payload, may be NULL
+ * @param body_len Size of body
+ * @return Payload bytes consumed, head first
+ */
+static uint32_t ts_packet(TS_STATE *ts, uint16_t pid, uint8_t *cc, bool bStart, int64_t pcr,
+                          const uint8_t *head, uint32_t head_len, const uint8_t *body, uint32_t body_len)
+{
+   uint8_t *p;
+   uint32_t room = TS_PACKET - 4, af_len = 0, used;
+
+   fmp4_reserve(&ts->out, TS_PACKET);
+   p = ts->out.data + ts->out.length;
+   ts->out.length += TS_PACKET;
+
+   if (pcr >= 0)
+      af_len = 8;//flags and PCR
+   if (head_len + body_len < room - (af_len ? af_len : 0))
+      af_len = vcos_max(af_len, room - head_len - body_len);//stuffing, one byte of it may be just the length
+   room -= af_len;
+
+   p[0] = 0x47;
+   p[1] = (bStart ? 0x40 : 0) | (pid >> 8);
+   p[2] = pid & 0xFF;
+   p[3] = (af_len ? 0x30 : 0x10) | (*cc & 0x0F);
+   *cc = (*cc + 1) & 0x0F;
+   if (af_len)
+   {
+      p[4] = af_len - 1;
+      if (af_len > 1)
+      {
+         memset(p + 5, 0xFF, af_len - 1);
+         p[5] = 0;
+         if (pcr >= 0)
+         {
+            uint64_t base = (uint64_t) pcr / 300;
+            uint32_t ext = (uint64_t) pcr % 300;
+            p[5] = 0x10;
+            p[6] = base >> 25;
+            p[7] = base >> 17;
+            p[8] = base >> 9;
+            p[9] = base >> 1;
+            p[10] = ((base & 1) << 7) | 0x7E | (ext >> 8);
+            p[11] = ext;
+         }
+      }
+   }
+   p += 4 + af_len;
+
+   used = vcos_min(head_len, room);
+   memcpy(p, head, used);
+   if ((room > used) && body)
+      memcpy(p + used, body, room - used);
+   return vcos_min(room, head_len + body_len);
+}
+
+/**
+ * Append PAT and PMT, one H264 program
+ */
+static void ts_write_psi(TS_STATE *ts)
+{
+   uint8_t sec[32];
+   uint32_t len, crc;
+
+   //PAT: program 1 -> PMT PID
+   len = 0;
+   sec[len++] = 0;//pointer field
+   sec[len++] = 0x00;//table id
+   sec[len++] = 0xB0;
+   sec[len++] = 13;//section length
+   sec[len++] = 0x00;//transport stream id
+   sec[len++] = 0x01;
+   sec[len++] = 0xC1;//version 0, current
+   sec[len++] = 0x00;
+   sec[len++] = 0x00;
+   sec[len++] = 0x00;//program number 1
+   sec[len++] = 0x01;
+   sec[len++] = 0xE0 | (TS_PID_PMT >> 8);
+   sec[len++] = TS_PID_PMT & 0xFF;
+   crc = ts_crc32(sec + 1, len - 1);
+   sec[len++] = crc >> 24;
+   sec[len++] = crc >> 16;
+   sec[len++] = crc >> 8;
+   sec[len++] = crc;
+   ts_packet(ts, 0, &ts->cc_pat, true, -1, sec, len, NULL, 0);
+
+   //PMT: one H264 stream, which carries the PCR
+   len = 0;
+   sec[len++] = 0;
+   sec[len++] = 0x02;
+   sec[len++] = 0xB0;
+   sec[len++] = 18;
+   sec[len++] = 0x00;//program number 1
+   sec[len++] = 0x01;
+   sec[len++] = 0xC1;
+   sec[len++] = 0x00;
+   sec[len++] = 0x00;
+   sec[len++] = 0xE0 | (TS_PID_VIDEO >> 8);//PCR PID
+   sec[len++] = TS_PID_VIDEO & 0xFF;
+   sec[len++] = 0xF0;//no program info
+   sec[len++] = 0x00;
+   sec[len++] = 0x1B;//H264
+   sec[len++] = 0xE0 | (TS_PID_VIDEO >> 8);
+   sec[len++] = TS_PID_VIDEO & 0xFF;
+   sec[len++] = 0xF0;
+   sec[len++] = 0x00;
+   crc = ts_crc32(sec + 1, len - 1);
+   sec[len++] = crc >> 24;
+   sec[len++] = crc >> 16;
+   sec[len++] = crc >> 8;
+   sec[len++] = crc;
+   ts_packet(ts, TS_PID_PMT, &ts->cc_pmt, true, -1, sec, len, NULL, 0);
+}
+
+/**
+ * Keep SPS/PPS of a config buffer for the next key frames
+ */
+static void ts_config(TS_STATE *ts, MMAL_BUFFER_HEADER_T *buffer)
+{
+   if (!ts->bLastWasConfig)
+      ts->config.length = 0;
+   fmp4_put(&ts->config, buffer->data, buffer->length);
+   ts->bLastWasConfig = true;
+}
+
+/**
+ * Send or write what is in ts->out. UDP gets full datagrams of TS_UDP_PACKETS, a file gets
+ * writes of TS_FILE_PACKETS, anything else one message per frame through OutputData().
+ *
+ * @param pData Callback data
+ * @param flags NET_CHUNK_FLAG_xxx of the frame
+ * @param bAll Write out a file tail smaller than TS_FILE_PACKETS too
+ */
+static void ts_flush(PORT_USERDATA *pData, uint32_t flags, bool bAll)
+{
+   TS_STATE *ts = &pData->ts;
+   uint32_t done = 0;
+
+   if (ts->fd < 0)
+   {
+      OutputData(pData, ts->out.data, ts->out.length);
+      OutputCommit(pData, flags);
+      done = ts->out.length;
+   }
+   else if (ts->bDatagram)
+   {
+      struct mmsghdr msgs[64];
+      struct iovec iov[64];
+
+      while (done < ts->out.length)
+      {
+         int n = 0, sent;
+         uint32_t pos = done;
+
+         memset(msgs, 0, sizeof(msgs));
+         for (n = 0; (n < 64) && (pos < ts->out.length); n++)
+         {
+            iov[n].iov_base = ts->out.data + pos;
+            iov[n].iov_len = vcos_min(ts->out.length - pos, TS_UDP_PACKETS * TS_PACKET);
+            msgs[n].msg_hdr.msg_iov = &iov[n];
+            msgs[n].msg_hdr.msg_iovlen = 1;
+            pos += iov[n].iov_len;
+         }
+         if ((sent = sendmmsg(ts->fd, msgs, n, 0)) <= 0)
+         {
+            if (errno == EINTR)
+               continue;
+            break;//nobody listening (ECONNREFUSED) or a full socket buffer, the frame is lost
+         }
+         for (n = 0; n < sent; n++)
+            done += iov[n].iov_len;
+      }
+      done = ts->out.length;
+   }
+   else if (ts->writer && (bAll || (ts->out.length >= TS_FILE_PACKETS * TS_PACKET)))
+   {//a full queue drops whole packets, decoders resync at the next key frame
+      if (writer_reserve(ts->writer, ts->out.length, ts->writer->bWait))
+         writer_push(ts->writer, ts->fd, ts->out.data, ts->out.length);
+      else
+      {
+         ts->writer->dropped += ts->out.length;
+         ts->writer->drops++;
+      }
+      done = ts->out.length;
+   }
+   else if (bAll || (ts->out.length >= TS_FILE_PACKETS * TS_PACKET))
+   {
+      while (done < ts->out.length)
+      {
+         ssize_t written = write(ts->fd, ts->out.data + done, ts->out.length - done);
+         if (written < 0)
+         {
+            if (errno == EINTR)
+               continue;
+            vcos_log_error("Error writing the transport stream: %s", strerror(errno));
+            exit(__LINE__);
+         }
+         done += written;
+      }
+   }
+   ts->out.length -= done;
+}
+
+/**
+ * The frame in ts->frame is complete: mux it into PES packets with PTS and PCR and send them
+ *
+ * @param pData Callback data
+ * @param pts Encoder timestamp in us or MMAL_TIME_UNKNOWN
+ */
+static void ts_frame_end(PORT_USERDATA *pData, int64_t pts)
+{
+   static const uint8_t aud[] = { 0, 0, 0, 1, 0x09, 0xF0 };//access unit delimiter, required in TS
+   TS_STATE *ts = &pData->ts;
+   bool bKeyframe = (pData->frameFlags & NET_CHUNK_FLAG_KEYFRAME) != 0;
+   uint8_t head[14 + sizeof(aud)];
+   uint32_t head_len = 0, pos = 0;
+   int64_t time90, pts90;
+   bool bStart = true;
+
+   ts->bLastWasConfig = false;
+   if ((ts->first_pts == MMAL_TIME_UNKNOWN) && !bKeyframe)
+   {//nothing can be decoded before the first key frame
+      ts->frame.length = 0;
+      return;
+   }
+   if (pts == MMAL_TIME_UNKNOWN)
+      pts = (ts->first_pts == MMAL_TIME_UNKNOWN) ? 0 : ts->last_pts + ts->frame_us;
+   if (ts->first_pts == MMAL_TIME_UNKNOWN)
+   {
+      ts->first_pts = pts;
+      ts->psi_time = -TS_PSI_INTERVAL;
+   }
+   ts->last_pts = pts;
+   time90 = (pts - ts->first_pts) * 9 / 100;
+   pts90 = (time90 + TS_PTS_DELAY) & 0x1FFFFFFFFLL;
+
+   if (bKeyframe || (time90 - ts->psi_time >= TS_PSI_INTERVAL))
+   {
+      ts_write_psi(ts);
+      ts->psi_time = time90;
+   }
+
+   //PES header with PTS, unbounded length as usual for video
+   head[head_len++] = 0x00;
+   head[head_len++] = 0x00;
+   head[head_len++] = 0x01;
+   head[head_len++] = 0xE0;
+   head[head_len++] = 0x00;
+   head[head_len++] = 0x00;
+   head[head_len++] = 0x84;//data alignment
+   head[head_len++] = 0x80;//PTS only, no B-frames
+   head[head_len++] = 5;
+   head[head_len++] = 0x21 | ((pts90 >> 29) & 0x0E);
+   head[head_len++] = pts90 >> 22;
+   head[head_len++] = 0x01 | ((pts90 >> 14) & 0xFE);
+   head[head_len++] = pts90 >> 7;
+   head[head_len++] = 0x01 | ((pts90 << 1) & 0xFE);
+   memcpy(head + head_len, aud, sizeof(aud));
+   head_len += sizeof(aud);
+
+   if (bKeyframe && ts->config.length)
+   {//SPS/PPS go in front of the key frame, a receiver can start from here
+      FMP4_BUF *f = &ts->frame;
+      fmp4_reserve(f, ts->config.length);
+      memmove(f->data + ts->config.length, f->data, f->length);
+      memcpy(f->data, ts->config.data, ts->config.length);
+      f->length += ts->config.length;
+   }
+
+   while (bStart || (pos < ts->frame.length))
+   {
+      uint32_t head_left = bStart ? head_len : 0;
+      uint32_t used = ts_packet(ts, TS_PID_VIDEO, &ts->cc_video, bStart, bStart ? time90 * 300 : -1,
+                                head, head_left, ts->frame.data + pos, ts->frame.length - pos);
+      pos += used - head_left;
+      bStart = false;
+   }
+   ts->frame.length = 0;
+   ts_flush(pData, pData->frameFlags, false);
+}
+
+/**
+ * Set up the recorder
+ *
+ * @param rec Recorder state
+ * @param fd Output file
+ * @param filename Output name, .mkv selects Matroska
+ * @param width Picture size
+ * @param height
+ * @param framerate Requested frame rate, the duration of the last frame
+ */
+static void rec_init(REC_STATE *rec, int fd, const char *filename, uint32_t width, uint32_t height, int framerate)
+{
+   const char *ext = strrchr(filename, '.');
+
+   memset(rec, 0, sizeof(*rec));
+   fmp4_init(&rec->fmp4, width, height, framerate);
+   rec->fd = fd;
+   rec->bMatroska = ext && (!strcasecmp(ext, ".mkv") || !strcasecmp(ext, ".mka"));
+   rec->pts_origin = MMAL_TIME_UNKNOWN;
+}
+
+/**
+ * Write the collected output in multiples of REC_WRITE_ALIGN, exits on errors.
+ * SD cards stall on small appends, the rest waits for more data.
+ *
+ * @param rec Recorder state
+ * @param bAll Write everything, the file ends here
+ */
+static void rec_flush(REC_STATE *rec, bool bAll)
+{
+   FMP4_BUF *b = &rec->out;
+   uint32_t len = bAll ? b->length : b->length / REC_WRITE_ALIGN * REC_WRITE_ALIGN;
+   uint32_t done = 0;
+
+   if (rec->writer && len)
+   {//data room was reserved when the data was added, see rec_write_fragment(), writer_pushv() waits for a descriptor
+      writer_push(rec->writer, rec->fd, b->data, len);
+      done = len;
+   }
+   while (done < len)
+   {
+      ssize_t written = write(rec->fd, b->data + done, len - done);
+      if (written < 0)
+      {
+         if (errno == EINTR)
+            continue;
+         vcos_log_error("Error writing the recording: %s", strerror(errno));
+         exit(__LINE__);
+      }
+      done += written;
+   }
+   b->length -= done;
+   memmove(b->data, b->data + done, b->length);
+   rec->written += done;
+}
+
+/**
+ * Add to the recording output
+ */
+static void rec_put(REC_STATE *rec, const void *data, uint32_t len)
+{
+   fmp4_put(&rec->out, data, len);
+   if (rec->out.length >= REC_WRITE_BYTES)
+      rec_flush(rec, false);
+}
+
+/**
+ * Add a buffer to the recording output and empty it
+ */
+static void rec_write(REC_STATE *rec, FMP4_BUF *b)
+{
+   rec_put(rec, b->data, b->length);
+   b->length = 0;
+}
+
+/**
+ * Matroska element ID, the length marker is part of the ID
+ */
+static void mkv_id(FMP4_BUF *b, uint32_t id)
+{
+   if (id > 0xFFFFFF)
+      fmp4_u8(b, id >> 24);
+   if (id > 0xFFFF)
+      fmp4_u8(b, id >> 16);
+   if (id > 0xFF)
+      fmp4_u8(b, id >> 8);
+   fmp4_u8(b, id);
+}
+
+/**
+ * Start a master element, its 8 byte size is filled in by mkv_end()
+ *
+ * @return Offset of the size
+ */
+static uint32_t mkv_start(FMP4_BUF *b, uint32_t id)
+{
+   uint32_t start;
+
+   mkv_id(b, id);
+   start = b->length;
+   fmp4_u32(b, 0x01000000);
+   fmp4_u32(b, 0);
+   return start;
+}
+
+static void mkv_end(FMP4_BUF *b, uint32_t start)
+{
+   uint64_t size = b->length - start - 8;
+   fmp4_set_u32(b, start, 0x01000000 | (uint32_t)(size >> 32));
+   fmp4_set_u32(b, start + 4, (uint32_t) size);
+}
+
+static void mkv_uint(FMP4_BUF *b, uint32_t id, uint64_t v)
+{
+   int len = 1, i;
+
+   while ((len < 8) && (v >> (8 * len)))
+      len++;
+   mkv_id(b, id);
+   fmp4_u8(b, 0x80 | len);
+   for (i = len - 1; i >= 0; i--)
+      fmp4_u8(b, (uint32_t)(v >> (8 * i)));
+}
+
+static void mkv_data(FMP4_BUF *b, uint32_t id, const void *data, uint32_t len)
+{
+   mkv_id(b, id);
+   fmp4_u16(b, 0x4000 | len);//2 byte size, len < 16383
+   fmp4_put(b, data, len);
+}
+
+/**
+ * Write the file header: ftyp/moov, or EBML header, Segment of unknown size, Info and Tracks
+ */
+static void rec_write_header(REC_STATE *rec)
+{
+   FMP4_STATE *f = &rec->fmp4;
+   FMP4_BUF avcc = { NULL, 0, 0 };
+   FMP4_BUF *b = &rec->fmp4.fragment;
+   uint32_t el, track, video;
+
+   if (!rec->bMatroska)
+   {
+      rec_put(rec, f->init.data, f->init.length);
+      return;
+   }
+
+   b->length = 0;
+   el = mkv_start(b, 0x1A45DFA3);
+   mkv_uint(b, 0x4286, 1);              //EBMLVersion
+   mkv_uint(b, 0x42F7, 1);              //EBMLReadVersion
+   mkv_uint(b, 0x42F2, 4);              //EBMLMaxIDLength
+   mkv_uint(b, 0x42F3, 8);              //EBMLMaxSizeLength
+   mkv_data(b, 0x4282, "matroska", 8);  //DocType
+   mkv_uint(b, 0x4287, 4);              //DocTypeVersion
+   mkv_uint(b, 0x4285, 2);              //DocTypeReadVersion
+   mkv_end(b, el);
+
+   mkv_id(b, 0x18538067);               //Segment, unknown size, it grows with every cluster
+   fmp4_u32(b, 0x01FFFFFF);
+   fmp4_u32(b, 0xFFFFFFFF);
+
+   el = mkv_start(b, 0x1549A966);       //Info
+   mkv_uint(b, 0x2AD7B1, 1000000);      //TimestampScale, ms
+   mkv_data(b, 0x4D80, "raspivid", 8);  //MuxingApp
+   mkv_data(b, 0x5741, "raspivid", 8);  //WritingApp
+   mkv_end(b, el);
+
+   el = mkv_start(b, 0x1654AE6B);       //Tracks
+   track = mkv_start(b, 0xAE);          //TrackEntry
+   mkv_uint(b, 0xD7, 1);                //TrackNumber
+   mkv_uint(b, 0x73C5, 1);              //TrackUID
+   mkv_uint(b, 0x83, 1);                //TrackType video
+   mkv_uint(b, 0x9C, 0);                //FlagLacing
+   mkv_data(b, 0x86, "V_MPEG4/ISO/AVC", 15);
+   fmp4_write_avcc(&avcc, f);
+   mkv_data(b, 0x63A2, avcc.data, avcc.length);//CodecPrivate
+   free(avcc.data);
+   video = mkv_start(b, 0xE0);
+   mkv_uint(b, 0xB0, f->width);         //PixelWidth
+   mkv_uint(b, 0xBA, f->height);        //PixelHeight
+   mkv_end(b, video);
+   mkv_end(b, track);
+   mkv_end(b, el);
+   rec_write(rec, b);
+}
+
+/**
+ * Write the open fragment as moof/mdat or as a Matroska cluster of SimpleBlocks
+ *
+ * @param rec Recorder state
+ * @param end_pts Encoder time of the next frame, ends the last sample
+ */
+static void rec_write_fragment(REC_STATE *rec, int64_t end_pts)
+{
+   FMP4_STATE *f = &rec->fmp4;
+   FMP4_BUF *b = &f->fragment;
+   uint64_t start = (uint64_t)(rec->start_pts - f->first_pts);
+   uint32_t pos = 0, box;
+   int i;
+
+   if (!rec->sample_cnt)
+      return;
+   b->length = 0;
+   if (rec->bMatroska)
+   {
+      uint32_t cluster = mkv_start(b, 0x1F43B675);
+      uint64_t cluster_ms = start / 1000;
+
+      mkv_uint(b, 0xE7, cluster_ms);    //Timestamp
+      for (i = 0; i < rec->sample_cnt; i++)
+      {
+         REC_SAMPLE *s = &rec->samples[i];
+         int16_t rel = (int16_t)((start + s->time_us) / 1000 - cluster_ms);
+         uint32_t len = 4 + s->size;
+
+         mkv_id(b, 0xA3);               //SimpleBlock, 8 byte size
+         fmp4_u32(b, 0x01000000);
+         fmp4_u32(b, len);
+         fmp4_u8(b, 0x81);              //track 1
+         fmp4_u16(b, (uint16_t) rel);
+         fmp4_u8(b, s->bKeyframe ? 0x80 : 0x00);
+         fmp4_put(b, rec->media.data + pos, s->size);
+         pos += s->size;
+      }
+      mkv_end(b, cluster);
+   }
+   else
+   {
+      uint32_t moof, traf, trun, data_offset;
+
+      moof = fmp4_box(b, "moof");
+      box = fmp4_fullbox(b, "mfhd", 0, 0);
+      fmp4_u32(b, ++f->fragment_seq);
+      fmp4_box_end(b, box);
+      traf = fmp4_box(b, "traf");
+      box = fmp4_fullbox(b, "tfhd", 0, 0x020000);//default-base-is-moof
+      fmp4_u32(b, 1);
+      fmp4_box_end(b, box);
+      box = fmp4_fullbox(b, "tfdt", 1, 0);
+      fmp4_u32(b, (start * FMP4_TIMESCALE / 1000000) >> 32);
+      fmp4_u32(b, start * FMP4_TIMESCALE / 1000000);
+      fmp4_box_end(b, box);
+      trun = fmp4_fullbox(b, "trun", 0, 0x000701);//data offset, sample duration, size and flags
+      fmp4_u32(b, rec->sample_cnt);
+      data_offset = b->length;
+      fmp4_u32(b, 0);
+      for (i = 0; i < rec->sample_cnt; i++)
+      {
+         REC_SAMPLE *s = &rec->samples[i];
+         //durations from the 90kHz times of both ends, so rounding does not add up
+         uint64_t t0 = (start + s->time_us) * FMP4_TIMESCALE / 1000000;
+         uint64_t t1 = (i + 1 < rec->sample_cnt) ? (start + rec->samples[i + 1].time_us) * FMP4_TIMESCALE / 1000000 :
+                       (uint64_t)(end_pts - f->first_pts) * FMP4_TIMESCALE / 1000000;
+         fmp4_u32(b, (uint32_t)(t1 - t0));
+         fmp4_u32(b, s->size);
+         fmp4_u32(b, s->bKeyframe ? 0x02000000 : 0x01010000);
+      }
+      fmp4_box_end(b, trun);
+      fmp4_box_end(b, traf);
+      fmp4_box_end(b, moof);
+      fmp4_set_u32(b, data_offset, b->length + 8 - moof);
+      fmp4_u32(b, 8 + rec->media.length);
+      fmp4_put(b, "mdat", 4);
+   }
+   if (rec->writer)
+   {//the disk fell behind: drop whole fragments, the file stays valid and goes on with a key frame
+      uint32_t len = b->length + (rec->bMatroska ? 0 : rec->media.length);
+
+      //the unwritten output and a file header (segment switch) must fit as well
+      if ((rec->bDropping && !rec->samples[0].bKeyframe) ||
+          !writer_reserve(rec->writer, (uint64_t) rec->out.length + len + REC_WRITE_ALIGN, rec->writer->bWait))
+      {
+         rec->writer->dropped += len;
+         rec->writer->drops++;
+         rec->bDropping = true;
+         b->length = 0;
+      }
+      else
+         rec->bDropping = false;
+   }
+   if (b->length)
+   {
+      rec_write(rec, b);
+      if (!rec->bMatroska)
+         rec_write(rec, &rec->media);
+   }
+   rec->media.length = 0;
+   rec->sample_cnt = 0;
+}
+
+/**
+ * Open a segment file and preallocate it, the blocks are reserved before the callback writes.
+ * The size is kept, so the file never ends in zeros. An existing file (-wrap) is not truncated,
+ * it is overwritten in place and cut when finished.
+ *
+ * @param seg Segments
+ * @param number Segment number
+ * @param pSize Receives the size the file had
+ * @return File descriptor, -1 on errors
+ */
+static int seg_open(SEG_STATE *seg, int number, off_t *pSize)
+{
+   char name[PATH_MAX];
+   struct stat st;
+   int fd;
+
+   snprintf(name, sizeof(name), seg->pattern, number);
+   if ((fd = open(name, O_WRONLY | O_CREAT, 0666)) < 0)
+   {
+      vcos_log_error("Can not create segment %s: %s", name, strerror(errno));
+      return -1;
+   }
+   *pSize = fstat(fd, &st) ? 0 : st.st_size;
+   if (seg->prealloc && fallocate(fd, FALLOC_FL_KEEP_SIZE, 0, seg->prealloc))
+   {
+      static bool bWarned = false;//e.g. vfat does not support it, go on without
+      if (!bWarned)
+         vcos_log_error("fallocate %s: %s", name, strerror(errno));
+      bWarned = true;
+   }
+   return fd;
+}
+
+static int seg_next_number(SEG_STATE *seg, int number)
+{
+   return (seg->wrap && (number >= seg->wrap)) ? 1 : number + 1;
+}
+
+/**
+ * Segment thread: prepares the next file and finishes the last one away from the encoder callback
+ */
+static void *seg_thread(void *arg)
+{
+   SEG_STATE *seg = (SEG_STATE *) arg;
+
+   pthread_mutex_lock(&seg->lock);
+   for (;;)
+   {
+      if (seg->close_fd >= 0)
+      {//cut off what is left of a reused file, make it durable
+         int fd = seg->close_fd;
+         uint64_t len = seg->close_len;
+         bool bCut = seg->close_size > (off_t) len;
+
+         pthread_mutex_unlock(&seg->lock);
+         if (seg->writer)
+            writer_wait(seg->writer, seg->close_seq);
+         if ((bCut && ftruncate(fd, len)) || fsync(fd))
+            vcos_log_error("Finishing a segment failed: %s", strerror(errno));
+         close(fd);
+         pthread_mutex_lock(&seg->lock);
+         seg->close_fd = -1;
+         pthread_cond_broadcast(&seg->cond);
+      }
+      else if (seg->bQuit)
+         break;
+      else if (seg->next_fd < 0)
+      {
+         int number = seg_next_number(seg, seg->number), fd;
+         off_t size;
+
+         pthread_mutex_unlock(&seg->lock);
+         fd = seg_open(seg, number, &size);
+         pthread_mutex_lock(&seg->lock);
+         if (fd < 0)
+         {//try again later, the current segment grows meanwhile
+            pthread_mutex_unlock(&seg->lock);
+            sleep(1);
+            pthread_mutex_lock(&seg->lock);
+         }
+         else
+         {
+            seg->next_fd = fd;
+            seg->next_size = size;
+         }
+      }
+      else
+         pthread_cond_wait(&seg->cond, &seg->lock);
+   }
+
+   if (seg->next_fd >= 0)
+   {//prepared but never used: remove it, or free the blocks preallocated after an old segment
+      char name[PATH_MAX];
+      snprintf(name, sizeof(name), seg->pattern, seg_next_number(seg, seg->number));
+      if (!seg->next_size)
+         unlink(name);
+      else if (ftruncate(seg->next_fd, seg->next_size))
+         vcos_log_error("Restoring %s failed: %s", name, strerror(errno));
+      close(seg->next_fd);
+      seg->next_fd = -1;
+   }
+   pthread_mutex_unlock(&seg->lock);
+   return NULL;
+}
+
+/**
+ * Record into numbered segment files, the first one is already open as rec->fd
+ *
+ * @param rec Recorder state
+ * @param pattern -o name, %d is replaced by the segment number
+ * @param number Number of the first segment
+ * @param wrap Numbers go back to 1 after this, 0 = no wrap
+ * @param time_ms New segment at the first key frame after this long, 0 = no limit
+ * @param mb ... or after this many MB, 0 = no limit
+ * @param bitrate Bitrate to size the preallocation with
+ */
+static void rec_segments_start(REC_STATE *rec, const char *pattern, int number, int wrap, int time_ms, int mb, uint32_t bitrate)
+{
+   SEG_STATE *seg = &rec->seg;
+   struct stat st;
+
+   seg->pattern = pattern;
+   seg->number = number;
+   seg->wrap = wrap;
+   seg->time_us = (int64_t) time_ms * 1000;
+   seg->bytes = (uint64_t) mb * 1024 * 1024;
+   //a segment ends at the next key frame after the limit, leave room for that
+   if (seg->bytes)
+      seg->prealloc = seg->bytes + seg->bytes / 8;
+   else if (bitrate)
+      seg->prealloc = (uint64_t) bitrate / 8 * time_ms / 1000 * 5 / 4;
+   seg->next_fd = -1;
+   seg->close_fd = -1;
+   seg->writer = rec->writer;
+   seg->size = fstat(rec->fd, &st) ? 0 : st.st_size;
+   if (seg->prealloc && fallocate(rec->fd, FALLOC_FL_KEEP_SIZE, 0, seg->prealloc))
+      vcos_log_error("fallocate: %s", strerror(errno));
+   pthread_mutex_init(&seg->lock, NULL);
+   pthread_cond_init(&seg->cond, NULL);
+   if (pthread_create(&seg->thread, NULL, seg_thread, seg))
+   {
+      vcos_log_error("Unable to start the segment thread");
+      exit(__LINE__);
+   }
+   rec->bSegments = true;
+}
+
+/**
+ * Continue in the next segment file if the thread has it ready, otherwise try again at the next key frame
+ *
+ * @param rec Recorder state
+ * @param next_pts Encoder time of the key frame the new segment starts with
+ * @return true if the file was switched
+ */
+static bool rec_segment_switch(REC_STATE *rec, int64_t next_pts)
+{
+   SEG_STATE *seg = &rec->seg;
+   bool bReady;
+
+   pthread_mutex_lock(&seg->lock);
+   bReady = (seg->next_fd >= 0) && (seg->close_fd < 0);
+   pthread_mutex_unlock(&seg->lock);
+   if (!bReady)
+      return false;
+
+   rec_write_fragment(rec, next_pts);
+   rec_flush(rec, true);
+
+   pthread_mutex_lock(&seg->lock);
+   seg->close_fd = rec->fd;
+   seg->close_len = rec->written;
+   seg->close_size = seg->size;
+   seg->close_seq = rec->writer ? rec->writer->desc_tail : 0;
+   rec->fd = seg->next_fd;
+   seg->size = seg->next_size;
+   seg->next_fd = -1;
+   seg->number = seg_next_number(seg, seg->number);
+   pthread_cond_broadcast(&seg->cond);
+   pthread_mutex_unlock(&seg->lock);
+
+   rec->written = 0;
+   rec->bStarted = false;//the new file gets its own header and starts at time 0
+   return true;
+}
+
+/**
+ * The frame in rec->fmp4.frame is complete: add it to the open fragment, which is written first if it is due
+ *
+ * @param pData Callback data
+ * @param pts Encoder timestamp in us or MMAL_TIME_UNKNOWN
+ */
+static void rec_frame_end(PORT_USERDATA *pData, int64_t pts)
+{
+   REC_STATE *rec = &pData->rec;
+   FMP4_STATE *f = &rec->fmp4;
+   bool bKeyframe = (pData->frameFlags & NET_CHUNK_FLAG_KEYFRAME) != 0;
+   REC_SAMPLE *s;
+
+   if (!rec->bStarted && (!f->init.length || !bKeyframe))
+   {//a player needs SPS/PPS and a key frame first
+      f->frame.length = 0;
+      return;
+   }
+   if (rec->pts_origin == MMAL_TIME_UNKNOWN)
+   {
+      if (pts == MMAL_TIME_UNKNOWN)
+         pts = 0;
+      rec->pts_origin = pts;
+   }
+   else if (pts == MMAL_TIME_UNKNOWN)
+      pts = rec->last_pts + f->frame_us;
+   else if (pts <= rec->last_pts)
+      pts = rec->last_pts + 1;//keep the timeline increasing
+
+   if (rec->bSegments && rec->bStarted && bKeyframe &&
+       ((rec->seg.time_us && (pts - rec->seg_start_pts >= rec->seg.time_us)) ||
+        (rec->seg.bytes && (rec->written + rec->out.length + rec->media.length >= rec->seg.bytes)) ||
+        pData->pstate->splitNow))
+   {
+      if (rec_segment_switch(rec, pts))
+         pData->pstate->splitNow = 0;
+   }
+
+   if (!rec->bStarted)
+   {
+      rec_write_header(rec);
+      rec->bStarted = true;
+      f->first_pts = pts;
+      rec->seg_start_pts = pts;
+   }
+   else if (rec->sample_cnt)
+      f->frame_us = pts - rec->last_pts;//not across a pause
+
+   if (rec->sample_cnt &&
+       ((bKeyframe && (pts - rec->start_pts >= REC_FRAGMENT_US)) || (pts - rec->start_pts >= REC_MAX_FRAGMENT_US) ||
+        (rec->sample_cnt == REC_MAX_SAMPLES)))
+      rec_write_fragment(rec, pts);
+   if (!rec->sample_cnt)
+      rec->start_pts = pts;
+
+   s = &rec->samples[rec->sample_cnt++];
+   s->time_us = pts - rec->start_pts;
+   s->bKeyframe = bKeyframe;
+   s->size = fmp4_put_sample(&rec->media, f->frame.data, f->frame.length);
+   rec->last_pts = pts;
+   f->frame.length = 0;
+
+   if (rec->pts_file)
+      fprintf(rec->pts_file, "%lld.%03lld\n", (long long)(pts - rec->pts_origin) / 1000, (long long)(pts - rec->pts_origin) % 1000);
+}
+
+/**
+ * Write the open fragment and all collected output, the file is complete up to the last frame.
+ * Recording may go on with a later frame, the timeline has a gap then.
+ */
+static void rec_pause(REC_STATE *rec)
+{
+   if (rec->sample_cnt)
+      rec_write_fragment(rec, rec->last_pts + rec->fmp4.frame_us);
+   rec_flush(rec, true);
+}
+
+/**
+ * Write the open fragment, the recording stops
+ */
+static void rec_close(REC_STATE *rec)
+{
+   rec_pause(rec);
+   if (rec->bSegments)
+   {//the last segment is finished like the others, then the thread ends
+      SEG_STATE *seg = &rec->seg;
+
+      pthread_mutex_lock(&seg->lock);
+      while (seg->close_fd >= 0)
+         pthread_cond_wait(&seg->cond, &seg->lock);
+      seg->close_fd = rec->fd;
+      seg->close_len = rec->written;
+      seg->close_size = seg->size;
+      seg->close_seq = rec->writer ? rec->writer->desc_tail : 0;
+      seg->bQuit = true;
+      pthread_cond_broadcast(&seg->cond);
+      pthread_mutex_unlock(&seg->lock);
+      pthread_join(seg->thread, NULL);
+      rec->bSegments = false;
+   }
+   if (rec->pts_file)
+      fclose(rec->pts_file);
+   rec->pts_file = NULL;
+}
+
+/**
+ * Set up the pre-event ring, it is allocated once and never grows
+ *
+ * @param circ Ring state
+ * @param pre_ms Pre-roll to keep, 0 = as much as fits
+ * @param kb Ring size, 0 = sized from the bitrate and pre_ms
+ * @param post_ms Recording goes on this long after the last motion
+ * @param bitrate Bitrate to size the ring with
+ */
+static void circ_init(CIRC_STATE *circ, int pre_ms, int kb, int post_ms, uint32_t bitrate)
+{
+   uint64_t size = (uint64_t) kb * 1024;
+
+   memset(circ, 0, sizeof(*circ));
+   if (!size)//room for the pre-roll plus the GOP being written and one evicted late
+      size = (uint64_t) bitrate / 8 * (pre_ms + 2000) / 1000 * 3 / 2;
+   if (size > 0x7FFFFFF8)
+      size = 0x7FFFFFF8;
+   circ->size = (uint32_t) size & ~7u;
+   if (NULL == (circ->data = malloc(circ->size)))
+   {
+      vcos_log_error("Unable to allocate %u bytes for the pre-event ring", circ->size);
+      exit(__LINE__);
+   }
+   circ->pre_us = (int64_t) pre_ms * 1000;
+   circ->post_us = (int64_t) post_ms * 1000;
+}
+
+/**
+ * Evict the oldest GOP
+ */
+static void circ_drop_gop(CIRC_STATE *circ)
+{
+   circ->head = (circ->gop_cnt > 1) ? circ->gop[1] : circ->tail;
+   circ->gop_cnt--;
+   memmove(circ->gop, circ->gop + 1, circ->gop_cnt * sizeof(circ->gop[0]));
+   memmove(circ->gop_pts, circ->gop_pts + 1, circ->gop_cnt * sizeof(circ->gop_pts[0]));
+}
+
+/**
+ * Add a complete frame to the pre-event ring, old GOPs are evicted to make room
+ *
+ * @param circ Ring state
+ * @param data Annex-B data of the frame
+ * @param len Bytes
+ * @param flags NET_CHUNK_FLAG_xxx of the frame
+ * @param pts Encoder timestamp in us
+ */
+static void circ_push(CIRC_STATE *circ, const uint8_t *data, uint32_t len, uint32_t flags, int64_t pts)
+{
+   bool bKeyframe = (flags & NET_CHUNK_FLAG_KEYFRAME) != 0;
+   uint64_t need = CIRC_FRAME_SIZE(len), offset, pad;
+   CIRC_FRAME *fr;
+
+   if (bKeyframe)
+   {
+      circ->bSkipGop = false;
+      //older GOPs go once the younger ones cover the pre-roll
+      while (circ->gop_cnt && ((circ->gop_cnt == CIRC_MAX_GOPS) ||
+             (circ->pre_us && (((circ->gop_cnt > 1) ? circ->gop_pts[1] : pts) <= pts - circ->pre_us))))
+         circ_drop_gop(circ);
+   }
+   else if (circ->bSkipGop || !circ->gop_cnt)
+      return;//useless without its key frame
+
+   for (;;)
+   {
+      offset = circ->tail % circ->size;
+      pad = (circ->size - offset < need) ? circ->size - offset : 0;
+      if (circ->tail + pad + need - circ->head <= circ->size)
+         break;
+      if (circ->gop_cnt > (bKeyframe ? 0 : 1))
+      {
+         circ_drop_gop(circ);
+         continue;
+      }
+      //the current GOP alone does not fit
+      circ->head = circ->tail = 0;
+      circ->gop_cnt = 0;
+      if (!circ->bWarned)
+      {
+         vcos_log_error("The pre-event ring is too small for a GOP, raise -circsize");
+         circ->bWarned = true;
+      }
+      if (!bKeyframe || (need > circ->size))
+      {
+         circ->bSkipGop = true;
+         return;
+      }
+   }
+
+   if (pad)
+   {
+      if (pad >= sizeof(CIRC_FRAME))
+         ((CIRC_FRAME *)(circ->data + offset))->flags = CIRC_FLAG_PAD;
+      circ->tail += pad;
+      offset = 0;
+   }
+   if (bKeyframe)
+   {
+      circ->gop[circ->gop_cnt] = circ->tail;
+      circ->gop_pts[circ->gop_cnt++] = pts;
+   }
+   fr = (CIRC_FRAME *)(circ->data + offset);
+   fr->length = len;
+   fr->flags = flags;
+   fr->pts = pts;
+   memcpy(fr + 1, data, len);
+   circ->tail += need;
+}
+
+/**
+ * Motion triggered: hand the buffered GOPs to the recorder, it gets the live frames from now on
+ *
+ * @param pData Callback data
+ */
+static void circ_flush(PORT_USERDATA *pData)
+{
+   CIRC_STATE *circ = &pData->circ;
+   FMP4_STATE *f = &pData->rec.fmp4;
+   uint64_t pos = circ->head;
+   uint32_t frameFlags = pData->frameFlags;//other sinks of the pipeline still need them
+
+   while (pos < circ->tail)
+   {
+      uint64_t offset = pos % circ->size;
+      CIRC_FRAME *fr = (CIRC_FRAME *)(circ->data + offset);
+
+      if ((circ->size - offset < sizeof(CIRC_FRAME)) || (fr->flags & CIRC_FLAG_PAD))
+      {
+         pos += circ->size - offset;
+         continue;
+      }
+      fmp4_put(&f->frame, fr + 1, fr->length);
+      pData->frameFlags = fr->flags;
+      rec_frame_end(pData, fr->pts);
+      pos += CIRC_FRAME_SIZE(fr->length);
+   }
+   pData->frameFlags = frameFlags;
+   circ->head = circ->tail = 0;
+   circ->gop_cnt = 0;
+}
+
+/**
+ * The frame in rec.fmp4.frame is complete: record it or keep it in the pre-event ring
+ *
+ * @param pData Callback data
+ * @param pts Encoder timestamp in us or MMAL_TIME_UNKNOWN
+ */
+static void circ_frame_end(PORT_USERDATA *pData, int64_t pts)
+{
+   CIRC_STATE *circ = &pData->circ;
+   FMP4_BUF *frame = &pData->rec.fmp4.frame;
+
+   if (pts == MMAL_TIME_UNKNOWN)
+      pts = circ->last_pts + pData->rec.fmp4.frame_us;
+   circ->last_pts = pts;
+
+   if (circ->bRecording && (pData->frameFlags & NET_CHUNK_FLAG_KEYFRAME) && (pts - circ->motion_pts >= circ->post_us))
+   {//post-roll is over, this GOP starts the next pre-roll
+      rec_pause(&pData->rec);
+      circ->bRecording = false;
+      fprintf(stderr, "Event %u recorded\n", circ->events);
+   }
+   if (circ->bRecording)
+      rec_frame_end(pData, pts);
+   else
+   {
+      circ_push(circ, frame->data, frame->length, pData->frameFlags, pts);
+      frame->length = 0;
+   }
+}
+
+/**
+ * Motion vectors of the last frame came: start recording with the pre-roll if they exceed the alarm level
+ *
+ * @param pData Callback data
+ * @param eb The vectors, rated by the motion analyser
+ */
+static void circ_motion(PORT_USERDATA *pData, const ENCODER_BUFFER *eb)
+{
+   CIRC_STATE *circ = &pData->circ;
+
+   if (!eb->bAlarm)
+      return;
+   circ->motion_pts = circ->last_pts;
+   if (!circ->bRecording)
+   {
+      fprintf(stderr, "Motion %d, recording event %u\n", (int) eb->motion, ++circ->events);
+      circ_flush(pData);
+      circ->bRecording = true;
+   }
+}
+
+/**
+ * Return the held fragments of the access unit to the encoder and start a new one
+ */
+static void au_release(PORT_USERDATA *pData, MMAL_PORT_T *port)
+{
+   AU_STATE *au = &pData->au;
+   int i;
+
+   for (i = 0; i < au->count; i++)
+      return_buffer_to_port(pData, port, au->buffers[i]);
+   au->count = 0;
+   au->spill.length = 0;
+   au->length = 0;
+   au->mmal_flags = 0;
+}
+
+/**
+ * Drop the access unit, the following ones are dropped up to the next key frame
+ */
+static void au_drop(PORT_USERDATA *pData, MMAL_PORT_T *port)
+{
+   AU_STATE *au = &pData->au;
+
+   if (!au->bWaitKey)
+      vcos_log_error("Frame larger than %uKB, dropped up to the next key frame", au->budget / 1024);
+   au->bWaitKey = true;
+   au->dropped++;
+   au_release(pData, port);
+}
+
+/**
+ * Add a fragment that does not end the access unit. It is held if the encoder keeps at least one
+ * buffer for the next fragment, otherwise it and the held fragments are copied. With -netq the
+ * message is copied into the queue anyway and fragments are always copied.
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param buffer Fragment, locked
+ * @return true if the access unit holds the buffer now, false if the caller releases it
+ */
+static bool au_add(PORT_USERDATA *pData, MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+{
+   AU_STATE *au = &pData->au;
+   ENCODER_POOL_STATS *pool = &pData->pool;
+   int i;
+
+   if (au->bDiscard)
+      return false;
+   if (au->length + buffer->length > au->budget)
+   {
+      au_drop(pData, port);
+      au->bDiscard = true;
+      return false;
+   }
+   if (!au->length)
+      au->pts = buffer->pts;
+   au->length += buffer->length;
+   au->mmal_flags |= buffer->flags;
+   if (!pData->pNetWriter && (au->count < AU_MAX_FRAGMENTS) &&
+       (!pool->num || (__atomic_load_n(&pool->held, __ATOMIC_RELAXED) < pool->num)))
+   {
+      au->buffers[au->count++] = buffer;
+      return true;
+   }
+   if (!au->spill.length && !pData->pNetWriter)
+      au->spilled++;
+   for (i = 0; i < au->count; i++)
+   {
+      fmp4_put(&au->spill, au->buffers[i]->data, au->buffers[i]->length);
+      return_buffer_to_port(pData, port, au->buffers[i]);
+   }
+   au->count = 0;
+   fmp4_put(&au->spill, buffer->data, buffer->length);
+   return false;
+}
+
+/**
+ * Add the fragment with MMAL_BUFFER_HEADER_FLAG_FRAME_END, it stays with the caller
+ *
+ * @return true if the access unit is complete and is sent, false if it is dropped
+ */
+static bool au_frame_end(PORT_USERDATA *pData, MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *last)
+{
+   AU_STATE *au = &pData->au;
+
+   if (au->bDiscard)
+   {
+      au->bDiscard = false;
+      return false;
+   }
+   if (au->length + last->length > au->budget)
+   {
+      au_drop(pData, port);
+      return false;
+   }
+   if (!au->length)
+      au->pts = last->pts;
+   au->length += last->length;
+   au->mmal_flags |= last->flags;
+   if (au->bWaitKey)
+   {
+      if (!(au->mmal_flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME))
+      {
+         au->dropped++;
+         return false;
+      }
+      au->bWaitKey = false;
+   }
+   return true;
+}
+
+/**
+ * NET_CHUNK_FLAG_xxx of a complete access unit
+ */
+static uint32_t au_chunk_flags(const AU_STATE *au)
+{
+   return (au->mmal_flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME) ? NET_CHUNK_FLAG_KEYFRAME : 0;
+}
+
+/**
+ * Send the spilled and held fragments of the access unit, the fragment added last is up to the caller
+ */
+static void au_output(PORT_USERDATA *pData)
+{
+   AU_STATE *au = &pData->au;
+   int i;
+
+   if (au->spill.length)
+      OutputData(pData, au->spill.data, au->spill.length);
+   for (i = 0; i < au->count; i++)
+      OutputData(pData, au->buffers[i]->data, au->buffers[i]->length);
+}
+
+/**
+ * Finish the access unit with its last fragment and send it as [prefix][4 byte length][frame]
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param last Fragment with MMAL_BUFFER_HEADER_FLAG_FRAME_END
+ * @param prefix Message type in front of the length, NULL if none
+ * @param prefix_len Bytes of prefix
+ * @return true if last is in flight with MSG_ZEROCOPY, zerocopy_reaper() returns it
+ */
+static bool OutputAccessUnit(PORT_USERDATA *pData, MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *last,
+                             const void *prefix, size_t prefix_len)
+{
+   AU_STATE *au = &pData->au;
+   bool bZeroCopy = false;
+
+   if (au_frame_end(pData, port, last))
+   {
+      uint32_t all_length = au->length;
+
+      if (prefix_len)
+         OutputData(pData, prefix, prefix_len);
+      OutputData(pData, &all_length, 4);   //send first the length of a frame
+      au_output(pData);
+      OutputData(pData, last->data, last->length);
+      bZeroCopy = OutputCommitFrame(pData, au_chunk_flags(au), au, last);
+   }
+   au_release(pData, port);
+   return bZeroCopy;
+}
+
+/**
+ *  Sink of android_dimon mode: SPS/PPS in one chunk, then a chunk per access unit
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_android_dimon(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
+
+   if (eb->bConfig)
+   {
+      //sps/pps comes in 2 callbacks
+      if(!pData->au.length)//do not send a first part of sps/pps immediately
+      {//but keep it in the access unit
+         eb->bHeld = au_add(pData, port, buffer);
+      }
+      else
+      {//wait for the second part and send both parts in one chunk
+         uint32_t sps_len = pData->au.length + buffer->length;
+         OutputData(pData, &sps_len, 4);
+         au_output(pData);
+         OutputData(pData, buffer->data, buffer->length);
+         OutputCommit(pData, NET_CHUNK_FLAG_CONFIG);
+         au_release(pData, port);
+      }
+   }
+   else if (eb->bVectors)
+   {//motion vectors are not sent
+   }
+   else if (!eb->bFrameEnd)
+   {//begin or middle of a partial frame
+      eb->bHeld = au_add(pData, port, buffer);
+   }
+   else
+   {//a complete frame or the end of a partial frame
+      eb->bHeld = OutputAccessUnit(pData, port, buffer, NULL, 0);
+   }
+}
+
+/**
+ *  Sink of android_motion mode: access units and the motion of every frame, an alarm above gMotionAlarm
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_android_motion(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
+   uint8_t dataType;
+
+   static bool b_config_sent = false;//sent SPS/PPS only one time on the beginning
+   if ((!b_config_sent) && eb->bConfig)
+   {
+      b_config_sent = true;
+      OutputData(pData, &buffer->length, 4);
+      OutputData(pData, buffer->data, buffer->length);
+      OutputCommit(pData, NET_CHUNK_FLAG_CONFIG);
+   }
+   else if (eb->bVectors)
+   {//motion vectors, rated by the motion analyser
+      dataType = (uint8_t)MotionInFrame;
+      OutputData(pData, &dataType, 1);
+      OutputData(pData, &eb->motion, 1);
+      if (pData->zones.count)
+      {//with -zone the number of zones and their scores follow
+         uint8_t count = pData->zones.count;
+         OutputData(pData, &count, 1);
+         OutputData(pData, pData->zones.score, count);
+      }
+      OutputCommit(pData, 0);
+
+      if (pData->blobs.minBlocks)
+      {//count, then per object x0, y0, x1, y1 in macroblocks, 16 bit area, mean vx, vy and the longest vector
+         MOTION_BLOBS *blobs = &pData->blobs;
+         uint8_t msg[2 + MOTION_MAX_BLOBS * 9], *p = msg;
+         int k;
+
+         *p++ = (uint8_t)MotionBlobs;
+         *p++ = blobs->count;
+         for (k = 0; k < blobs->count; k++)
+         {
+            MOTION_BLOB *b = &blobs->blob[k];
+            *p++ = b->x0;
+            *p++ = b->y0;
+            *p++ = b->x1;
+            *p++ = b->y1;
+            memcpy(p, &b->area, 2);
+            p += 2;
+            *p++ = (uint8_t) b->vx;
+            *p++ = (uint8_t) b->vy;
+            *p++ = b->motion;
+         }
+         OutputData(pData, msg, p - msg);
+         OutputCommit(pData, 0);
+      }
+
+      if (eb->bAlarm)
+      {
+         dataType = (uint8_t)MotionAlarm;
+         OutputData(pData, &dataType, 1);
+         OutputCommit(pData, 0);
+      }
+   }
+   else if (!(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END))
+   {//begin or middle of a partial frame, later SPS/PPS go with the next frame
+      eb->bHeld = au_add(pData, port, buffer);
+   }
+   else
+   {//a complete frame or the end of a partial frame
+      dataType = (uint8_t)RegularFrame;
+      eb->bHeld = OutputAccessUnit(pData, port, buffer, &dataType, 1);
+   }
+}
+
+/**
+ *  Sink of android mode: a chunk per SPS/PPS buffer and per access unit
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_android(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
+
+   if (eb->bConfig)
+   {
+      OutputData(pData, &buffer->length, 4);
+      OutputData(pData, buffer->data, buffer->length);
+      OutputCommit(pData, NET_CHUNK_FLAG_CONFIG);
+   }
+   else if (eb->bVectors)
+   {//motion vectors are not sent
+   }
+   else if (!eb->bFrameEnd)
+   {//begin or middle of a partial frame
+      eb->bHeld = au_add(pData, port, buffer);
+   }
+   else
+   {//a complete frame or the end of a partial frame
+      eb->bHeld = OutputAccessUnit(pData, port, buffer, NULL, 0);
+   }
+}
+
+/**
+ *  Sink of empty mode: prints what the encoder delivers and drops it
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_empty(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   pData->ulValidCallbackCnt = 0;
+   PrintDataType(pData, eb->buffer);
+}
+
+/**
+ *  Sink of raw_tcp mode: the H264 stream as it is, to the output, the viewers or the shm:// ring
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_raw_tcp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
+
+   if (pData->pShm)
+   {//local readers get everything, motion vectors included
+      shm_output_publish(pData->pShm, buffer);
+   }
+   else if (eb->bVectors)
+   {//motion vectors are not sent
+   }
+   else if (pData->pHub)
+   {//viewers may only join on a frame boundary, so a frame is queued as a whole
+      net_hub_append(pData->pHub, buffer->data, buffer->length);
+      if (eb->bConfig)
+         OutputCommit(pData, NET_CHUNK_FLAG_CONFIG);
+      else if (eb->bFrameEnd)
+         OutputCommit(pData, pData->frameFlags);
+   }
+   else
+   {
+      struct iovec iov = { buffer->data, buffer->length };
+      OutputSend(pData, &iov, 1, 0);
+   }
+}
+
+/**
+ *  Sink of rtp mode
+ *
+ *  Sends the H264 stream as RFC 6184 RTP packets (single NAL unit and FU-A) to the udp:// output
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_rtp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   if (!eb->bVectors)
+   {//H264 data, motion vectors are not sent
+      rtp_send_buffer(&pData->rtp, pData->sockFD, eb->buffer);
+   }
+}
+
+/**
+ *  Sink of rtsp mode
+ *
+ *  Packetizes the H264 stream once. TCP interleaved viewers get a frame of RTP packets as one hub chunk,
+ *  SPS/PPS ride along with the following frame so a viewer starting at a key frame gets them too.
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_rtsp(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   if (!eb->bVectors)
+   {//H264 data, motion vectors are not sent
+      rtp_send_buffer(&pData->rtp, pData->sockFD, eb->buffer);
+      if (eb->bFrameEnd)
+         OutputCommit(pData, pData->frameFlags);
+   }
+}
+
+/**
+ *  Sink of http mode
+ *
+ *  Muxes every frame into a moof/mdat fragment and appends it to the LL-HLS segment cache and the
+ *  /live.mp4 hub queues. HTTP viewers are served by the main thread, nothing here waits for them.
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_http(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
 
-         mmal_buffer_header_mem_unlock(buffer);
-      }
+   if (eb->bVectors)
+   {//motion vectors are not sent
    }
+   else if (eb->bConfig)
+      fmp4_config(&pData->fmp4, pData->pHub, buffer);
    else
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      fmp4_put(&pData->fmp4.frame, buffer->data, buffer->length);
+      if (eb->bFrameEnd)
+         fmp4_frame_end(pData, buffer->pts);
    }
+}
 
-   // release buffer back to the pool
-   mmal_buffer_header_release(buffer);
-
-   // and send one back to the port (if still open)
-   if (port->is_enabled)
-   {
-      MMAL_STATUS_T status;
-
-      new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue);
+/**
+ * Queue one websocket mode message: WebSocket header, message header and the encoder data.
+ * The data is copied once into the hub chunk, the caller commits it.
+ *
+ * @param pData Callback data
+ * @param type WS_MSG_xxx
+ * @param flags NET_CHUNK_FLAG_xxx of the data
+ * @param pts Encoder timestamp in us
+ * @param au Complete access unit with the fragments before last, NULL if last is all data
+ * @param last Buffer with the (rest of the) data
+ * @return Offset of the motion byte in the chunk
+ */
+static uint32_t ws_output_message(PORT_USERDATA *pData, uint8_t type, uint32_t flags, int64_t pts,
+                                  AU_STATE *au, MMAL_BUFFER_HEADER_T *last)
+{
+   uint32_t len = au ? au->length : last->length;
+   uint8_t hdr[10 + WS_MSG_HEADER];
+   uint32_t hdr_len = ws_frame_header(hdr, WS_OP_BINARY, WS_MSG_HEADER + len);
+   uint32_t motion_at = (pData->pHub->pending ? pData->pHub->pending->length : 0) + hdr_len + 2;
+   int i;
 
-      if (new_buffer)
-         status = mmal_port_send_buffer(port, new_buffer);
+   hdr[hdr_len] = type;
+   hdr[hdr_len + 1] = (flags & NET_CHUNK_FLAG_KEYFRAME) ? 1 : 0;
+   hdr[hdr_len + 2] = 0;//motion, patched when the vectors come
+   hdr[hdr_len + 3] = 0;
+   for (i = 0; i < 8; i++)
+      hdr[hdr_len + 4 + i] = (uint8_t)((uint64_t) pts >> (56 - 8 * i));
+   OutputData(pData, hdr, hdr_len + WS_MSG_HEADER);
+   if (au)
+      au_output(pData);
+   OutputData(pData, last->data, last->length);
+   return motion_at;
+}
 
-      if (!new_buffer || status != MMAL_SUCCESS)
-         vcos_log_error("Unable to return a buffer to the encoder port");
-   }
+/**
+ * Send the frame message that waited for its motion vectors
+ *
+ * @param pData Callback data
+ * @param motion Motion value of the frame
+ */
+static void ws_commit_frame(PORT_USERDATA *pData, unsigned char motion)
+{
+   pData->pHub->pending->data[pData->wsMotionAt] = motion;
+   OutputCommit(pData, pData->wsFlags);
+   pData->wsMotionAt = 0;
 }
 
-char buf_prev[256000];
-int buf_len = 0;
-static void encoder_buffer_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ *  Sink of websocket mode
+ *
+ *  Sends every access unit, reassembled like in android mode, as one binary WebSocket message to all
+ *  viewers. With inline motion vectors the message waits for them and carries the motion value.
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_websocket(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
-   PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
 
-   if (pData)
+   if (eb->bVectors)
+   {//motion vectors of the frame before, rated by the motion analyser
+      pData->bWsMotionFollows = true;
+      if (pData->wsMotionAt)
+         ws_commit_frame(pData, eb->motion);
+      return;
+   }
+   if (pData->wsMotionAt)
+   {//no vectors after the last frame, they were switched off
+      pData->bWsMotionFollows = false;
+      ws_commit_frame(pData, 0);
+   }
+   if (eb->bConfig)
+   {
+      ws_output_message(pData, WS_MSG_CONFIG, 0, buffer->pts, NULL, buffer);
+      OutputCommit(pData, NET_CHUNK_FLAG_CONFIG);
+   }
+   else if (!eb->bFrameEnd)
+   {//begin or middle of a partial frame, held or copied until its end comes
+      eb->bHeld = au_add(pData, port, buffer);
+   }
+   else
    {
-      if (buffer->length)
+      AU_STATE *au = &pData->au;
+
+      if (au_frame_end(pData, port, buffer))
       {
-         mmal_buffer_header_mem_lock(buffer);
+         uint32_t flags = au_chunk_flags(au);
+         uint32_t motion_at = ws_output_message(pData, WS_MSG_FRAME, flags, au->pts, au, buffer);
 
-         static char bHeaderSaved = 0;
-         if ((buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)&&(!bHeaderSaved))
+         if (pData->bWsMotionFollows)
          {
-            if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               bHeaderSaved = 1;
-            fwrite(buffer->data, 1, buffer->length, pData->file_handle);
+            pData->wsMotionAt = motion_at;
+            pData->wsFlags = flags;
          }
+         else
+            OutputCommit(pData, flags);
+      }
+      au_release(pData, port);
+   }
+}
 
-         //H264 data comes first, then comes motion vectors
-         if (!(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG))
-         {
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-            {//motion vectors
-               if(!pData->lastFrameKeyFr)
-               {//detect motion only if it not a key frame
-                  pData->lastFrameMotion = DetectMotion((INLINE_MOTION_VECTOR*) &buffer->data[0], pData->pstate);
-                  fprintf(stderr, "motion=%d\n", (int) pData->lastFrameMotion);
-               }
-               else
-               {
-                  pData->lastFrameMotion = 0;
-                  fprintf(stderr, "no motion, key frame\n");
-               }
-            }
-            else
-            {//H264 data
-
-               if ((!pData->lastFrameMotion)&&(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END))
-                  buf_len = 0;
-               pData->lastFrameKeyFr = buffer->flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME;
-
-               if((pData->lastFrameMotion)&&(buf_len != 0))
-               {
-                  fwrite(buf_prev, 1, buf_len, pData->file_handle);
-                  fprintf(stderr, "saved %d bytes\n", buf_len);
-                  buf_len = 0;
-               }
-               else
-                  pData->pstate->i64FramesSkip++;
-
-               if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_KEYFRAME)
-               {
-                  fwrite(buffer->data, 1, buffer->length, pData->file_handle);
-                  buf_len = 0;
-                  fprintf(stderr, "saved keyframe %d bytes\n", buffer->length);
-               }
-               else
-               {
-                  if(buf_len >= 256000)
-                  {
-                     fprintf(stderr, "pizdec\n");
-                     exit(123);
-                  }
-                  memcpy(buf_prev + buf_len, buffer->data, buffer->length);
-                  buf_len += buffer->length;
-               }
-
-               //fwrite(buffer->data, 1, buffer->length, pData->file_handle);
-
-               if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-                  handle_frame_end(pData);
-            }
-         }
+/**
+ *  Sink of ts mode
+ *
+ *  Muxes the H264 stream into MPEG-TS: PAT/PMT, one PES with PTS per frame and PCR, SPS/PPS in front of key frames
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_ts(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
 
-         mmal_buffer_header_mem_unlock(buffer);
-      }
+   if (eb->bVectors)
+   {//motion vectors are not sent
    }
+   else if (eb->bConfig)
+      ts_config(&pData->ts, buffer);
    else
    {
-      vcos_log_error("Received a encoder buffer callback with no state");
+      fmp4_put(&pData->ts.frame, buffer->data, buffer->length);
+      if (eb->bFrameEnd)
+         ts_frame_end(pData, buffer->pts);
    }
+}
 
-   // release buffer back to the pool
-   mmal_buffer_header_release(buffer);
+/**
+ *  Sink of record mode and of -record
+ *
+ *  Records the H264 stream with its encoder timestamps into fragmented MP4 or Matroska.
+ *  With -circular only motion events are recorded, each with its pre-roll from the ring.
+ *
+ * @param pData Callback data
+ * @param port Encoder output port
+ * @param eb The buffer
+ */
+static void encoder_sink_record(PORT_USERDATA *pData, MMAL_PORT_T *port, ENCODER_BUFFER *eb)
+{
+   MMAL_BUFFER_HEADER_T *buffer = eb->buffer;
 
-   // and send one back to the port (if still open)
-   if (port->is_enabled)
+   if (eb->bVectors)
+   {//motion vectors are not recorded, with -circular they trigger the recording
+      if (pData->circ.data && !pData->lastFrameKeyFr)
+         circ_motion(pData, eb);
+   }
+   else if (eb->bConfig)
+      fmp4_config(&pData->rec.fmp4, NULL, buffer);
+   else
    {
-      MMAL_STATUS_T status;
-
-      new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue);
-
-      if (new_buffer)
-         status = mmal_port_send_buffer(port, new_buffer);
-
-      if (!new_buffer || status != MMAL_SUCCESS)
-         vcos_log_error("Unable to return a buffer to the encoder port");
+      fmp4_put(&pData->rec.fmp4.frame, buffer->data, buffer->length);
+      if (eb->bFrameEnd)
+      {
+         if (pData->circ.data)
+            circ_frame_end(pData, buffer->pts);
+         else
+            rec_frame_end(pData, buffer->pts);
+      }
    }
 }
 
-static void encoder_buffer_callback_ok(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
+/**
+ * Encoder output port callback: every buffer goes once through the stages of the pipeline
+ *
+ *  - pool counting: buffers held by the application, frame sizes
+ *  - classifier: SPS/PPS, motion vectors or H264 data, NET_CHUNK_FLAG_xxx of the frame so far in frameFlags
+ *  - motion analyser: DetectMotion() on the vectors, once for all sinks
+ *  - sinks: the -record recorder, then the sink of the -m mode
+ *  - framer: at the end of a frame the frame counter, ABR and statistics, then the next frame
+ *
+ * The sinks copy what they need, only the last one may keep the buffer (access units, MSG_ZEROCOPY).
+ *
+ * @param port Encoder output port
+ * @param buffer mmal buffer header pointer
+ */
+static void encoder_pipeline_callback(MMAL_PORT_T *port, MMAL_BUFFER_HEADER_T *buffer)
 {
-   MMAL_BUFFER_HEADER_T *new_buffer;
    PORT_USERDATA *pData = (PORT_USERDATA *)port->userdata;
+   ENCODER_BUFFER eb;
+   int i;
 
-   if (pData)
+   if (!pData)
    {
-      if (buffer->length)
-      {
-         mmal_buffer_header_mem_lock(buffer);
-
-         static char bHeaderSaved = 0;
-         if ((buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG)&&(!bHeaderSaved))
+      vcos_log_error("Received a encoder buffer callback with no state");
+      mmal_buffer_header_release(buffer);
+      return;
+   }
+   encoder_pool_count(pData, buffer);
+   mmal_buffer_header_mem_lock(buffer);
+   memset(&eb, 0, sizeof(eb));
+   eb.buffer = buffer;
+   if (buffer->length)
+   {
+      eb.bConfig = (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG) != 0;
+      eb.bVectors = (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO) != 0;
+      eb.bFrameEnd = (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END) && !eb.bConfig && !eb.bVectors;
+      if (!eb.bConfig && !eb.bVectors)
+         pData->frameFlags |= FrameChunkFlags(NULL, buffer);
+      else if (eb.bVectors && pData->bAnalyseMotion)
+      {//vectors of the frame before, nothing moves in a key frame
+         INLINE_MOTION_VECTOR *imv = (INLINE_MOTION_VECTOR*) &buffer->data[0];
+
+         if (pData->lastFrameKeyFr)
          {
-            if(buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-               bHeaderSaved = 1;
-            fwrite(buffer->data, 1, buffer->length, pData->file_handle);
+            memset(pData->zones.score, 0, sizeof(pData->zones.score));
+            pData->blobs.count = 0;
          }
-
-         if (!(buffer->flags & MMAL_BUFFER_HEADER_FLAG_CONFIG))
+         else
          {
-            if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_CODECSIDEINFO)
-            {//motion vectors
-               pData->lastFrameMotion = DetectMotion((INLINE_MOTION_VECTOR*) &buffer->data[0], pData->pstate);
-               fprintf(stderr, "motion=%d ", (int) pData->lastFrameMotion);
+            if (pData->zones.count)
+            {//each zone alarms with its own threshold and block count
+               eb.motion = motion_zones_score(&pData->zones, imv, pData->pstate->mby);
+               eb.bAlarm = eb.motion != 0;
             }
-            else
-            {//H264 data
-
-               fwrite(buffer->data, 1, buffer->length, pData->file_handle);
-
-               if (buffer->flags & MMAL_BUFFER_HEADER_FLAG_FRAME_END)
-                  handle_frame_end(pData);
+            else if (!pData->blobs.minBlocks)
+            {
+               eb.motion = DetectMotion(imv, pData->pstate);
+               eb.bAlarm = eb.motion > gMotionAlarm;
             }
+            if (pData->blobs.minBlocks)
+            {//objects in the zones
+               eb.motion = motion_blobs_find(&pData->blobs, imv, pData->pstate->mbx, pData->pstate->mby,
+                                             pData->zones.count ? pData->zones.mask : NULL);
+               eb.bAlarm = pData->blobs.count != 0;//any object alarms, its threshold decided what moves
+            }
+            eb.bAlarm = eb.bAlarm && gMotionAlarm;//mot_alarm=0 switches the alarm off
          }
-
-         mmal_buffer_header_mem_unlock(buffer);
+         pData->lastFrameMotion = eb.motion;
       }
-   }
-   else
-   {
-      vcos_log_error("Received a encoder buffer callback with no state");
-   }
-
-   // release buffer back to the pool
-   mmal_buffer_header_release(buffer);
-
-   // and send one back to the port (if still open)
-   if (port->is_enabled)
-   {
-      MMAL_STATUS_T status;
 
-      new_buffer = mmal_queue_get(pData->pstate->encoder_pool->queue);
+      for (i = 0; i < pData->sinkCnt; i++)
+         pData->sinks[i](pData, port, &eb);
 
-      if (new_buffer)
-         status = mmal_port_send_buffer(port, new_buffer);
-
-      if (!new_buffer || status != MMAL_SUCCESS)
-         vcos_log_error("Unable to return a buffer to the encoder port");
+      if (eb.bFrameEnd)
+      {
+         pData->lastFrameKeyFr = (pData->frameFlags & NET_CHUNK_FLAG_KEYFRAME) != 0;
+         pData->frameFlags = 0;
+         handle_frame_end(pData);
+      }
    }
+   if (!eb.bHeld)
+      return_buffer_to_port(pData, port, buffer);
 }
 
 /**
@@ -2123,6 +8286,41 @@ static void destroy_camera_component(RASPIVID_STATE *state)
 
 
 
+/**
+ * -encbuf auto: size the encoder output pool
+ *
+ * A buffer holds the peak frame of an earlier run plus headroom or, if that is unknown, half a
+ * second of the (max adaptive) bitrate, which a key frame hardly exceeds. It is never smaller than
+ * the inline motion vectors of a frame and never larger than a raw frame. One buffer per frame is
+ * in the callback while the encoder fills the next, a third takes the motion vectors, MSG_ZEROCOPY
+ * holds key frames until the kernel is done with them.
+ *
+ * @param state Pointer to state control struct
+ * @param port Encoder output port
+ * @param num Returns the number of buffers
+ * @param size Returns the bytes per buffer
+ */
+static void encoder_pool_auto(const RASPIVID_STATE *state, const MMAL_PORT_T *port, uint32_t *num, uint32_t *size)
+{
+   uint32_t mbx = (state->width + 15) / 16, mby = (state->height + 15) / 16;
+   uint64_t bytes;
+
+   if (state->encoderPeakKB)
+      bytes = (uint64_t) state->encoderPeakKB * 1024 * ENCODER_AUTO_PEAK_PCT / 100;
+   else
+      bytes = (uint64_t) vcos_max((uint32_t) state->bitrate, state->abrCeiling) / 8 / 2;
+   bytes = vcos_min(bytes, (uint64_t) state->width * state->height * 3 / 2);
+   bytes = vcos_max(bytes, (uint64_t) ENCODER_AUTO_MIN_KB * 1024);
+   bytes = vcos_max(bytes, (uint64_t)(mbx + 1) * mby * sizeof(INLINE_MOTION_VECTOR));
+   bytes = vcos_max(bytes, (uint64_t) port->buffer_size_min);
+   *size = (uint32_t)((bytes + 4095) & ~(uint64_t) 4095);
+
+   *num = 3;
+   if (state->zerocopyKB)
+      *num += 2;
+   *num = vcos_max(*num, port->buffer_num_min);
+}
+
 /**
  * Create the encoder component, set up its ports
  *
@@ -2181,10 +8379,21 @@ static MMAL_STATUS_T create_encoder_component(RASPIVID_STATE *state)
    }
 
    encoder_output->format->bitrate = state->bitrate;
-   encoder_output->buffer_size = 1024*1024;//encoder_output->buffer_size_recommended;//encoder_output->buffer_size_min
-   encoder_output->buffer_num = 2; //encoder_output->buffer_num_recommended;//encoder_output->buffer_num_min
-
-   //fprintf(stderr, "encoder_output->buffer_size=%d, encoder_output->buffer_num=%d\n", encoder_output->buffer_size , encoder_output->buffer_num);exit(1);
+   if (state->bEncoderBufAuto)
+      encoder_pool_auto(state, encoder_output, &encoder_output->buffer_num, &encoder_output->buffer_size);
+   else
+   {//the encoder does not start with less than it asks for
+      uint32_t size = (state->encoderBufferKB ? state->encoderBufferKB : ENCODER_DEFAULT_BUFFER_KB) * 1024;
+      uint32_t num = state->encoderBuffers ? state->encoderBuffers : ENCODER_DEFAULT_BUFFERS;
+
+      encoder_output->buffer_size = vcos_max(size, encoder_output->buffer_size_min);
+      encoder_output->buffer_num = vcos_max(num, encoder_output->buffer_num_min);
+      if ((encoder_output->buffer_size != size) || (encoder_output->buffer_num != num))
+         fprintf(stderr, "Encoder pool of %u x %uKB raised to the encoder minimum of %u x %uKB\n", num, size / 1024,
+                 encoder_output->buffer_num_min, encoder_output->buffer_size_min / 1024);
+   }
+   if (state->verbose || state->bEncoderBufAuto || state->encoderBuffers || state->encoderBufferKB)
+      fprintf(stderr, "Encoder pool: %u x %uKB\n", encoder_output->buffer_num, encoder_output->buffer_size / 1024);
 
    // We need to set the frame rate on output to 0, to ensure it gets
    // updated correctly from the input framerate when port connected
@@ -2321,7 +8530,10 @@ static MMAL_STATUS_T create_encoder_component(RASPIVID_STATE *state)
       }
    }
 
-   //printf("motion_on=%d\n", mmal_port_parameter_set_boolean(g_encoder_output, MMAL_PARAMETER_VIDEO_ENCODE_INLINE_VECTORS, 1));
+   if ((gMotionAlarm || state->zoneCnt || state->blobMinBlocks) &&
+       (mmal_port_parameter_set_boolean(encoder_output, MMAL_PARAMETER_VIDEO_ENCODE_INLINE_VECTORS, 1) != MMAL_SUCCESS))
+      vcos_log_error("Unable to turn on inline motion vectors for -trigger, -zone and -blob");
+
    //  Enable component
    status = mmal_component_enable(encoder);
 
@@ -2338,6 +8550,12 @@ static MMAL_STATUS_T create_encoder_component(RASPIVID_STATE *state)
    {
       vcos_log_error("Failed to create buffer header pool for encoder output port %s", encoder_output->name);
    }
+   else
+   {
+      state->callback_data.pool.num = encoder_output->buffer_num;
+      state->callback_data.pool.size = encoder_output->buffer_size;
+      mmal_pool_callback_set(pool, encoder_pool_released, &state->callback_data.pool);
+   }
 
    state->encoder_pool = pool;
    state->encoder_component = encoder;
@@ -2404,6 +8622,8 @@ int main(int argc, const char **argv)
    // Our main data storage vessel..
    RASPIVID_STATE state;
    int exit_code = EX_OK;
+   bool bRecord;
+   const char *recordName;
 
    MMAL_STATUS_T status = MMAL_SUCCESS;
 
@@ -2421,7 +8641,130 @@ int main(int argc, const char **argv)
       exit(EX_USAGE);
    }
 
-   if (state.filename)
+   if (state.bMotionBench)
+   {
+      motion_bench();
+      exit(EX_OK);
+   }
+
+   if (state.abrCeiling)
+   {
+      uint32_t max = (state.level == MMAL_VIDEO_LEVEL_H264_4) ? MAX_BITRATE_LEVEL4 : MAX_BITRATE_LEVEL42;
+      if (state.quantisationParameter)
+         fprintf(stderr, "-abr has no effect with a fixed -qp\n");
+      state.abrCeiling = vcos_min(state.abrCeiling, max);
+      state.abrFloor = vcos_min(state.abrFloor, state.abrCeiling);
+      state.bitrate = vcos_max(state.abrFloor, vcos_min(state.bitrate, state.abrCeiling));
+      abr_init(&state.callback_data.abr, state.bitrate, state.abrFloor, state.abrCeiling, state.abrDownPct, state.abrUpPct);
+   }
+
+   if (state.fanoutClients && (state.enc_sink == encoder_sink_rtp))
+   {
+      fprintf(stderr, "Fan-out mode can not be used with rtp mode\n");
+      exit(EX_USAGE);
+   }
+
+   if (state.enc_sink == encoder_sink_rtsp)
+   {//every RTSP connection is a hub viewer, interleaved RTP goes through its queue
+      if (state.fecGroup || state.nackMs)
+      {
+         fprintf(stderr, "-fec and -nack are not available in rtsp mode\n");
+         exit(EX_USAGE);
+      }
+      if (!state.netListen || !state.filename ||
+          !net_hub_init(&state.hub, state.fanoutClients ? state.fanoutClients : NET_MAX_CLIENTS, state.maxQueueKB * 1024) ||
+          !net_hub_listen(&state.hub, state.filename))
+      {
+         fprintf(stderr, "rtsp mode needs -l -o tcp://ip:port\n");
+         exit(EX_USAGE);
+      }
+      state.hub.bRtsp = true;
+      if (state.bLowLatency)
+         state.hub.profile_bitrate = state.bitrate;
+      state.callback_data.pHub = &state.hub;
+      state.callback_data.sockFD = rtsp_udp_open(state.filename);
+      rtp_init(&state.callback_data.rtp, state.mtu, 0, 0);
+      state.callback_data.rtp.pHub = &state.hub;
+   }
+   else if (state.enc_sink == encoder_sink_http)
+   {//every HTTP connection is a hub viewer, /live.mp4 streams through its queue
+      if (!state.netListen || !state.filename ||
+          !net_hub_init(&state.hub, state.fanoutClients ? state.fanoutClients : NET_MAX_CLIENTS, state.maxQueueKB * 1024) ||
+          !net_hub_listen(&state.hub, state.filename))
+      {
+         fprintf(stderr, "http mode needs -l -o tcp://ip:port\n");
+         exit(EX_USAGE);
+      }
+      state.hub.bHttp = true;
+      if (state.bLowLatency)
+         state.hub.profile_bitrate = state.bitrate;
+      state.callback_data.pHub = &state.hub;
+      fmp4_init(&state.callback_data.fmp4, state.width, state.height, state.framerate);
+   }
+   else if (state.enc_sink == encoder_sink_websocket)
+   {//every WebSocket connection is a hub viewer
+      if (!state.netListen || !state.filename ||
+          !net_hub_init(&state.hub, state.fanoutClients ? state.fanoutClients : NET_MAX_CLIENTS, state.maxQueueKB * 1024) ||
+          !net_hub_listen(&state.hub, state.filename))
+      {
+         fprintf(stderr, "websocket mode needs -l -o tcp://ip:port\n");
+         exit(EX_USAGE);
+      }
+      state.hub.bWebSocket = true;
+      if (state.bLowLatency)
+         state.hub.profile_bitrate = state.bitrate;
+      state.callback_data.pHub = &state.hub;
+   }
+   else if (state.fanoutClients)
+   {
+      if (!state.netListen || !state.filename ||
+          !net_hub_init(&state.hub, state.fanoutClients, state.maxQueueKB * 1024) ||
+          !net_hub_listen(&state.hub, state.filename))
+      {
+         fprintf(stderr, "Fan-out mode needs -l -o tcp://ip:port\n");
+         exit(EX_USAGE);
+      }
+      if (state.bLowLatency)
+         state.hub.profile_bitrate = state.bitrate;
+      state.callback_data.pHub = &state.hub;
+   }
+   else if (state.filename && !strncmp(state.filename, "shm://", 6))
+   {
+      if (!state.enc_sink)
+         state.enc_sink = encoder_sink_raw_tcp;
+      if (state.enc_sink != encoder_sink_raw_tcp)
+      {
+         fprintf(stderr, "shm:// output needs -m raw_tcp\n");
+         exit(EX_USAGE);
+      }
+      if (!shm_output_open(&state.shm, state.filename + 6, state.shmSizeMB * 1024 * 1024))
+         exit(1);
+      state.callback_data.pShm = &state.shm;
+   }
+   else if (state.bKeepAlive)
+   {//a single viewer served through the hub, which survives disconnects and starts new viewers at an I-frame
+      int sockType;
+      if (!state.filename || !parse_network_filename(state.filename, &state.keepAliveAddr, &sockType) ||
+          (sockType != SOCK_STREAM) || (state.enc_sink == encoder_sink_rtp))
+      {
+         fprintf(stderr, "-keepalive needs a tcp:// output\n");
+         exit(EX_USAGE);
+      }
+      if (!net_hub_init(&state.hub, 1, state.maxQueueKB * 1024))
+         exit(1);
+      state.hub.bTakeOver = true;
+      if (state.bLowLatency)
+         state.hub.profile_bitrate = state.bitrate;
+      if (state.netListen)
+      {
+         if (!net_hub_listen(&state.hub, state.filename))
+            exit(1);
+      }
+      else
+         net_hub_add_client(&state.hub, net_connect_backoff(&state.keepAliveAddr), &state.keepAliveAddr);
+      state.callback_data.pHub = &state.hub;
+   }
+   else if (state.filename)
    {
       state.callback_data.file_handle = open_filename(&state, state.filename, &state.callback_data.sockFD);
 
@@ -2431,7 +8774,193 @@ int main(int argc, const char **argv)
          vcos_log_error("%s: Error opening output file: %s\nNo output file will be generated\n", __func__, state.filename);
          exit(1);
       }
+
+      if (state.enc_sink == encoder_sink_rtp)
+      {
+         int sockType = 0;
+         socklen_t typelen = sizeof(sockType);
+
+         if ((state.callback_data.sockFD <= 0) ||
+             getsockopt(state.callback_data.sockFD, SOL_SOCKET, SO_TYPE, &sockType, &typelen) ||
+             (sockType != SOCK_DGRAM))
+         {
+            fprintf(stderr, "rtp mode needs a udp:// output\n");
+            exit(EX_USAGE);
+         }
+         rtp_init(&state.callback_data.rtp, state.mtu, state.fecGroup, state.nackMs);
+      }
+      else if (state.maxQueueKB)
+      {//latency first sending to the single viewer, through the same queues as fan-out mode
+         struct sockaddr_in peer;
+         socklen_t peerlen = sizeof(peer);
+         int sockType = 0;
+         socklen_t typelen = sizeof(sockType);
+
+         getsockopt(state.callback_data.sockFD, SOL_SOCKET, SO_TYPE, &sockType, &typelen);
+         if (sockType != SOCK_STREAM)
+         {
+            fprintf(stderr, "-maxqueue needs a tcp:// output\n");
+            exit(EX_USAGE);
+         }
+         memset(&peer, 0, sizeof(peer));
+         getpeername(state.callback_data.sockFD, (struct sockaddr *) &peer, &peerlen);
+         if (!net_hub_init(&state.hub, 1, state.maxQueueKB * 1024) ||
+             !net_hub_add_client(&state.hub, state.callback_data.sockFD, &peer))
+            exit(1);
+         state.callback_data.pHub = &state.hub;
+      }
+      else if (state.zerocopyKB && (state.callback_data.sockFD > 0))
+      {
+         if (zerocopy_setup(&state.callback_data))
+            state.callback_data.zerocopyMin = state.zerocopyKB * 1024;
+      }
+      else if (state.netQueueKB && (state.callback_data.sockFD > 0))
+      {//the network thread sends, encoder buffers are not held while the link is slow
+         int sockType = 0;
+         socklen_t typelen = sizeof(sockType);
+
+         if (!getsockopt(state.callback_data.sockFD, SOL_SOCKET, SO_TYPE, &sockType, &typelen) &&
+             (sockType == SOCK_STREAM))
+         {
+            writer_start(&state.callback_data.writer, state.netQueueKB, state.bWriteWait, true);
+            state.callback_data.pNetWriter = &state.callback_data.writer;
+         }
+      }
+   }
+
+   if (state.enc_sink == encoder_sink_ts)
+   {//udp:// and files are batched by the muxer, tcp:// viewers get a message per frame
+      int fd = -1, sockType = 0;
+      socklen_t typelen = sizeof(sockType);
+
+      if (!state.callback_data.pHub && state.callback_data.file_handle)
+      {
+         if (state.callback_data.sockFD <= 0)
+            fd = fileno(state.callback_data.file_handle);
+         else if (!getsockopt(state.callback_data.sockFD, SOL_SOCKET, SO_TYPE, &sockType, &typelen) &&
+                  (sockType == SOCK_DGRAM))
+            fd = state.callback_data.sockFD;
+      }
+      ts_init(&state.callback_data.ts, state.framerate, fd, sockType == SOCK_DGRAM);
+      if ((fd >= 0) && (sockType != SOCK_DGRAM) && state.writeQueueKB)
+      {
+         writer_start(&state.callback_data.writer, state.writeQueueKB, state.bWriteWait, false);
+         state.callback_data.ts.writer = &state.callback_data.writer;
+      }
+   }
+
+   if (!state.enc_sink)
+   {
+      fprintf(stderr, "No -m mode given, use one of:\n");
+      print_callbacks();
+      exit(EX_USAGE);
+   }
+
+   if (state.abrCeiling && !state.callback_data.pHub)
+   {//the backlog is measured in the viewer queues or the TCP send queue, files and UDP never have one
+      int sockType = 0;
+      socklen_t typelen = sizeof(sockType);
+
+      if ((state.callback_data.sockFD <= 0) ||
+          getsockopt(state.callback_data.sockFD, SOL_SOCKET, SO_TYPE, &sockType, &typelen) || (sockType != SOCK_STREAM))
+      {
+         fprintf(stderr, "-abr needs a tcp:// output\n");
+         exit(EX_USAGE);
+      }
+   }
+
+   if (state.recordFilename && (state.enc_sink == encoder_sink_record))
+   {
+      fprintf(stderr, "-record is for the other modes, record mode records into the -o file\n");
+      exit(EX_USAGE);
+   }
+   bRecord = state.recordFilename || (state.enc_sink == encoder_sink_record);
+   if (!bRecord)
+      recordName = NULL;
+   else if (state.recordFilename)
+      recordName = state.recordFilename;
+   else
+      recordName = state.filename;
+
+   if ((state.segmentSize || state.segmentMB) && (!recordName || !strstr(recordName, "%")))
+   {
+      fprintf(stderr, "-segment and -segsize need record mode or -record and a file name with %%d for the segment number\n");
+      exit(EX_USAGE);
+   }
+
+   if ((state.circularMs || state.circularKB) && !gMotionAlarm)
+   {//also with -zone or -blob, the alarm is off without -trigger
+      fprintf(stderr, "-circular records motion events, it needs -trigger\n");
+      exit(EX_USAGE);
+   }
+   if ((state.circularMs || state.circularKB) && !state.writeQueueKB)
+   {//the pre-roll of an event is seconds of video at once, the encoder callback must not write it
+      fprintf(stderr, "-circular needs the writer thread, not -writeq 0\n");
+      exit(EX_USAGE);
+   }
+
+   if (bRecord)
+   {
+      FILE *record_handle = state.callback_data.file_handle;
+      int recordSockFD = state.callback_data.sockFD;
+
+      if (state.recordFilename)
+      {
+         recordSockFD = 0;
+         record_handle = open_filename(&state, (char *) state.recordFilename, &recordSockFD);
+      }
+      if ((!state.recordFilename && state.callback_data.pHub) || !record_handle || (recordSockFD > 0))
+      {
+         fprintf(stderr, "record mode and -record need a file\n");
+         exit(EX_USAGE);
+      }
+      rec_init(&state.callback_data.rec, fileno(record_handle), recordName,
+               state.width, state.height, state.framerate);
+      if (state.writeQueueKB)
+      {
+         writer_start(&state.callback_data.recWriter, state.writeQueueKB, state.bWriteWait, false);
+         state.callback_data.rec.writer = &state.callback_data.recWriter;
+      }
+      if (state.circularMs || state.circularKB)
+      {
+         circ_init(&state.callback_data.circ, state.circularMs, state.circularKB, state.postRollMs, state.bitrate);
+         if (state.callback_data.circ.size > (uint64_t) state.writeQueueKB * 1024)
+            fprintf(stderr, "-writeq %d is smaller than the -circular ring, the pre-roll of an event may be cut\n",
+                    state.writeQueueKB);
+      }
+      if (state.segmentSize || state.segmentMB)
+         rec_segments_start(&state.callback_data.rec, recordName, state.segmentNumber, state.segmentWrap,
+                            state.segmentSize, state.segmentMB, state.bitrate);
+      if (state.save_pts)
+      {
+         if (NULL == (state.callback_data.rec.pts_file = fopen(state.pts_filename, "w")))
+         {
+            fprintf(stderr, "Can not create %s: %s\n", state.pts_filename, strerror(errno));
+            exit(1);
+         }
+         fprintf(state.callback_data.rec.pts_file, "# timecode format v2\n");
+      }
    }
+   else if (state.save_pts || state.circularMs || state.circularKB)
+   {
+      fprintf(stderr, "-save-pts and -circular need record mode or -record\n");
+      exit(EX_USAGE);
+   }
+
+   if ((state.zoneCnt || state.blobMinBlocks) && !state.bSinkMotion && !state.callback_data.circ.data)
+   {
+      fprintf(stderr, "-zone and -blob need a mode that uses the motion (android_motion, websocket) or -circular\n");
+      exit(EX_USAGE);
+   }
+   if (state.blobMinBlocks &&
+       !motion_blobs_init(&state.callback_data.blobs, state.blobMinBlocks, state.blobThreshold, state.width, state.height))
+   {
+      fprintf(stderr, "-blob: no memory for %dx%d\n", state.width, state.height);
+      exit(1);
+   }
+   if (state.zoneCnt &&
+       !motion_zones_init(&state.callback_data.zones, state.zoneSpec, state.zoneCnt, state.width, state.height))
+      exit(EX_USAGE);
 
    // OK, we have a nice set of parameters. Now set up our components
    // We have three components. Camera, Preview and encoder.
@@ -2485,6 +9014,13 @@ int main(int argc, const char **argv)
 
          // Set up our userdata - this is passed though to the callback where we need the information.
          encoder_output_port->userdata = (struct MMAL_PORT_USERDATA_T *)&state.callback_data;
+         state.callback_data.au.budget = state.maxFrameKB * 1024;
+
+         // The pipeline: copying sinks first, the sink of the mode may keep buffers
+         if (state.recordFilename)
+            state.callback_data.sinks[state.callback_data.sinkCnt++] = encoder_sink_record;
+         state.callback_data.sinks[state.callback_data.sinkCnt++] = state.enc_sink;
+         state.callback_data.bAnalyseMotion = state.bSinkMotion || (state.callback_data.circ.data != NULL);
 
          //if(state.inlineMotionVectors)
          {
@@ -2496,7 +9032,7 @@ int main(int argc, const char **argv)
 
 
          // Enable the encoder output port and tell it its callback function
-         status = mmal_port_enable(encoder_output_port, state.enc_cb_func);
+         status = mmal_port_enable(encoder_output_port, encoder_pipeline_callback);
          if (status != MMAL_SUCCESS)
          {
             vcos_log_error("Failed to setup encoder output");
@@ -2520,7 +9056,21 @@ int main(int argc, const char **argv)
 
 
 
-         receive_commands(&state);
+         if (state.callback_data.pHub)
+         {
+            net_hub_run(&state);
+            while (state.bKeepAlive && !state.netListen)
+            {//the viewer is gone, the camera keeps running while we get it back
+               net_hub_add_client(&state.hub, net_connect_backoff(&state.keepAliveAddr), &state.keepAliveAddr);
+               net_hub_run(&state);
+            }
+         }
+         else if (state.enc_sink == encoder_sink_rtp)
+            rtp_run(&state);
+         else if (state.callback_data.sockFD > 0)
+            receive_commands(&state);
+         else
+            wait_for_stop(&state);
             /*
          state.callback_data.runTimeShowStat = 1;
          receiveUDPcommand(&state);*/
@@ -2538,6 +9088,17 @@ error:
       // Disable all our ports that are not handled by connections
       mmal_port_disable(encoder_output_port);
 
+      if ((state.enc_sink == encoder_sink_ts) && (state.callback_data.ts.fd >= 0))
+         ts_flush(&state.callback_data, 0, true);//tail of a file
+      if (bRecord)
+         rec_close(&state.callback_data.rec);
+      writer_stop(&state.callback_data.recWriter);
+      writer_stop(&state.callback_data.writer);
+      encoder_pool_report(&state.callback_data.pool);
+      if (state.callback_data.au.spilled || state.callback_data.au.dropped)
+         fprintf(stderr, "Frames: %u copied to give the encoder its buffers back, %u dropped (-maxframe %d)\n",
+                 state.callback_data.au.spilled, state.callback_data.au.dropped, state.maxFrameKB);
+
       if (state.preview_parameters.wantPreview && state.preview_connection)
          mmal_connection_destroy(state.preview_connection);
 